@@ -29,12 +29,13 @@ public class IngredientApiClientConfig {
 
     @Bean(name = "ingredientApi")
     @Scope("singleton")
-    public IngredientApi ingredientApi() {
-        return new IngredientApi(ingredientApiClient());
+    public IngredientApi ingredientApi(WebClient.Builder webClientBuilder) {
+        return new IngredientApi(ingredientApiClient(webClientBuilder));
     }
 
-    private ApiClient ingredientApiClient() {
-        var webClient = WebClient.builder()
+    private ApiClient ingredientApiClient(WebClient.Builder webClientBuilder) {
+        // Builder von Spring Boot: Observation der Requests (Spans, traceparent)
+        var webClient = webClientBuilder
                 .baseUrl(ingredientServiceUrl)
                 .filter(tokenRelayFilter())
                 .build();
@@ -28,12 +28,13 @@ public class MenuApiClientConfig {
 
     @Bean(name = "menuApi")
     @Scope("singleton")
-    public MenuApi menuApi() {
-        return new MenuApi(ingredientApiClient());
+    public MenuApi menuApi(WebClient.Builder webClientBuilder) {
+        return new MenuApi(ingredientApiClient(webClientBuilder));
     }
 
-    private ApiClient ingredientApiClient() {
-        var webClient = WebClient.builder()
+    private ApiClient ingredientApiClient(WebClient.Builder webClientBuilder) {
+        // Builder von Spring Boot: Observation der Requests (Spans, traceparent)
+        var webClient = webClientBuilder
                 .baseUrl(menuServiceUrl)
                 .filter(addBearerTokenFromSecurityContext())
                 .build();
@@ -0,0 +1,125 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.gravitee.gateway.api.ExecutionContext;
+import io.gravitee.gateway.api.Request;
+import io.gravitee.gateway.api.Response;
+import io.gravitee.gateway.api.http.HttpHeaders;
+import io.gravitee.policy.api.PolicyChain;
+import io.gravitee.policy.api.PolicyResult;
+
+import io.vertx.core.Vertx;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * Minimal gateway objects for running the policy outside of the gateway
+ * <p>
+ * The objects are dynamic proxies. Their (small and constant) invocation overhead is part of
+ * every measurement and cancels out when comparing policy versions.
+ */
+final class BenchmarkStubs {
+
+    private BenchmarkStubs() {
+    }
+
+    static ExecutionContext executionContext(Map<String, Object> attributes, Vertx vertx) {
+        return proxy(ExecutionContext.class, (method, args) -> switch (method.getName()) {
+            case "getAttribute" -> attributes.get((String) args[0]);
+            case "setAttribute" -> attributes.put((String) args[0], args[1]);
+            case "getComponent" -> args[0] == Vertx.class ? vertx : null;
+            default -> null;
+        });
+    }
+
+    static Request request() {
+        var headers = proxy(HttpHeaders.class, (method, args) -> null);
+        return proxy(Request.class, (method, args) -> "headers".equals(method.getName()) ? headers : null);
+    }
+
+    static Response response() {
+        return proxy(Response.class, (method, args) -> null);
+    }
+
+    /**
+     * Policy chain that completes the current result, when the policy continues or fails the request.
+     */
+    static final class ResultPolicyChain {
+
+        private final PolicyChain policyChain = proxy(PolicyChain.class, this::invoke);
+
+        private CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PolicyChain policyChain() {
+            return policyChain;
+        }
+
+        /**
+         * @return the result of the next request: {@code true} if the policy continued, {@code false} if it failed
+         */
+        CompletableFuture<Boolean> next() {
+            result = new CompletableFuture<>();
+            return result;
+        }
+
+        private Object invoke(Method method, Object[] args) {
+            switch (method.getName()) {
+                case "doNext" -> result.complete(true);
+                case "failWith" -> {
+                    if (args[0] instanceof PolicyResult) {
+                        result.complete(false);
+                    }
+                }
+                default -> {
+                }
+            }
+            return null;
+        }
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, BiFunction<Method, Object[], Object> handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> type.getSimpleName() + "Stub";
+                };
+            }
+            var result = handler.apply(method, args);
+            if (result == null && method.getReturnType().isPrimitive()) {
+                return defaultValue(method.getReturnType());
+            }
+            return result;
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == void.class) {
+            return null;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,32 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.Random;
+
+/**
+ * Incoming tokens for the benchmarks
+ * <p>
+ * The tokens have the size and alphabet of typical Keycloak access tokens (three base64url
+ * encoded parts), their content is random.
+ */
+final class BenchmarkTokens {
+
+    static final int TOKEN_LENGTH = 1_200;
+
+    private static final char[] BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private BenchmarkTokens() {
+    }
+
+    static String token(long seed) {
+        var random = new Random(seed);
+        var chars = new char[TOKEN_LENGTH];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = BASE64_URL[random.nextInt(BASE64_URL.length)];
+        }
+        // Header.Payload.Signatur
+        chars[36] = '.';
+        chars[TOKEN_LENGTH - 343] = '.';
+        return new String(chars);
+    }
+
+}
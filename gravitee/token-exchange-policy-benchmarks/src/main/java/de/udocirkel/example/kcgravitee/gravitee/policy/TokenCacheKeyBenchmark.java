@@ -0,0 +1,50 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the cache key computation, compared with the former {@code String.hashCode()} based key
+ * <p>
+ * A fresh string is used for every invocation, so the cached hash code of {@link String} does not
+ * hide the cost of the hash computation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenCacheKeyBenchmark {
+
+    private static final String TARGET_SCOPE = "menu-api";
+
+    private char[] token;
+
+    @Setup
+    public void setup() {
+        token = BenchmarkTokens.token(1).toCharArray();
+    }
+
+    @Benchmark
+    public TokenCacheKey digestKey() {
+        return TokenCacheKey.of(new String(token), TARGET_SCOPE);
+    }
+
+    @Benchmark
+    public String legacyHashCodeKey() {
+        return Objects.toString((new String(token) + "|" + TARGET_SCOPE).hashCode());
+    }
+
+}
@@ -0,0 +1,135 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.net.JdkSSLEngineOptions;
+import io.vertx.core.net.PemKeyCertOptions;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a request to an HTTPS token endpoint in the same process, with the TLS settings of the
+ * policy and the SSL engine of the JDK or the OpenSSL engine:
+ * <ul>
+ * <li>pooled connection: the request is sent over a kept-alive connection, without handshake</li>
+ * <li>resumed handshake: each request opens a new connection, which resumes the TLS session of the previous one</li>
+ * <li>full handshake: each request opens a new connection of a new client without cached TLS sessions</li>
+ * </ul>
+ * The stub token endpoint always uses the SSL engine of the JDK, like Keycloak, so only the engine of the
+ * client differs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenEndpointTlsBenchmark {
+
+    private static final String CERTIFICATE = "tls/localhost.crt";
+    private static final String PRIVATE_KEY = "tls/localhost.key";
+
+    private static final String FORM = "grant_type=urn%3Aietf%3Aparams%3Aoauth%3Agrant-type%3Atoken-exchange";
+
+    @Param({TokenEndpointTls.ENGINE_JDK, TokenEndpointTls.ENGINE_OPENSSL})
+    public String engine;
+
+    private Vertx vertx;
+
+    private HttpServer tokenEndpoint;
+
+    private HttpClientOptions clientOptions;
+
+    private HttpClient pooledClient;
+
+    private HttpClient newConnectionClient;
+
+    private RequestOptions requestOptions;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        vertx = Vertx.vertx();
+        tokenEndpoint = await(vertx.createHttpServer(new HttpServerOptions()
+                        .setSsl(true)
+                        .setSslEngineOptions(new JdkSSLEngineOptions())
+                        .setKeyCertOptions(new PemKeyCertOptions().setKeyPath(PRIVATE_KEY).setCertPath(CERTIFICATE)))
+                .requestHandler(req -> req.body().onSuccess(body -> req.response()
+                        .putHeader("Content-Type", "application/json")
+                        .end("{\"access_token\":\"" + BenchmarkTokens.token(0) + "\",\"expires_in\":300}")))
+                .listen(0));
+
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointTruststorePath(CERTIFICATE);
+        config.setTokenEndpointOpenSslEnabled(TokenEndpointTls.ENGINE_OPENSSL.equals(engine));
+        if (!engine.equals(TokenEndpointTls.engine(config))) {
+            throw new IllegalStateException("SSL engine '" + engine + "' is not available, is netty-tcnative on the classpath?");
+        }
+        clientOptions = TokenEndpointTls.configure(new HttpClientOptions(), config);
+
+        pooledClient = vertx.createHttpClient(new HttpClientOptions(clientOptions).setKeepAlive(true));
+        // Ohne Keep-Alive eine neue Verbindung je Request, die TLS Session bleibt im Client
+        newConnectionClient = vertx.createHttpClient(new HttpClientOptions(clientOptions).setKeepAlive(false));
+        requestOptions = new RequestOptions()
+                .setMethod(HttpMethod.POST)
+                .setAbsoluteURI("https://localhost:" + tokenEndpoint.actualPort() + "/token")
+                .putHeader("Content-Type", "application/x-www-form-urlencoded");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    @Benchmark
+    public Object pooledConnection() throws Exception {
+        return await(post(pooledClient));
+    }
+
+    @Benchmark
+    public Object resumedHandshake() throws Exception {
+        return await(post(newConnectionClient));
+    }
+
+    @Benchmark
+    public Object fullHandshake() throws Exception {
+        var client = vertx.createHttpClient(new HttpClientOptions(clientOptions).setKeepAlive(false));
+        try {
+            return await(post(client));
+        } finally {
+            await(client.close());
+        }
+    }
+
+    private Future<Buffer> post(HttpClient client) {
+        return client.request(requestOptions)
+                .compose(request -> request.send(FORM))
+                .compose(HttpClientResponse::body);
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,60 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the token exchange form, compared with url encoding every form parameter
+ * per request
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenExchangeFormBenchmark {
+
+    private TokenExchangePolicyConfiguration config;
+
+    private TokenExchangeForm form;
+
+    private String token;
+
+    @Setup
+    public void setup() {
+        config = new TokenExchangePolicyConfiguration();
+        config.setTokenExchangeClientId("token-exchange-client");
+        config.setTokenExchangeClientSecret("secret");
+        config.setTargetScope("menu-api");
+        form = new TokenExchangeForm(config);
+        token = BenchmarkTokens.token(1);
+    }
+
+    @Benchmark
+    public String build() {
+        return form.build(token);
+    }
+
+    @Benchmark
+    public String encodeAll() {
+        return "grant_type=" + TokenExchangeForm.encode("urn:ietf:params:oauth:grant-type:token-exchange")
+                + "&client_id=" + TokenExchangeForm.encode(config.getTokenExchangeClientId())
+                + "&client_secret=" + TokenExchangeForm.encode(config.getTokenExchangeClientSecret())
+                + "&subject_token=" + TokenExchangeForm.encode(token)
+                + "&subject_token_type=" + TokenExchangeForm.encode("urn:ietf:params:oauth:token-type:access_token")
+                + "&requested_token_type=" + TokenExchangeForm.encode("urn:ietf:params:oauth:token-type:access_token")
+                + "&scope=" + TokenExchangeForm.encode(config.getTargetScope());
+    }
+
+}
@@ -0,0 +1,146 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.gravitee.gateway.api.ExecutionContext;
+import io.gravitee.gateway.api.Request;
+import io.gravitee.gateway.api.Response;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of {@link TokenExchangePolicy#onRequest} on its three paths:
+ * <ul>
+ * <li>claim checks only: the incoming token already contains the not matching scope</li>
+ * <li>cache hit: the exchanged token is taken from the local token cache</li>
+ * <li>cache miss: the token is exchanged at an in-process stub token endpoint</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenExchangePolicyBenchmark {
+
+    private static final String TARGET_SCOPE = "menu-api";
+
+    private static final String EXCHANGE_RESPONSE = "{\"access_token\":\"" + BenchmarkTokens.token(0) + "\","
+            + "\"expires_in\":300,\"token_type\":\"Bearer\",\"scope\":\"" + TARGET_SCOPE + "\"}";
+
+    private Vertx vertx;
+
+    private HttpServer tokenEndpoint;
+
+    private TokenExchangePolicy policy;
+
+    private String incomingToken;
+
+    private long tokenSequence;
+
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    private final Map<String, Object> claims = new HashMap<>();
+
+    private final BenchmarkStubs.ResultPolicyChain resultPolicyChain = new BenchmarkStubs.ResultPolicyChain();
+
+    private ExecutionContext context;
+
+    private Request request;
+
+    private Response response;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        vertx = Vertx.vertx();
+        tokenEndpoint = vertx.createHttpServer()
+                .requestHandler(req -> req.body().onSuccess(body -> req.response()
+                        .putHeader("Content-Type", "application/json")
+                        .end(EXCHANGE_RESPONSE)))
+                .listen(0)
+                .toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointUrl("http://localhost:" + tokenEndpoint.actualPort() + "/token");
+        config.setTokenExchangeClientId("token-exchange-client");
+        config.setTokenExchangeClientSecret("secret");
+        config.setAuthorizedPartyPrefix("coffee-");
+        config.setMatchingAudience("coffeehouse");
+        config.setNotMatchingAudience(TARGET_SCOPE);
+        config.setNotMatchingScope(TARGET_SCOPE);
+        config.setTargetScope(TARGET_SCOPE);
+        policy = new TokenExchangePolicy(config);
+
+        incomingToken = BenchmarkTokens.token(1);
+        claims.put("azp", "coffee-app");
+        claims.put("aud", List.of("coffeehouse", "account"));
+        claims.put("scope", "openid profile email");
+        claims.put("exp", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 3_600);
+        attributes.put("jwt.token", incomingToken);
+        attributes.put("jwt.claims", claims);
+
+        context = BenchmarkStubs.executionContext(attributes, vertx);
+        request = BenchmarkStubs.request();
+        response = BenchmarkStubs.response();
+
+        // Cache fuer den Cache-Hit vorbelegen
+        onRequest().get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Object claimChecksOnly() throws Exception {
+        claims.put("scope", "openid profile email " + TARGET_SCOPE);
+        try {
+            return onRequest().get();
+        } finally {
+            claims.put("scope", "openid profile email");
+        }
+    }
+
+    @Benchmark
+    public Object cacheHit() throws Exception {
+        return onRequest().get();
+    }
+
+    @Benchmark
+    public Object cacheMiss() throws Exception {
+        // Jeder Aufruf mit neuem Token, damit der Cache nie trifft
+        attributes.put("jwt.token", BenchmarkTokens.token(++tokenSequence + 1));
+        try {
+            return onRequest().get(10, TimeUnit.SECONDS);
+        } finally {
+            attributes.put("jwt.token", incomingToken);
+        }
+    }
+
+    private CompletableFuture<Boolean> onRequest() {
+        var result = resultPolicyChain.next();
+        policy.onRequest(request, response, context, resultPolicyChain.policyChain());
+        return result;
+    }
+
+}
@@ -0,0 +1,93 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker for calls to the token endpoint
+ * <p>
+ * The breaker opens after a number of consecutive failures. While it is open, calls are
+ * rejected without contacting the token endpoint. After the open duration a single call is
+ * let through (half-open): if it succeeds the breaker closes, otherwise it opens again.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long openDurationMillis;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long openedAt;
+
+    /**
+     * @param failureThreshold   the number of consecutive failures after which the breaker opens
+     * @param openDurationMillis the time in milliseconds the breaker stays open
+     */
+    CircuitBreaker(int failureThreshold, long openDurationMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    /**
+     * Check whether a call may be made. A call permitted in the half-open state must be followed
+     * by {@link #onSuccess()}, {@link #onFailure(long)} or {@link #release()}.
+     *
+     * @param now the current time in epoch milliseconds
+     * @return whether the call may be made
+     */
+    boolean tryAcquire(long now) {
+        return switch (state.get()) {
+            case CLOSED -> true;
+            // Nur ein Probe-Aufruf nach Ablauf der Open-Dauer
+            case OPEN -> now - openedAt >= openDurationMillis && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            case HALF_OPEN -> false;
+        };
+    }
+
+    /**
+     * Record a successful call.
+     */
+    void onSuccess() {
+        consecutiveFailures.set(0);
+        state.set(State.CLOSED);
+    }
+
+    /**
+     * Record a failed call. A call that was permitted before the breaker opened and fails while it
+     * is open does not extend the open duration.
+     *
+     * @param now the current time in epoch milliseconds
+     */
+    void onFailure(long now) {
+        var failures = consecutiveFailures.incrementAndGet();
+        var current = state.get();
+        if (current == State.OPEN) {
+            return;
+        }
+        if (current == State.HALF_OPEN || failures >= failureThreshold) {
+            // Vor dem Zustandswechsel setzen, tryAcquire liest openedAt erst im Zustand OPEN
+            openedAt = now;
+            state.compareAndSet(current, State.OPEN);
+        }
+    }
+
+    /**
+     * Release a call permitted by {@link #tryAcquire(long)} that has not been made. In the
+     * half-open state, the next call probes the token endpoint instead.
+     */
+    void release() {
+        state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+
+    State state() {
+        return state.get();
+    }
+
+}
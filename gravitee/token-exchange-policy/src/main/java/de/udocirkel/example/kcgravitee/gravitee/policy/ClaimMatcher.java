@@ -0,0 +1,137 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Checks whether the claims of an incoming token qualify the token for a token exchange
+ * <p>
+ * The checks are compiled once from the policy configuration: checks of optional parameters
+ * that are not configured are left out. Evaluating the checks does not allocate; in particular
+ * the scope claim is scanned in place instead of being split.
+ */
+final class ClaimMatcher {
+
+    /**
+     * Reason why an incoming token is not exchanged
+     */
+    enum Mismatch {
+        NO_AUTHORIZED_PARTY,
+        AUTHORIZED_PARTY_NOT_MATCHING,
+        AUDIENCE_MISSING,
+        AUDIENCE_PRESENT,
+        SCOPE_PRESENT
+    }
+
+    @FunctionalInterface
+    private interface ClaimCheck {
+
+        /**
+         * @return the mismatch, or {@code null} if the claims pass the check
+         */
+        Mismatch check(Map<?, ?> claims);
+
+    }
+
+    private static final String CLAIM_AUTHORIZED_PARTY = "azp";
+    private static final String CLAIM_AUDIENCE = "aud";
+    private static final String CLAIM_SCOPE = "scope";
+
+    private final ClaimCheck[] checks;
+
+    ClaimMatcher(TokenExchangePolicyConfiguration configuration) {
+        var compiled = new ArrayList<ClaimCheck>(4);
+
+        var authorizedPartyPrefix = configuration.getAuthorizedPartyPrefix() == null ? "" : configuration.getAuthorizedPartyPrefix();
+        compiled.add(claims -> {
+            var issuedFor = authorizedParty(claims);
+            if (issuedFor == null || issuedFor.isBlank()) {
+                return Mismatch.NO_AUTHORIZED_PARTY;
+            }
+            return issuedFor.startsWith(authorizedPartyPrefix) ? null : Mismatch.AUTHORIZED_PARTY_NOT_MATCHING;
+        });
+
+        var matchingAudience = configuration.getMatchingAudience();
+        if (matchingAudience != null && !matchingAudience.isBlank()) {
+            compiled.add(claims -> containsAudience(claims.get(CLAIM_AUDIENCE), matchingAudience) ? null : Mismatch.AUDIENCE_MISSING);
+        }
+
+        var notMatchingAudience = configuration.getNotMatchingAudience();
+        if (notMatchingAudience != null && !notMatchingAudience.isBlank()) {
+            compiled.add(claims -> containsAudience(claims.get(CLAIM_AUDIENCE), notMatchingAudience) ? Mismatch.AUDIENCE_PRESENT : null);
+        }
+
+        var notMatchingScope = configuration.getNotMatchingScope();
+        if (notMatchingScope != null && !notMatchingScope.isBlank()) {
+            compiled.add(claims -> containsScope(claims.get(CLAIM_SCOPE), notMatchingScope) ? Mismatch.SCOPE_PRESENT : null);
+        }
+
+        this.checks = compiled.toArray(new ClaimCheck[0]);
+    }
+
+    /**
+     * Check the claims of an incoming token.
+     *
+     * @param claims the claims of the incoming token
+     * @return the first mismatch, or {@code null} if the token is exchanged
+     */
+    Mismatch match(Map<?, ?> claims) {
+        for (var check : checks) {
+            var mismatch = check.check(claims);
+            if (mismatch != null) {
+                return mismatch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param claims the claims of an incoming token
+     * @return the client the token was issued for (claim 'azp'), or {@code null}
+     */
+    static String authorizedParty(Map<?, ?> claims) {
+        return asString(claims.get(CLAIM_AUTHORIZED_PARTY));
+    }
+
+    private static String asString(Object value) {
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        return value.toString();
+    }
+
+    private static boolean containsAudience(Object audiences, String audience) {
+        if (audiences instanceof Collection<?> coll) {
+            return coll.contains(audience);
+        }
+        // Einzelne Audience als String (RFC 7519)
+        return audience.equals(audiences);
+    }
+
+    /**
+     * Check whether the space separated scope claim contains the given scope.
+     */
+    static boolean containsScope(Object scopes, String scope) {
+        if (!(scopes instanceof String scopesString)) {
+            return false;
+        }
+
+        var length = scopesString.length();
+        var scopeLength = scope.length();
+        var from = 0;
+        while (from + scopeLength <= length) {
+            var index = scopesString.indexOf(scope, from);
+            if (index < 0) {
+                return false;
+            }
+            var end = index + scopeLength;
+            if ((index == 0 || scopesString.charAt(index - 1) == ' ') && (end == length || scopesString.charAt(end) == ' ')) {
+                return true;
+            }
+            from = index + 1;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,45 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+/**
+ * Token issued by the token endpoint in exchange for an incoming token
+ *
+ * @param accessToken    the exchanged access token
+ * @param expiresAt      the time (epoch milliseconds) until the token may be used, the expiry skew already subtracted
+ * @param staleUntil     the time (epoch milliseconds) until the token may be used as stale token, if the token
+ *                       endpoint is unhealthy; not before {@code expiresAt}
+ * @param refreshStarted whether a refresh-ahead of the token has already been started
+ */
+record ExchangedToken(String accessToken, long expiresAt, long staleUntil, boolean refreshStarted) {
+
+    ExchangedToken(String accessToken, long expiresAt) {
+        this(accessToken, expiresAt, expiresAt, false);
+    }
+
+    ExchangedToken(String accessToken, long expiresAt, long staleUntil) {
+        this(accessToken, expiresAt, Math.max(expiresAt, staleUntil), false);
+    }
+
+    /**
+     * @param now the current time in epoch milliseconds
+     * @return the remaining lifetime in milliseconds, 0 if the token is expired
+     */
+    long remainingLifetime(long now) {
+        return Math.max(0, expiresAt - now);
+    }
+
+    /**
+     * @param now the current time in epoch milliseconds
+     * @return the remaining time in milliseconds the token is kept for use as stale token, 0 if it is not kept
+     */
+    long remainingRetention(long now) {
+        return Math.max(0, staleUntil - now);
+    }
+
+    /**
+     * @return a copy of this token marked as being refreshed
+     */
+    ExchangedToken withRefreshStarted() {
+        return new ExchangedToken(accessToken, expiresAt, staleUntil, true);
+    }
+
+}
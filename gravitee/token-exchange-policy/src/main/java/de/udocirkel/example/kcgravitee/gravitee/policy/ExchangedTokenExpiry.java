@@ -0,0 +1,34 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires cached tokens at their own expiry time
+ * <p>
+ * The lifetime is set when a token is cached (or replaced) and is not extended by reads. Tokens
+ * kept for use as stale tokens expire when they can no longer be used as stale token.
+ */
+final class ExchangedTokenExpiry implements Expiry<Object, ExchangedToken> {
+
+    @Override
+    public long expireAfterCreate(Object key, ExchangedToken token, long currentTime) {
+        return remainingRetentionNanos(token);
+    }
+
+    @Override
+    public long expireAfterUpdate(Object key, ExchangedToken token, long currentTime, long currentDuration) {
+        return remainingRetentionNanos(token);
+    }
+
+    @Override
+    public long expireAfterRead(Object key, ExchangedToken token, long currentTime, long currentDuration) {
+        return currentDuration;
+    }
+
+    private static long remainingRetentionNanos(ExchangedToken token) {
+        return TimeUnit.MILLISECONDS.toNanos(token.remainingRetention(System.currentTimeMillis()));
+    }
+
+}
@@ -0,0 +1,66 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Stores the tokens in a Caffeine cache on the heap
+ * <p>
+ * The cache is bounded either by the number of tokens or by their total size in bytes. As tokens are
+ * ASCII (JWT), the size of a token is its length.
+ */
+final class HeapTokenStore implements LocalTokenStore {
+
+    private final Cache<TokenCacheKey, ExchangedToken> cache;
+
+    /**
+     * @param maxSize          the maximum number of tokens, if not bounded by weight
+     * @param maxWeight        the maximum total size of the tokens in bytes, 0 to bound the number of tokens
+     * @param evictionListener callback invoked for each evicted token
+     */
+    HeapTokenStore(long maxSize, long maxWeight, Consumer<RemovalCause> evictionListener) {
+        var builder = Caffeine.newBuilder()
+                // Ablaufzeit der Tokens
+                .expireAfter(new ExchangedTokenExpiry())
+                .evictionListener((TokenCacheKey key, ExchangedToken token, RemovalCause cause) -> evictionListener.accept(cause));
+        if (maxWeight > 0) {
+            // Tokengroesse begrenzen
+            builder.maximumWeight(maxWeight)
+                    .weigher((TokenCacheKey key, ExchangedToken token) -> token.accessToken().length());
+        } else {
+            // Tokenanzahl begrenzen
+            builder.maximumSize(maxSize);
+        }
+        this.cache = builder.build();
+    }
+
+    @Override
+    public ExchangedToken get(TokenCacheKey key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public void put(TokenCacheKey key, ExchangedToken token) {
+        cache.put(key, token);
+    }
+
+    @Override
+    public boolean putIfAbsent(TokenCacheKey key, ExchangedToken token) {
+        return cache.asMap().putIfAbsent(key, token) == null;
+    }
+
+    @Override
+    public boolean replace(TokenCacheKey key, ExchangedToken expected, ExchangedToken token) {
+        return cache.asMap().replace(key, expected, token);
+    }
+
+    @Override
+    public void forEach(BiConsumer<TokenCacheKey, ExchangedToken> action) {
+        cache.asMap().forEach(action);
+    }
+
+}
@@ -0,0 +1,82 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the expiration time (claim {@code exp}) of a JWT
+ * <p>
+ * The signature is not verified, the token was issued by the token endpoint. Only the payload is
+ * decoded and scanned for the claim, no JSON parser is involved.
+ */
+final class JwtExpirationDecoder {
+
+    private static final byte[] EXP_KEY = "\"exp\"".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_DIGITS = 18;
+
+    private JwtExpirationDecoder() {
+    }
+
+    /**
+     * @param token the token
+     * @return the expiration time in epoch milliseconds, or {@code null} if the token is no JWT or has no
+     * expiration time
+     */
+    static Long decode(String token) {
+        var payloadStart = token.indexOf('.') + 1;
+        if (payloadStart == 0) {
+            return null;
+        }
+        var payloadEnd = token.indexOf('.', payloadStart);
+        if (payloadEnd < 0) {
+            return null;
+        }
+
+        byte[] payload;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(payloadStart, payloadEnd));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        for (int i = indexOf(payload, 0); i >= 0; i = indexOf(payload, i + 1)) {
+            var pos = skipWhitespace(payload, i + EXP_KEY.length);
+            if (pos < payload.length && payload[pos] == ':') {
+                return readSeconds(payload, skipWhitespace(payload, pos + 1));
+            }
+            // "exp" als Wert, nicht als Claim
+        }
+        return null;
+    }
+
+    private static Long readSeconds(byte[] payload, int start) {
+        long seconds = 0;
+        var pos = start;
+        while (pos < payload.length && pos - start < MAX_DIGITS && payload[pos] >= '0' && payload[pos] <= '9') {
+            seconds = seconds * 10 + (payload[pos] - '0');
+            pos++;
+        }
+        return pos > start ? TimeUnit.SECONDS.toMillis(seconds) : null;
+    }
+
+    private static int indexOf(byte[] payload, int from) {
+        for (int i = from; i <= payload.length - EXP_KEY.length; i++) {
+            if (Arrays.equals(payload, i, i + EXP_KEY.length, EXP_KEY, 0, EXP_KEY.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] payload, int pos) {
+        while (pos < payload.length && (payload[pos] == ' ' || payload[pos] == '\t' || payload[pos] == '\n' || payload[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+}
@@ -0,0 +1,52 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Storage of the local token cache of a policy instance
+ * <p>
+ * A store evicts tokens when they can no longer be used as stale token and when its capacity is
+ * exceeded. Freshness of the tokens is checked by the {@link TokenCache}.
+ */
+interface LocalTokenStore {
+
+    /**
+     * @param key the cache key
+     * @return the stored token, even if it is stale, or {@code null}
+     */
+    ExchangedToken get(TokenCacheKey key);
+
+    /**
+     * @param key   the cache key
+     * @param token the token to store
+     */
+    void put(TokenCacheKey key, ExchangedToken token);
+
+    /**
+     * Store the token, if no token is stored for the key.
+     *
+     * @param key   the cache key
+     * @param token the token to store
+     * @return whether the token was stored
+     */
+    boolean putIfAbsent(TokenCacheKey key, ExchangedToken token);
+
+    /**
+     * Replace the token, if the key is still mapped to the expected token.
+     *
+     * @param key      the cache key
+     * @param expected the expected stored token
+     * @param token    the new token
+     * @return whether the token was replaced
+     */
+    boolean replace(TokenCacheKey key, ExchangedToken expected, ExchangedToken token);
+
+    /**
+     * Perform the action for each stored token, e.g. to write a snapshot. Tokens stored or removed
+     * concurrently may or may not be included.
+     *
+     * @param action the action
+     */
+    void forEach(BiConsumer<TokenCacheKey, ExchangedToken> action);
+
+}
@@ -0,0 +1,318 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the token bytes in a slab of direct memory
+ * <p>
+ * The slab is split into blocks of {@value #BLOCK_SIZE} bytes, a token occupies a chain of blocks.
+ * Only a small index entry per token stays on the heap. The index is a Caffeine cache weighted by
+ * the number of blocks, so tokens are evicted at their expiry and in (approximately) least recently
+ * used order when the slab is full. Evicted tokens return their blocks to the slab.
+ * <p>
+ * A part of the slab is kept in reserve for tokens stored concurrently. If the slab is nevertheless
+ * full, the token is not cached.
+ */
+final class OffHeapTokenStore implements LocalTokenStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapTokenStore.class);
+
+    static final int BLOCK_SIZE = 256;
+
+    private static final int NO_BLOCK = -1;
+
+    private final ByteBuffer slab;
+
+    /**
+     * Next block of the chain per block
+     */
+    private final int[] nextBlocks;
+
+    /**
+     * Stack of the free blocks
+     */
+    private final int[] freeBlocks;
+
+    private int freeBlockCount;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Cache<TokenCacheKey, Entry> index;
+
+    /**
+     * @param capacity         the capacity of the slab in bytes
+     * @param evictionListener callback invoked for each evicted token
+     */
+    OffHeapTokenStore(long capacity, Consumer<RemovalCause> evictionListener) {
+        var blockCount = (int) Math.min(Math.max(capacity / BLOCK_SIZE, 1), Integer.MAX_VALUE / BLOCK_SIZE);
+        this.slab = ByteBuffer.allocateDirect(blockCount * BLOCK_SIZE);
+        this.nextBlocks = new int[blockCount];
+        this.freeBlocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            freeBlocks[i] = blockCount - 1 - i;
+        }
+        this.freeBlockCount = blockCount;
+
+        this.index = Caffeine.newBuilder()
+                // Ablaufzeit der Tokens
+                .expireAfter(new EntryExpiry())
+                // Reserve fuer gleichzeitig gespeicherte Tokens
+                .maximumWeight(blockCount - blockCount / 16)
+                .weigher((TokenCacheKey key, Entry entry) -> entry.blockCount)
+                // Bloecke sofort freigeben, nicht erst im ForkJoinPool
+                .executor(Runnable::run)
+                .removalListener((TokenCacheKey key, Entry entry, RemovalCause cause) -> {
+                    if (entry != null) {
+                        free(entry);
+                    }
+                    if (cause.wasEvicted()) {
+                        evictionListener.accept(cause);
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    public ExchangedToken get(TokenCacheKey key) {
+        var entry = index.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+
+        var bytes = read(entry);
+        if (bytes == null) {
+            // Zwischenzeitlich verdraengt
+            return null;
+        }
+        return new ExchangedToken(new String(bytes, StandardCharsets.UTF_8), entry.expiresAt, entry.staleUntil,
+                entry.refreshStarted.get());
+    }
+
+    @Override
+    public void put(TokenCacheKey key, ExchangedToken token) {
+        var entry = allocate(token);
+        if (entry != null) {
+            index.put(key, entry);
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(TokenCacheKey key, ExchangedToken token) {
+        if (index.getIfPresent(key) != null) {
+            return false;
+        }
+        var entry = allocate(token);
+        if (entry == null) {
+            return false;
+        }
+        if (index.asMap().putIfAbsent(key, entry) != null) {
+            free(entry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stored token matches the expected token if expiry, stale retention and refresh flag are equal,
+     * the token itself is not compared.
+     */
+    @Override
+    public boolean replace(TokenCacheKey key, ExchangedToken expected, ExchangedToken token) {
+        var current = index.getIfPresent(key);
+        if (current == null || current.expiresAt != expected.expiresAt() || current.staleUntil != expected.staleUntil()) {
+            return false;
+        }
+
+        if (token.accessToken().equals(expected.accessToken())
+                && token.expiresAt() == expected.expiresAt()
+                && token.staleUntil() == expected.staleUntil()) {
+            // Nur das Flag aendern, die Bloecke bleiben unveraendert
+            return current.refreshStarted.compareAndSet(expected.refreshStarted(), token.refreshStarted());
+        }
+
+        if (current.refreshStarted.get() != expected.refreshStarted()) {
+            return false;
+        }
+        var entry = allocate(token);
+        if (entry == null) {
+            return false;
+        }
+        if (!index.asMap().replace(key, current, entry)) {
+            free(entry);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void forEach(BiConsumer<TokenCacheKey, ExchangedToken> action) {
+        index.asMap().forEach((key, entry) -> {
+            var bytes = read(entry);
+            if (bytes != null) {
+                action.accept(key, new ExchangedToken(new String(bytes, StandardCharsets.UTF_8), entry.expiresAt,
+                        entry.staleUntil, entry.refreshStarted.get()));
+            }
+        });
+    }
+
+    /**
+     * @return the number of bytes of the slab in use
+     */
+    long usedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) (nextBlocks.length - freeBlockCount) * BLOCK_SIZE;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Entry allocate(ExchangedToken token) {
+        var bytes = token.accessToken().getBytes(StandardCharsets.UTF_8);
+        var blockCount = Math.max(1, (bytes.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+        lock.writeLock().lock();
+        try {
+            if (freeBlockCount < blockCount) {
+                logDebug("Off-heap token cache is full, token of {} bytes is not cached", bytes.length);
+                return null;
+            }
+
+            var firstBlock = freeBlocks[--freeBlockCount];
+            var block = firstBlock;
+            for (int offset = 0; ; ) {
+                var length = Math.min(BLOCK_SIZE, bytes.length - offset);
+                slab.put(block * BLOCK_SIZE, bytes, offset, length);
+                offset += length;
+                if (offset >= bytes.length) {
+                    nextBlocks[block] = NO_BLOCK;
+                    break;
+                }
+                var next = freeBlocks[--freeBlockCount];
+                nextBlocks[block] = next;
+                block = next;
+            }
+            return new Entry(firstBlock, bytes.length, blockCount, token);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private byte[] read(Entry entry) {
+        var bytes = new byte[entry.length];
+
+        lock.readLock().lock();
+        try {
+            if (entry.freed) {
+                return null;
+            }
+            var block = entry.firstBlock;
+            for (int offset = 0; offset < bytes.length; block = nextBlocks[block]) {
+                var length = Math.min(BLOCK_SIZE, bytes.length - offset);
+                slab.get(block * BLOCK_SIZE, bytes, offset, length);
+                offset += length;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void free(Entry entry) {
+        lock.writeLock().lock();
+        try {
+            if (entry.freed) {
+                return;
+            }
+            entry.freed = true;
+            for (int block = entry.firstBlock; block != NO_BLOCK; block = nextBlocks[block]) {
+                freeBlocks[freeBlockCount++] = block;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void logDebug(String msg, Object... args) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(msg, args);
+        }
+    }
+
+    /**
+     * Index entry of a token stored in the slab
+     */
+    private static final class Entry {
+
+        private final int firstBlock;
+
+        private final int length;
+
+        private final int blockCount;
+
+        private final long expiresAt;
+
+        private final long staleUntil;
+
+        private final AtomicBoolean refreshStarted;
+
+        /**
+         * Whether the blocks have been returned to the slab, guarded by the lock
+         */
+        private boolean freed;
+
+        private Entry(int firstBlock, int length, int blockCount, ExchangedToken token) {
+            this.firstBlock = firstBlock;
+            this.length = length;
+            this.blockCount = blockCount;
+            this.expiresAt = token.expiresAt();
+            this.staleUntil = token.staleUntil();
+            this.refreshStarted = new AtomicBoolean(token.refreshStarted());
+        }
+
+    }
+
+    /**
+     * Expires the index entries like {@link ExchangedTokenExpiry}
+     */
+    private static final class EntryExpiry implements Expiry<TokenCacheKey, Entry> {
+
+        @Override
+        public long expireAfterCreate(TokenCacheKey key, Entry entry, long currentTime) {
+            return remainingRetentionNanos(entry);
+        }
+
+        @Override
+        public long expireAfterUpdate(TokenCacheKey key, Entry entry, long currentTime, long currentDuration) {
+            return remainingRetentionNanos(entry);
+        }
+
+        @Override
+        public long expireAfterRead(TokenCacheKey key, Entry entry, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+
+        private static long remainingRetentionNanos(Entry entry) {
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(0, entry.staleUntil - System.currentTimeMillis()));
+        }
+
+    }
+
+}
@@ -0,0 +1,192 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Stores the tokens in Caffeine caches on the heap, one partition per client the incoming tokens were
+ * issued for (see {@link TokenCacheKey#partition()})
+ * <p>
+ * Each partition is bounded by the quota of a single client, so a client whose tokens rotate quickly
+ * only evicts its own tokens. If all partitions together exceed the capacity of the store, the coldest
+ * tokens of the largest partition are evicted first (fair eviction), so clients with few tokens keep
+ * them.
+ * <p>
+ * Like the {@link HeapTokenStore}, the store is bounded either by the number of tokens or by their
+ * total size in bytes.
+ */
+final class PartitionedTokenStore implements LocalTokenStore {
+
+    private static final String DEFAULT_PARTITION = "";
+
+    private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    private final boolean weighted;
+
+    private final long capacity;
+
+    private final long partitionCapacity;
+
+    private final Consumer<RemovalCause> evictionListener;
+
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * @param maxSize          the maximum number of tokens, if not bounded by weight
+     * @param maxWeight        the maximum total size of the tokens in bytes, 0 to bound the number of tokens
+     * @param partitionQuota   the maximum share of a partition in percent of the capacity
+     * @param evictionListener callback invoked for each evicted token
+     */
+    PartitionedTokenStore(long maxSize, long maxWeight, int partitionQuota, Consumer<RemovalCause> evictionListener) {
+        this.weighted = maxWeight > 0;
+        this.capacity = weighted ? maxWeight : maxSize;
+        this.partitionCapacity = Math.max(1, capacity * Math.min(Math.max(partitionQuota, 1), 100) / 100);
+        this.evictionListener = evictionListener;
+    }
+
+    @Override
+    public ExchangedToken get(TokenCacheKey key) {
+        var partition = partitions.get(partitionName(key));
+        return partition != null ? partition.cache.getIfPresent(key) : null;
+    }
+
+    @Override
+    public void put(TokenCacheKey key, ExchangedToken token) {
+        // Atomar mit dem Entfernen leerer Partitionen
+        partitions.compute(partitionName(key), (name, partition) -> {
+            var current = partition != null ? partition : new Partition();
+            var previous = current.cache.asMap().put(key, token);
+            current.resize(weigh(token) - (previous != null ? weigh(previous) : 0));
+            return current;
+        });
+        evictIfFull();
+    }
+
+    @Override
+    public boolean putIfAbsent(TokenCacheKey key, ExchangedToken token) {
+        var stored = new AtomicBoolean();
+        partitions.compute(partitionName(key), (name, partition) -> {
+            var current = partition != null ? partition : new Partition();
+            if (current.cache.asMap().putIfAbsent(key, token) == null) {
+                current.resize(weigh(token));
+                stored.set(true);
+            }
+            return current;
+        });
+        if (stored.get()) {
+            evictIfFull();
+        }
+        return stored.get();
+    }
+
+    @Override
+    public boolean replace(TokenCacheKey key, ExchangedToken expected, ExchangedToken token) {
+        var partition = partitions.get(partitionName(key));
+        if (partition == null || !partition.cache.asMap().replace(key, expected, token)) {
+            return false;
+        }
+        partition.resize(weigh(token) - weigh(expected));
+        return true;
+    }
+
+    @Override
+    public void forEach(BiConsumer<TokenCacheKey, ExchangedToken> action) {
+        partitions.values().forEach(partition -> partition.cache.asMap().forEach(action));
+    }
+
+    /**
+     * @return the number of partitions
+     */
+    int partitionCount() {
+        return partitions.size();
+    }
+
+    /**
+     * Evict the coldest tokens of the largest partition until the store is within its capacity.
+     */
+    private void evictIfFull() {
+        while (size.get() > capacity) {
+            Map.Entry<String, Partition> largest = null;
+            for (var entry : partitions.entrySet()) {
+                if (largest == null || entry.getValue().size.get() > largest.getValue().size.get()) {
+                    largest = entry;
+                }
+            }
+            if (largest == null || !largest.getValue().evictColdest()) {
+                return;
+            }
+            partitions.computeIfPresent(largest.getKey(), (name, partition) -> partition.size.get() > 0 ? partition : null);
+        }
+    }
+
+    private long weigh(ExchangedToken token) {
+        return weighted ? token.accessToken().length() : 1;
+    }
+
+    private static String partitionName(TokenCacheKey key) {
+        return key.partition() != null ? key.partition() : DEFAULT_PARTITION;
+    }
+
+    /**
+     * Tokens of one client
+     */
+    private final class Partition {
+
+        private final Cache<TokenCacheKey, ExchangedToken> cache;
+
+        private final AtomicLong size = new AtomicLong();
+
+        private Partition() {
+            var builder = Caffeine.newBuilder()
+                    // Wartung im aufrufenden Thread, damit die Groessen sofort stimmen
+                    .executor(Runnable::run)
+                    .expireAfter(new ExchangedTokenExpiry())
+                    .evictionListener((TokenCacheKey key, ExchangedToken token, RemovalCause cause) -> {
+                        resize(-weigh(token));
+                        evictionListener.accept(cause);
+                    });
+            if (weighted) {
+                builder.maximumWeight(partitionCapacity)
+                        .weigher((TokenCacheKey key, ExchangedToken token) -> token.accessToken().length());
+            } else {
+                builder.maximumSize(partitionCapacity);
+            }
+            this.cache = builder.build();
+        }
+
+        private void resize(long delta) {
+            size.addAndGet(delta);
+            PartitionedTokenStore.this.size.addAndGet(delta);
+        }
+
+        /**
+         * @return whether a token was evicted
+         */
+        private boolean evictColdest() {
+            var coldest = cache.policy().eviction()
+                    .map(eviction -> eviction.coldest(1))
+                    .orElse(Map.of());
+            if (coldest.isEmpty()) {
+                return false;
+            }
+            coldest.forEach((key, token) -> {
+                if (cache.asMap().remove(key, token)) {
+                    resize(-weigh(token));
+                    evictionListener.accept(RemovalCause.SIZE);
+                }
+            });
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer for many producers and a single consumer
+ * <p>
+ * Producers claim a slot with a compare-and-set on the head sequence and publish the element into
+ * it, they never block: if the buffer is full, the element is dropped and counted. The consumer
+ * takes the elements in the order of their claims; an element that is claimed but not yet published
+ * is waited for by the next {@link #poll()}.
+ *
+ * @param <E> the element type
+ */
+final class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity the capacity, rounded up to a power of two
+     */
+    RingBuffer(int capacity) {
+        var size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Add the element, without blocking. Called by any thread.
+     *
+     * @param element the element
+     * @return whether the element was added, {@code false} if the buffer is full
+     */
+    boolean offer(E element) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        slots.lazySet((int) sequence & mask, element);
+        return true;
+    }
+
+    /**
+     * Take the next element. Only called by the consumer thread.
+     *
+     * @return the next element, or {@code null} if the buffer is empty or the next element is not yet published
+     */
+    E poll() {
+        var sequence = tail.get();
+        var index = (int) sequence & mask;
+        var element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        // Slot freigeben, bevor er fuer Produzenten wieder verfuegbar wird
+        slots.lazySet(index, null);
+        tail.lazySet(sequence + 1);
+        return element;
+    }
+
+    /**
+     * @return whether no element is claimed, i.e. neither published nor about to be published
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return the capacity
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of elements dropped because the buffer was full
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+}
@@ -0,0 +1,80 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight execution of asynchronous calls
+ * <p>
+ * Concurrent calls for the same key are coalesced: only the first caller executes the call,
+ * all callers that arrive while the call is in flight are resumed with the same result (or
+ * the same failure). Each waiting caller is resumed on its own Vert.x context.
+ *
+ * @param <K> the key type
+ * @param <V> the result type
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, Future<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final Runnable onCoalesced;
+
+    /**
+     * @param onCoalesced callback invoked for each call that is coalesced with a call in flight
+     */
+    SingleFlight(Runnable onCoalesced) {
+        this.onCoalesced = onCoalesced;
+    }
+
+    /**
+     * Execute the given call, unless a call for the same key is already in flight.
+     *
+     * @param key  the key identifying identical calls
+     * @param call the call to execute
+     * @return the result of the call in flight or of the new call
+     */
+    Future<V> execute(K key, Supplier<Future<V>> call) {
+        var promise = Promise.<V>promise();
+        var existing = inFlight.putIfAbsent(key, promise.future());
+        if (existing != null) {
+            onCoalesced.run();
+            return resumeOnCurrentContext(existing);
+        }
+
+        Future<V> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = Future.failedFuture(e);
+        }
+
+        result.onComplete(ar -> {
+            inFlight.remove(key, promise.future());
+            promise.handle(ar);
+        });
+        return promise.future();
+    }
+
+    /**
+     * @return the number of calls currently in flight
+     */
+    int size() {
+        return inFlight.size();
+    }
+
+    private Future<V> resumeOnCurrentContext(Future<V> future) {
+        var context = Vertx.currentContext();
+        if (context == null) {
+            return future;
+        }
+        var promise = Promise.<V>promise();
+        future.onComplete(ar -> context.runOnContext(v -> promise.handle(ar)));
+        return promise.future();
+    }
+
+}
@@ -0,0 +1,301 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import de.udocirkel.example.kcgravitee.gravitee.policy.cache.SharedTokenCache;
+import de.udocirkel.example.kcgravitee.gravitee.policy.cache.SharedTokenCacheProvider;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.time.Duration;
+
+import java.util.HexFormat;
+import java.util.ServiceLoader;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two-tier cache for exchanged tokens
+ * <p>
+ * The first tier is a local cache of the policy instance, on the heap or off-heap, optionally
+ * partitioned by client (see {@link LocalTokenStore}). The optional second tier is a
+ * {@link SharedTokenCache} used by all gateway nodes:
+ * <ul>
+ * <li>read-through: tokens missing in the local cache are looked up in the shared cache</li>
+ * <li>write-through: newly exchanged tokens are also written to the shared cache</li>
+ * </ul>
+ * The keys in the shared cache are prefixed with a digest of the identity of the token cache (token
+ * endpoint, client, scopes and audiences), so policies exchanging at different token endpoints or
+ * with different clients never get each other's tokens, even for the same incoming token and scope.
+ * <p>
+ * In addition, deterministic failures of token exchanges are cached locally for a short time
+ * (negative caching), so that requests with an unusable incoming token do not reach the token
+ * endpoint again.
+ */
+final class TokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCache.class);
+
+    private static final long MEBIBYTE = 1024 * 1024;
+
+    private static final long NEGATIVE_CACHE_MAX_SIZE = 10_000;
+
+    private final LocalTokenStore localCache;
+
+    private final SharedTokenCache sharedCache;
+
+    private final String sharedCacheNamespace;
+
+    private final boolean sharedCacheReadThrough;
+
+    private final boolean sharedCacheWriteThrough;
+
+    private final Cache<TokenCacheKey, TokenExchangeException> failures;
+
+    TokenCache(TokenExchangePolicyConfiguration configuration, Consumer<RemovalCause> evictionListener) {
+        this(loadSharedCache(configuration), configuration, evictionListener);
+    }
+
+    TokenCache(SharedTokenCache sharedCache, TokenExchangePolicyConfiguration configuration) {
+        this(sharedCache, configuration, cause -> {
+        });
+    }
+
+    /**
+     * @param sharedCache      the shared cache, or {@code null}
+     * @param configuration    the policy configuration
+     * @param evictionListener callback invoked for each token evicted from the local cache
+     */
+    TokenCache(SharedTokenCache sharedCache, TokenExchangePolicyConfiguration configuration, Consumer<RemovalCause> evictionListener) {
+        this.localCache = createLocalCache(configuration, evictionListener);
+        this.sharedCache = sharedCache;
+        this.sharedCacheNamespace = digest(cacheId(configuration));
+        this.sharedCacheReadThrough = sharedCache != null && configuration.isSharedCacheReadThrough();
+        this.sharedCacheWriteThrough = sharedCache != null && configuration.isSharedCacheWriteThrough();
+        this.failures = configuration.getNegativeCacheDuration() > 0
+                ? Caffeine.newBuilder()
+                        .expireAfterWrite(Duration.ofSeconds(configuration.getNegativeCacheDuration()))
+                        .maximumSize(NEGATIVE_CACHE_MAX_SIZE)
+                        .build()
+                : null;
+    }
+
+    /**
+     * Get the token from the local cache.
+     *
+     * @param key the cache key
+     * @return the cached token, or {@code null} if no token or only a stale token is cached
+     */
+    ExchangedToken getIfPresent(TokenCacheKey key) {
+        var token = localCache.get(key);
+        if (token == null || token.remainingLifetime(System.currentTimeMillis()) == 0) {
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * Get the token from the local cache, even if it is stale.
+     *
+     * @param key the cache key
+     * @return the cached token, or {@code null}
+     */
+    ExchangedToken getStale(TokenCacheKey key) {
+        return localCache.get(key);
+    }
+
+    /**
+     * Get the token from the shared cache, if read-through is enabled. A token found in the shared
+     * cache is put into the local cache.
+     *
+     * The expiry of a token in the shared cache is checked against the claim 'exp' of the token, as
+     * it was calculated with the clock of another gateway node.
+     *
+     * @param key             the cache key
+     * @param tokenExpirySkew the time in milliseconds before the expiry of the token, from which it is no longer used
+     * @param context         the context on which the result is completed
+     * @return the cached token, or {@code null} if read-through is disabled or no valid token is cached
+     */
+    Future<ExchangedToken> getFromSharedCache(TokenCacheKey key, long tokenExpirySkew, Context context) {
+        if (!sharedCacheReadThrough) {
+            return Future.succeededFuture();
+        }
+
+        return Future.fromCompletionStage(sharedCache.get(sharedCacheKey(key)), context)
+                .map(entry -> {
+                    if (entry == null) {
+                        return null;
+                    }
+                    var expiresAt = entry.expiresAt();
+                    var validUntil = JwtExpirationDecoder.decode(entry.accessToken());
+                    if (validUntil != null) {
+                        expiresAt = Math.min(expiresAt, validUntil - tokenExpirySkew);
+                    }
+                    if (expiresAt <= System.currentTimeMillis()) {
+                        return null;
+                    }
+                    var token = new ExchangedToken(entry.accessToken(), expiresAt);
+                    localCache.put(key, token);
+                    return token;
+                })
+                .otherwise(throwable -> {
+                    logWarn("Lookup in shared token cache failed: {}", throwable.getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * @return whether tokens missing in the local cache are looked up in the shared cache
+     */
+    boolean readsThroughSharedCache() {
+        return sharedCacheReadThrough;
+    }
+
+    /**
+     * Put the token into the local cache, and into the shared cache if write-through is enabled.
+     *
+     * @param key   the cache key
+     * @param token the token to cache
+     */
+    void put(TokenCacheKey key, ExchangedToken token) {
+        localCache.put(key, token);
+
+        if (sharedCacheWriteThrough) {
+            sharedCache.put(sharedCacheKey(key), new SharedTokenCache.Entry(token.accessToken(), token.expiresAt()))
+                    .whenComplete((v, throwable) -> {
+                        if (throwable != null) {
+                            logWarn("Write to shared token cache failed: {}", throwable.getMessage());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Replace the token in the local cache, if it is still mapped to the expected token.
+     *
+     * @param key      the cache key
+     * @param expected the expected cached token
+     * @param token    the new token
+     * @return whether the token was replaced
+     */
+    boolean replace(TokenCacheKey key, ExchangedToken expected, ExchangedToken token) {
+        return localCache.replace(key, expected, token);
+    }
+
+    /**
+     * Put a token restored from a snapshot into the local cache only. The snapshot is restored while
+     * the token cache is already in use, a token cached in the meantime is newer and is kept.
+     *
+     * @param key   the cache key
+     * @param token the token
+     * @return whether the token was restored
+     */
+    boolean restore(TokenCacheKey key, ExchangedToken token) {
+        return localCache.putIfAbsent(key, token);
+    }
+
+    /**
+     * Perform the action for each token of the local cache, even if it is stale.
+     *
+     * @param action the action
+     */
+    void forEachLocal(BiConsumer<TokenCacheKey, ExchangedToken> action) {
+        localCache.forEach(action);
+    }
+
+    /**
+     * Get the cached failure of a token exchange.
+     *
+     * @param key the cache key
+     * @return the failure, or {@code null} if no failure is cached or negative caching is disabled
+     */
+    TokenExchangeException getFailure(TokenCacheKey key) {
+        return failures != null ? failures.getIfPresent(key) : null;
+    }
+
+    /**
+     * Cache the deterministic failure of a token exchange, if negative caching is enabled.
+     *
+     * @param key     the cache key
+     * @param failure the failure
+     */
+    void putFailure(TokenCacheKey key, TokenExchangeException failure) {
+        if (failures != null) {
+            failures.put(key, failure);
+        }
+    }
+
+    /**
+     * @param configuration the policy configuration
+     * @return the identity of the token cache: token endpoint, client, scopes and audiences
+     */
+    static String cacheId(TokenExchangePolicyConfiguration configuration) {
+        return configuration.getTokenEndpointUrl() + ' ' + configuration.getTokenExchangeClientId() + ' '
+                + TokenExchangeTarget.of(configuration).id();
+    }
+
+    /**
+     * @param value the value
+     * @return the first 128 bits of the SHA-256 digest of the value as hex
+     */
+    static String digest(String value) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    /**
+     * @return the key in the shared cache, within the namespace of this token cache
+     */
+    String sharedCacheKey(TokenCacheKey key) {
+        return sharedCacheNamespace + ':' + key;
+    }
+
+    private static LocalTokenStore createLocalCache(TokenExchangePolicyConfiguration configuration, Consumer<RemovalCause> evictionListener) {
+        if (configuration.isTokenCacheOffHeapEnabled()) {
+            return new OffHeapTokenStore(configuration.getTokenCacheOffHeapCapacity() * MEBIBYTE, evictionListener);
+        }
+        if (configuration.isTokenCachePartitioningEnabled()) {
+            return new PartitionedTokenStore(configuration.getTokenCacheMaxSize(), configuration.getTokenCacheMaxWeight(),
+                    configuration.getTokenCachePartitionQuota(), evictionListener);
+        }
+        return new HeapTokenStore(configuration.getTokenCacheMaxSize(), configuration.getTokenCacheMaxWeight(), evictionListener);
+    }
+
+    private static SharedTokenCache loadSharedCache(TokenExchangePolicyConfiguration configuration) {
+        var type = configuration.getSharedCacheType();
+        if (type == null || type.isBlank()) {
+            return null;
+        }
+
+        for (var provider : ServiceLoader.load(SharedTokenCacheProvider.class, TokenCache.class.getClassLoader())) {
+            if (type.equals(provider.type())) {
+                return provider.create(configuration);
+            }
+        }
+
+        logWarn("No shared token cache of type '{}' available, only the local token cache is used", type);
+        return null;
+    }
+
+    private static void logWarn(String msg, Object... args) {
+        if (LOG.isWarnEnabled()) {
+            LOG.warn(msg, args);
+        }
+    }
+
+}
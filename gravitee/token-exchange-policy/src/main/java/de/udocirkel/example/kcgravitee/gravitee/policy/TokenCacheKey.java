@@ -0,0 +1,192 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Key of the token cache
+ * <p>
+ * The key is the SHA-256 digest of the incoming token, truncated to 128 bits and combined (XOR) with
+ * the digest of the target scope ({@link Target}). In contrast to a 32-bit hash code, collisions of keys
+ * for different incoming tokens are practically impossible, so a cached token is never handed out for a
+ * different incoming token. The digest of the target scope is computed once per policy instance, and the
+ * key of the same incoming token for another target scope follows from the key without computing the
+ * digest of the token again (see {@link #withTarget}).
+ * <p>
+ * The digest is computed with a per-thread {@link MessageDigest} and scratch buffer.
+ * <p>
+ * The key also names the partition of the local token cache the token is stored in, the client the
+ * incoming token was issued for. The partition is not part of the digest, it follows from the
+ * incoming token.
+ *
+ * @param high      the first 64 bits of the digest
+ * @param low       the second 64 bits of the digest
+ * @param partition the partition of the local token cache, or {@code null} if the cache is not partitioned
+ */
+record TokenCacheKey(long high, long low, String partition) {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int DIGEST_LENGTH = 32;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final ThreadLocal<KeyDigest> KEY_DIGEST = ThreadLocal.withInitial(KeyDigest::new);
+
+    /**
+     * Create the cache key for the given incoming token and target scope.
+     *
+     * @param token       the incoming token
+     * @param targetScope the target scope
+     * @return the cache key
+     */
+    static TokenCacheKey of(String token, String targetScope) {
+        return of(token, targetScope, null);
+    }
+
+    /**
+     * Create the cache key for the given incoming token and target scope, in the given partition.
+     *
+     * @param token       the incoming token
+     * @param targetScope the target scope
+     * @param partition   the partition of the local token cache, or {@code null}
+     * @return the cache key
+     */
+    static TokenCacheKey of(String token, String targetScope, String partition) {
+        return of(token, Target.of(targetScope), partition);
+    }
+
+    /**
+     * Create the cache key for the given incoming token and target, in the given partition.
+     *
+     * @param token     the incoming token
+     * @param target    the digest of the target scope
+     * @param partition the partition of the local token cache, or {@code null}
+     * @return the cache key
+     */
+    static TokenCacheKey of(String token, Target target, String partition) {
+        var keyDigest = KEY_DIGEST.get();
+        keyDigest.digest(token);
+        return new TokenCacheKey(keyDigest.high ^ target.high, keyDigest.low ^ target.low, partition);
+    }
+
+    /**
+     * Get the cache key of the same incoming token for another target.
+     *
+     * @param current   the target of this key
+     * @param other     the other target
+     * @param partition the partition of the local token cache, or {@code null}
+     * @return the cache key for the other target
+     */
+    TokenCacheKey withTarget(Target current, Target other, String partition) {
+        return new TokenCacheKey(high ^ current.high ^ other.high, low ^ current.low ^ other.low, partition);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+
+    /**
+     * Digest of a target scope, truncated to 128 bits
+     *
+     * @param high the first 64 bits of the digest
+     * @param low  the second 64 bits of the digest
+     */
+    record Target(long high, long low) {
+
+        /**
+         * @param targetScope the target scope
+         * @return the digest of the target scope
+         */
+        static Target of(String targetScope) {
+            var keyDigest = KEY_DIGEST.get();
+            keyDigest.digest(targetScope);
+            return new Target(keyDigest.high, keyDigest.low);
+        }
+
+    }
+
+    private static final class KeyDigest {
+
+        private final MessageDigest messageDigest;
+
+        private final byte[] result = new byte[DIGEST_LENGTH];
+
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        private long high;
+
+        private long low;
+
+        private KeyDigest() {
+            try {
+                messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(DIGEST_ALGORITHM + " not supported", e);
+            }
+        }
+
+        /**
+         * Compute the digest of the value into {@link #high} and {@link #low}.
+         */
+        private void digest(String value) {
+            messageDigest.reset();
+            update(value);
+            try {
+                messageDigest.digest(result, 0, DIGEST_LENGTH);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            high = readLong(result, 0);
+            low = readLong(result, 8);
+        }
+
+        /**
+         * Feed the length-prefixed UTF-8 bytes of the value into the digest, so that
+         * {@code null} and the empty string result in different digests.
+         */
+        private void update(String value) {
+            if (value == null) {
+                updateLength(-1);
+                return;
+            }
+
+            var length = value.length();
+            if (buffer.length < length) {
+                buffer = new byte[Integer.highestOneBit(length) << 1];
+            }
+            for (int i = 0; i < length; i++) {
+                var c = value.charAt(i);
+                if (c >= 0x80) {
+                    // Nicht-ASCII-Zeichen (in JWTs nicht vorgesehen)
+                    var bytes = value.getBytes(StandardCharsets.UTF_8);
+                    updateLength(bytes.length);
+                    messageDigest.update(bytes);
+                    return;
+                }
+                buffer[i] = (byte) c;
+            }
+            updateLength(length);
+            messageDigest.update(buffer, 0, length);
+        }
+
+        private void updateLength(int length) {
+            messageDigest.update((byte) (length >>> 24));
+            messageDigest.update((byte) (length >>> 16));
+            messageDigest.update((byte) (length >>> 8));
+            messageDigest.update((byte) length);
+        }
+
+        private static long readLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                value = (value << 8) | (bytes[i] & 0xFF);
+            }
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,404 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.lang.ref.Cleaner;
+
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token caches of the gateway, shared by all policy instances
+ * <p>
+ * Policy instances exchanging tokens at the same token endpoint, with the same client and for the
+ * same scopes and audiences (see {@link TokenExchangeTarget}) and with the same cache settings get the same token cache.
+ * The registry is held by the class loader of the policy plugin, so the cached tokens are kept if an API is redeployed.
+ * <p>
+ * A token cache is released when the last policy instance using it releases its {@link Lease}, e.g. after
+ * its API has been undeployed or redeployed with other cache settings. A lease that is not released
+ * explicitly is released by a {@link Cleaner} as soon as its policy instance has been garbage collected.
+ * <p>
+ * For each token cache, the registry keeps the token caches of the same token endpoint and client whose
+ * target covers its target (see {@link TokenExchangeTarget#covers}), so that their tokens are also used
+ * for it. They are worked out when a token cache is registered or released, not with each lookup. A
+ * covering token cache is only used while it is registered, i.e. while a policy instance requesting the
+ * further scopes holds its lease: after the API of that policy instance has been undeployed, its tokens
+ * are no longer used for other policy instances.
+ * <p>
+ * A new token cache is created outside of the map of the registry, so that neither the shared cache
+ * lookup nor the allocation of an off-heap cache blocks the map. If two policy instances create the same
+ * token cache concurrently, the token cache of the first one is registered and the other one is discarded.
+ * <p>
+ * If enabled, each token cache is written to an encrypted snapshot file periodically and when the
+ * gateway shuts down, and restored from it when the token cache is created, e.g. after a restart
+ * of the gateway. Snapshots are read and written on a separate thread, never on the event loop.
+ */
+final class TokenCacheRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCacheRegistry.class);
+
+    private static final ConcurrentMap<Key, Registration> TOKEN_CACHES = new ConcurrentHashMap<>();
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Serializes the updates of the covering token caches
+     */
+    private static final Object COVERING_LOCK = new Object();
+
+    private static final String SNAPSHOT_FILE_PREFIX = "token-cache-";
+    private static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+
+    private TokenCacheRegistry() {
+    }
+
+    /**
+     * Get the token cache for the configuration, create it if necessary. The token cache is held for
+     * the owner until the lease is released or the owner is no longer reachable.
+     *
+     * @param owner         the policy instance using the token cache
+     * @param configuration the policy configuration
+     * @return the lease of the token cache
+     */
+    static Lease acquire(Object owner, TokenExchangePolicyConfiguration configuration) {
+        var key = new Key(configuration.getTokenEndpointUrl(), configuration.getTokenExchangeClientId(),
+                TokenExchangeTarget.of(configuration).id(), Settings.of(configuration));
+
+        var registration = TOKEN_CACHES.computeIfPresent(key, (k, current) -> {
+            current.references++;
+            return current;
+        });
+        if (registration == null) {
+            var created = new Registration(key, configuration);
+            registration = TOKEN_CACHES.compute(key, (k, current) -> {
+                var acquired = current != null ? current : created;
+                acquired.references++;
+                return acquired;
+            });
+            if (registration == created) {
+                created.start();
+                updateCoveringTokenCaches(key);
+            } else {
+                logDebug("Token cache for target {} was created concurrently, discarded", key.target());
+            }
+        }
+
+        var acquired = registration;
+        // Die Aktion darf den Owner nicht referenzieren
+        return new Lease(acquired, CLEANER.register(owner, () -> release(key, acquired)));
+    }
+
+    /**
+     * Work out the covering token caches of all token caches of the same token endpoint and client.
+     */
+    private static void updateCoveringTokenCaches(Key changed) {
+        synchronized (COVERING_LOCK) {
+            var registrations = new ArrayList<Registration>();
+            TOKEN_CACHES.forEach((key, registration) -> {
+                if (Objects.equals(key.tokenEndpointUrl(), changed.tokenEndpointUrl())
+                        && Objects.equals(key.clientId(), changed.clientId())) {
+                    registrations.add(registration);
+                }
+            });
+            for (var registration : registrations) {
+                var covering = new ArrayList<CoveringTokenCache>();
+                for (var other : registrations) {
+                    // Auch derselbe Target mit anderen Cache-Einstellungen
+                    if (other != registration && other.target.covers(registration.target)) {
+                        covering.add(other.covering);
+                    }
+                }
+                registration.coveringTokenCaches = List.copyOf(covering);
+            }
+        }
+    }
+
+    private static void release(Key key, Registration registration) {
+        var remaining = TOKEN_CACHES.computeIfPresent(key, (k, current) -> {
+            if (current != registration || --current.references > 0) {
+                return current;
+            }
+            logDebug("Token cache for target {} is no longer used and released", k.target());
+            current.close();
+            return null;
+        });
+        if (remaining == null) {
+            updateCoveringTokenCaches(key);
+            if (TOKEN_CACHES.isEmpty()) {
+                // Keine Policy-Instanz mehr, z.B. nach dem Entladen des Plugins
+                TokenExchangeAuditLog.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return the number of token caches
+     */
+    static int size() {
+        return TOKEN_CACHES.size();
+    }
+
+    /**
+     * Remove all token caches.
+     */
+    static void clear() {
+        TOKEN_CACHES.values().removeIf(registration -> {
+            registration.close();
+            return true;
+        });
+        TokenExchangeAuditLog.shutdown();
+    }
+
+    /**
+     * Write the snapshots of all token caches, e.g. when the gateway shuts down.
+     */
+    static void writeSnapshots() {
+        TOKEN_CACHES.values().forEach(Registration::writeSnapshot);
+    }
+
+    private static TokenCacheSnapshot createSnapshot(Key key, TokenExchangePolicyConfiguration configuration) {
+        if (!configuration.isTokenCacheSnapshotEnabled()) {
+            return null;
+        }
+
+        var snapshotKey = configuration.getTokenCacheSnapshotKey();
+        if (snapshotKey == null || snapshotKey.isBlank()) {
+            logWarn("Token cache snapshot is enabled without a snapshot key, no snapshot is written");
+            return null;
+        }
+
+        var directory = configuration.getTokenCacheSnapshotDirectory();
+        if (directory == null || directory.isBlank()) {
+            directory = System.getProperty("java.io.tmpdir");
+        }
+        // Dieselbe Identitaet wie der Namensraum im verteilten Cache, je Cache-Einstellungen eine Datei
+        var cacheId = TokenCache.cacheId(configuration);
+        var file = Path.of(directory, SNAPSHOT_FILE_PREFIX + TokenCache.digest(cacheId + ' ' + key.settings()) + SNAPSHOT_FILE_SUFFIX);
+        try {
+            return new TokenCacheSnapshot(file, Base64.getDecoder().decode(snapshotKey.trim()), cacheId);
+        } catch (IllegalArgumentException e) {
+            logWarn("Invalid token cache snapshot key, no snapshot is written: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void logDebug(String msg, Object... args) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(msg, args);
+        }
+    }
+
+    private static void logInfo(String msg, Object... args) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info(msg, args);
+        }
+    }
+
+    private static void logWarn(String msg, Object... args) {
+        if (LOG.isWarnEnabled()) {
+            LOG.warn(msg, args);
+        }
+    }
+
+    /**
+     * Use of a token cache by a policy instance
+     */
+    static final class Lease {
+
+        private final Registration registration;
+
+        private final TokenCache tokenCache;
+
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease(Registration registration, Cleaner.Cleanable cleanable) {
+            this.registration = registration;
+            this.tokenCache = registration.tokenCache;
+            this.cleanable = cleanable;
+        }
+
+        /**
+         * @return the token cache
+         */
+        TokenCache tokenCache() {
+            return tokenCache;
+        }
+
+        /**
+         * @return the token caches of the same token endpoint and client whose tokens can also be used, as
+         * their target covers the target of the token cache
+         */
+        List<CoveringTokenCache> coveringTokenCaches() {
+            return registration.coveringTokenCaches;
+        }
+
+        /**
+         * Release the token cache for the policy instance. Only the first call releases it, also the
+         * {@link Cleaner} does not release it again.
+         */
+        void release() {
+            cleanable.clean();
+        }
+
+    }
+
+    private record Key(String tokenEndpointUrl, String clientId, String target, Settings settings) {
+    }
+
+    /**
+     * Token cache whose tokens cover the target of another policy instance
+     *
+     * @param target      the digest of the target of the token cache, for the cache key
+     * @param partitioned whether the token cache is partitioned by client
+     * @param tokenCache  the token cache
+     */
+    record CoveringTokenCache(TokenCacheKey.Target target, boolean partitioned, TokenCache tokenCache) {
+    }
+
+    /**
+     * Settings of the configuration a token cache is created with
+     */
+    private record Settings(String sharedCacheType, boolean sharedCacheReadThrough, boolean sharedCacheWriteThrough,
+                            boolean offHeapEnabled, int offHeapCapacity, long maxSize, long maxWeight,
+                            boolean partitioningEnabled, int partitionQuota, int negativeCacheDuration, boolean snapshotEnabled, String snapshotDirectory,
+                            String snapshotKey, int snapshotInterval) {
+
+        private static Settings of(TokenExchangePolicyConfiguration configuration) {
+            return new Settings(configuration.getSharedCacheType(),
+                    configuration.isSharedCacheReadThrough(),
+                    configuration.isSharedCacheWriteThrough(),
+                    configuration.isTokenCacheOffHeapEnabled(),
+                    configuration.getTokenCacheOffHeapCapacity(),
+                    configuration.getTokenCacheMaxSize(),
+                    configuration.getTokenCacheMaxWeight(),
+                    configuration.isTokenCachePartitioningEnabled(),
+                    configuration.getTokenCachePartitionQuota(),
+                    configuration.getNegativeCacheDuration(),
+                    configuration.isTokenCacheSnapshotEnabled(),
+                    configuration.getTokenCacheSnapshotDirectory(),
+                    configuration.getTokenCacheSnapshotKey(),
+                    configuration.getTokenCacheSnapshotInterval());
+        }
+
+    }
+
+    private static final class Registration {
+
+        private final TokenExchangeTarget target;
+
+        private final TokenCache tokenCache;
+
+        /**
+         * The token cache as covering token cache of other token caches
+         */
+        private final CoveringTokenCache covering;
+
+        /**
+         * The token caches covering this token cache, only changed with the covering lock held
+         */
+        private volatile List<CoveringTokenCache> coveringTokenCaches = List.of();
+
+        private final TokenCacheSnapshot snapshot;
+
+        private final int snapshotInterval;
+
+        private ScheduledFuture<?> snapshotTask;
+
+        private boolean closed;
+
+        /**
+         * Number of policy instances using the token cache, only changed within the compute functions of the map
+         */
+        private int references;
+
+        private Registration(Key key, TokenExchangePolicyConfiguration configuration) {
+            this.target = TokenExchangeTarget.of(configuration);
+            this.tokenCache = new TokenCache(configuration, TokenExchangeMetrics.cacheEvictions(
+                    TokenCache.digest(TokenCache.cacheId(configuration)), configuration.getTargetScope()));
+            this.covering = new CoveringTokenCache(TokenCacheKey.Target.of(key.target()),
+                    key.settings().partitioningEnabled(), tokenCache);
+            this.snapshot = createSnapshot(key, configuration);
+            this.snapshotInterval = configuration.getTokenCacheSnapshotInterval();
+        }
+
+        /**
+         * Restore the snapshot of the registered token cache and write it periodically.
+         */
+        private synchronized void start() {
+            if (snapshot == null || closed) {
+                return;
+            }
+            // Wiederherstellen vor dem ersten periodischen Schreiben, derselbe Thread
+            SnapshotScheduler.EXECUTOR.execute(this::restoreSnapshot);
+            if (snapshotInterval > 0) {
+                snapshotTask = SnapshotScheduler.EXECUTOR.scheduleWithFixedDelay(this::writeSnapshot, snapshotInterval,
+                        snapshotInterval, TimeUnit.SECONDS);
+            }
+        }
+
+        private void restoreSnapshot() {
+            try {
+                var restored = snapshot.restore(tokenCache);
+                if (restored > 0) {
+                    logInfo("{} tokens restored from token cache snapshot {}", restored, snapshot.file());
+                }
+            } catch (Exception e) {
+                logWarn("Token cache snapshot {} could not be restored: {}", snapshot.file(), e.getMessage());
+            }
+        }
+
+        private void writeSnapshot() {
+            if (snapshot == null) {
+                return;
+            }
+            try {
+                var written = snapshot.write(tokenCache);
+                logDebug("{} tokens written to token cache snapshot {}", written, snapshot.file());
+            } catch (Exception e) {
+                logWarn("Token cache snapshot {} could not be written: {}", snapshot.file(), e.getMessage());
+            }
+        }
+
+        /**
+         * Stop writing the snapshot of the token cache, which is no longer used. The tokens, also those
+         * in direct memory, are freed with the token cache.
+         */
+        private synchronized void close() {
+            closed = true;
+            if (snapshotTask != null) {
+                snapshotTask.cancel(false);
+            }
+        }
+
+    }
+
+    /**
+     * Thread for reading and writing the snapshots, created with the first snapshot
+     */
+    private static final class SnapshotScheduler {
+
+        private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "token-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            // Letzter Snapshot beim Herunterfahren des Gateways
+            Runtime.getRuntime().addShutdownHook(new Thread(TokenCacheRegistry::writeSnapshots, "token-cache-snapshot-shutdown"));
+        }
+
+    }
+
+}
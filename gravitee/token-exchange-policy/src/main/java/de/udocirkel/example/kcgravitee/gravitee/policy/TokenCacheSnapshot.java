@@ -0,0 +1,229 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import java.util.ArrayList;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted snapshot file of the local token cache
+ * <p>
+ * The snapshot contains the cached tokens that can still be used, with their cache key, partition and expiry.
+ * It is encrypted with AES-GCM, the header and the identity of the token cache are authenticated as
+ * associated data, so a snapshot of another token cache or a modified snapshot is rejected. Expired
+ * tokens are skipped when the snapshot is restored.
+ * <p>
+ * The snapshot is written to a temporary file readable only by the owner, which then replaces the
+ * snapshot file, so a snapshot is never read half-written.
+ */
+final class TokenCacheSnapshot {
+
+    /**
+     * Snapshot file that cannot be decrypted or read
+     */
+    static final class InvalidSnapshotException extends IOException {
+
+        InvalidSnapshotException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+    }
+
+    private static final int MAGIC = 0x54584353; // "TXCS"
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 5;
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path file;
+
+    private final SecretKeySpec key;
+
+    private final byte[] cacheId;
+
+    /**
+     * @param file    the snapshot file
+     * @param key     the AES key (128, 192 or 256 bits)
+     * @param cacheId the identity of the token cache, authenticated with the snapshot
+     * @throws IllegalArgumentException if the key has an invalid length
+     */
+    TokenCacheSnapshot(Path file, byte[] key, String cacheId) {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Snapshot key must have 128, 192 or 256 bits, not " + key.length * 8);
+        }
+        this.file = file;
+        this.key = new SecretKeySpec(key, "AES");
+        this.cacheId = cacheId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Write the tokens of the cache that can still be used to the snapshot file.
+     *
+     * @param tokenCache the token cache
+     * @return the number of tokens written
+     * @throws IOException if the snapshot file cannot be written
+     */
+    synchronized int write(TokenCache tokenCache) throws IOException {
+        var now = System.currentTimeMillis();
+        var tokens = new ArrayList<Entry>();
+        tokenCache.forEachLocal((key, token) -> {
+            if (token.remainingRetention(now) > 0) {
+                tokens.add(new Entry(key, token));
+            }
+        });
+
+        var plaintext = new ByteArrayOutputStream(64 + tokens.size() * 1024);
+        try (var out = new DataOutputStream(plaintext)) {
+            out.writeInt(tokens.size());
+            for (var entry : tokens) {
+                var key = entry.key();
+                var token = entry.token();
+                var accessToken = token.accessToken().getBytes(StandardCharsets.UTF_8);
+                out.writeLong(key.high());
+                out.writeLong(key.low());
+                out.writeBoolean(key.partition() != null);
+                if (key.partition() != null) {
+                    out.writeUTF(key.partition());
+                }
+                out.writeLong(token.expiresAt());
+                out.writeLong(token.staleUntil());
+                out.writeInt(accessToken.length);
+                out.write(accessToken);
+            }
+        }
+
+        var header = header();
+        var iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        var ciphertext = crypt(Cipher.ENCRYPT_MODE, iv, header, plaintext.toByteArray());
+
+        var directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        var tempFile = createOwnerOnlyFile(directory);
+        try {
+            Files.write(tempFile, ByteBuffer.allocate(header.length + IV_LENGTH + ciphertext.length)
+                    .put(header).put(iv).put(ciphertext).array());
+            move(tempFile, file);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return tokens.size();
+    }
+
+    /**
+     * Put the tokens of the snapshot file that can still be used into the local cache, unless a token
+     * is already cached for the same key.
+     *
+     * @param tokenCache the token cache
+     * @return the number of tokens restored, 0 if there is no snapshot file
+     * @throws IOException if the snapshot file cannot be read or decrypted
+     */
+    synchronized int restore(TokenCache tokenCache) throws IOException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+
+        var header = header();
+        if (content.length < HEADER_LENGTH + IV_LENGTH || !ByteBuffer.wrap(content, 0, HEADER_LENGTH).equals(ByteBuffer.wrap(header))) {
+            throw new InvalidSnapshotException("Unknown snapshot format", null);
+        }
+        var iv = new byte[IV_LENGTH];
+        System.arraycopy(content, HEADER_LENGTH, iv, 0, IV_LENGTH);
+        var ciphertext = new byte[content.length - HEADER_LENGTH - IV_LENGTH];
+        System.arraycopy(content, HEADER_LENGTH + IV_LENGTH, ciphertext, 0, ciphertext.length);
+        var plaintext = crypt(Cipher.DECRYPT_MODE, iv, header, ciphertext);
+
+        var now = System.currentTimeMillis();
+        var restored = 0;
+        try (var in = new DataInputStream(new ByteArrayInputStream(plaintext))) {
+            var count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                var high = in.readLong();
+                var low = in.readLong();
+                var partition = in.readBoolean() ? in.readUTF() : null;
+                var key = new TokenCacheKey(high, low, partition);
+                var expiresAt = in.readLong();
+                var staleUntil = in.readLong();
+                var accessToken = new byte[in.readInt()];
+                in.readFully(accessToken);
+                if (staleUntil > now
+                        && tokenCache.restore(key, new ExchangedToken(new String(accessToken, StandardCharsets.UTF_8), expiresAt, staleUntil))) {
+                    restored++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new InvalidSnapshotException("Snapshot is truncated", e);
+        }
+        return restored;
+    }
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).put((byte) VERSION).array();
+    }
+
+    private byte[] crypt(int mode, byte[] iv, byte[] header, byte[] input) throws InvalidSnapshotException {
+        try {
+            var cipher = Cipher.getInstance(CIPHER);
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH, iv));
+            cipher.updateAAD(header);
+            cipher.updateAAD(cacheId);
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            // Falscher Schluessel, anderer Cache oder veraenderte Datei
+            throw new InvalidSnapshotException("Snapshot cannot be decrypted", e);
+        }
+    }
+
+    private static Path createOwnerOnlyFile(Path directory) throws IOException {
+        try {
+            return Files.createTempFile(directory, ".token-cache", ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Kein POSIX-Dateisystem
+            return Files.createTempFile(directory, ".token-cache", ".tmp");
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException | FileAlreadyExistsException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private record Entry(TokenCacheKey key, ExchangedToken token) {
+    }
+
+}
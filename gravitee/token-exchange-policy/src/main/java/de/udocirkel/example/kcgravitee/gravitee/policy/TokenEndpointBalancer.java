@@ -0,0 +1,179 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the token endpoint for a token exchange
+ * <p>
+ * Each endpoint is scored by its latency, a peak-sensitive exponentially weighted moving average
+ * (EWMA), times its outstanding requests. The endpoint with the lowest score is selected, so slow
+ * or busy endpoints get fewer requests.
+ * <p>
+ * An endpoint that fails several times in a row is ejected (passive health check) and not
+ * selected until it is reinstated after a successful health probe. If all endpoints are ejected,
+ * they are still selected, the circuit breaker of the policy takes over.
+ */
+final class TokenEndpointBalancer {
+
+    /**
+     * Time after which a latency sample has decayed to about a third of its weight
+     */
+    private static final long DECAY_TIME = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Minimum latency recorded for a failed request, so that an endpoint that refuses connections
+     * does not look fast
+     */
+    private static final long FAILURE_PENALTY = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<Endpoint> endpoints;
+
+    private final int ejectionThreshold;
+
+    /**
+     * @param urls              the URLs of the token endpoints
+     * @param ejectionThreshold the number of consecutive failures after which an endpoint is ejected,
+     *                          0 to never eject an endpoint
+     */
+    TokenEndpointBalancer(List<String> urls, int ejectionThreshold) {
+        this.endpoints = urls.stream().map(Endpoint::new).toList();
+        // Ein einzelner Endpoint wird nie ausgeschlossen
+        this.ejectionThreshold = endpoints.size() > 1 ? ejectionThreshold : 0;
+    }
+
+    /**
+     * @param now the current time in nanoseconds ({@link System#nanoTime()})
+     * @return the endpoint for the next token exchange
+     */
+    Endpoint select(long now) {
+        var size = endpoints.size();
+        if (size == 1) {
+            return endpoints.get(0);
+        }
+
+        // Zufaelliger Start, damit gleich bewertete Endpoints abwechselnd gewaehlt werden
+        var offset = ThreadLocalRandom.current().nextInt(size);
+        Endpoint selected = null;
+        var selectedScore = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            var endpoint = endpoints.get((offset + i) % size);
+            if (endpoint.ejected) {
+                continue;
+            }
+            var score = endpoint.score(now);
+            if (score < selectedScore) {
+                selected = endpoint;
+                selectedScore = score;
+            }
+        }
+        return selected != null ? selected : endpoints.get(offset);
+    }
+
+    List<Endpoint> endpoints() {
+        return endpoints;
+    }
+
+    /**
+     * A token endpoint and its load
+     */
+    final class Endpoint {
+
+        private final String url;
+
+        private final AtomicInteger outstandingRequests = new AtomicInteger();
+
+        /**
+         * Latency EWMA in nanoseconds, guarded by this
+         */
+        private double latency;
+
+        private long lastUpdate;
+
+        private int consecutiveFailures;
+
+        private volatile boolean ejected;
+
+        private Endpoint(String url) {
+            this.url = url;
+        }
+
+        String url() {
+            return url;
+        }
+
+        /**
+         * Record the start of a request to the endpoint.
+         */
+        void requestStarted() {
+            outstandingRequests.incrementAndGet();
+        }
+
+        /**
+         * Record a request to which the endpoint has answered.
+         *
+         * @param latency the latency in nanoseconds
+         * @param now     the current time in nanoseconds
+         */
+        synchronized void requestSucceeded(long latency, long now) {
+            outstandingRequests.decrementAndGet();
+            updateLatency(latency, now);
+            consecutiveFailures = 0;
+        }
+
+        /**
+         * Record a request that failed with a timeout, connection error or server error.
+         *
+         * @param latency the latency in nanoseconds
+         * @param now     the current time in nanoseconds
+         * @return whether the endpoint has been ejected by this failure
+         */
+        synchronized boolean requestFailed(long latency, long now) {
+            outstandingRequests.decrementAndGet();
+            updateLatency(Math.max(latency, FAILURE_PENALTY), now);
+            consecutiveFailures++;
+            if (ejectionThreshold > 0 && !ejected && consecutiveFailures >= ejectionThreshold) {
+                ejected = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Select the endpoint again, after a successful health probe.
+         */
+        synchronized void reinstate() {
+            consecutiveFailures = 0;
+            ejected = false;
+        }
+
+        boolean isEjected() {
+            return ejected;
+        }
+
+        int outstandingRequests() {
+            return outstandingRequests.get();
+        }
+
+        synchronized double score(long now) {
+            // Latenz ohne neue Messungen abklingen lassen, damit ein langsamer Endpoint wieder gewaehlt wird
+            var decayedLatency = latency * Math.exp(-(double) Math.max(0, now - lastUpdate) / DECAY_TIME);
+            return (decayedLatency + 1) * (outstandingRequests.get() + 1);
+        }
+
+        private void updateLatency(long sample, long now) {
+            if (sample > latency) {
+                // Spitzen sofort uebernehmen
+                latency = sample;
+            } else {
+                var weight = Math.exp(-(double) Math.max(0, now - lastUpdate) / DECAY_TIME);
+                latency = latency * weight + sample * (1 - weight);
+            }
+            lastUpdate = now;
+        }
+
+    }
+
+}
@@ -0,0 +1,478 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.PoolOptions;
+import io.vertx.core.http.RequestOptions;
+
+import java.lang.ref.WeakReference;
+
+import java.net.URI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP client for the token endpoint
+ * <p>
+ * Wraps a long-lived Vert.x {@link HttpClient} with a keep-alive connection pool.
+ * The client is created as a <em>shared</em> client, i.e. all policy instances that
+ * talk to the same token endpoint with the same connection options reuse one connection
+ * pool per Vert.x instance instead of opening a new connection for each token exchange.
+ * A shared client keeps the options it was created with, so the name of the client
+ * contains a digest of the options: policy instances with different options get
+ * separate clients.
+ * <p>
+ * The pool is opened lazily with the first token exchange of a policy instance.
+ * At this point the configured number of connections is pre-connected, so that
+ * subsequent exchanges do not pay the TCP (and TLS) handshake.
+ * <p>
+ * Each request must be answered within the configured timeout, otherwise it is reset. The
+ * number of concurrent requests is limited (bulkhead), requests beyond the limit are rejected
+ * without contacting the token endpoint.
+ * <p>
+ * If several token endpoints are configured (e.g. the nodes of a Keycloak cluster), each request is
+ * sent to the endpoint selected by the {@link TokenEndpointBalancer}. An ejected endpoint is probed
+ * periodically and reinstated as soon as it answers again. Probing stops when the client is closed or
+ * no longer reachable, e.g. after its API has been undeployed.
+ */
+final class TokenEndpointClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenEndpointClient.class);
+
+    private static final String CLIENT_NAME_PREFIX = "token-exchange@";
+
+    private static final int OPTIONS_DIGEST_LENGTH = 16;
+
+    private final TokenExchangePolicyConfiguration configuration;
+
+    private final String clientName;
+
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    private final TokenEndpointBalancer balancer;
+
+    private volatile Vertx owner;
+
+    private volatile HttpClient httpClient;
+
+    /**
+     * Cancels the scheduled health probe of each ejected endpoint
+     */
+    private final Map<TokenEndpointBalancer.Endpoint, Runnable> healthProbes = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    TokenEndpointClient(TokenExchangePolicyConfiguration configuration) {
+        this.configuration = configuration;
+        this.clientName = clientName(configuration);
+        this.balancer = new TokenEndpointBalancer(tokenEndpointUrls(configuration), configuration.getTokenEndpointEjectionThreshold());
+    }
+
+    /**
+     * Post the given form to the token endpoint.
+     *
+     * @param vertx the Vert.x instance of the gateway
+     * @param form  the url encoded form
+     * @return the response of the token endpoint, failed with a {@link TokenExchangeException} if the
+     * request is rejected or times out
+     */
+    Future<TokenEndpointResponse> post(Vertx vertx, String form) {
+        return post(vertx, form, Map.of());
+    }
+
+    /**
+     * Post the given form to the token endpoint.
+     *
+     * @param vertx   the Vert.x instance of the gateway
+     * @param form    the url encoded form
+     * @param headers additional request headers, e.g. the trace context
+     * @return the response of the token endpoint, failed with a {@link TokenExchangeException} if the
+     * request is rejected or times out
+     */
+    Future<TokenEndpointResponse> post(Vertx vertx, String form, Map<String, String> headers) {
+        var maxConcurrentRequests = configuration.getTokenEndpointMaxConcurrentRequests();
+        if (pendingRequests.incrementAndGet() > maxConcurrentRequests && maxConcurrentRequests > 0) {
+            pendingRequests.decrementAndGet();
+            return Future.failedFuture(new TokenExchangeException(TokenExchangePolicy.TOKEN_EXCHANGE_ERROR,
+                    TokenExchangeMetrics.CAUSE_REJECTED, "Too many concurrent token exchanges"));
+        }
+
+        var endpoint = balancer.select(System.nanoTime());
+        var requestOpts = new RequestOptions()
+                .setMethod(HttpMethod.POST)
+                .setAbsoluteURI(endpoint.url())
+                .putHeader("Content-Type", "application/x-www-form-urlencoded")
+                .putHeader("Content-Length", String.valueOf(form.length()));
+        headers.forEach(requestOpts::putHeader);
+
+        var result = Promise.<TokenEndpointResponse>promise();
+        // Platz im Bulkhead mit dem Timeout freigeben, nicht erst mit dem Ende des Requests
+        var released = new AtomicBoolean();
+        var timeout = configuration.getTokenEndpointTimeout();
+        var timerId = timeout > 0
+                ? vertx.setTimer(timeout, id -> {
+                    if (release(released)) {
+                        result.fail(new TokenExchangeException(TokenExchangePolicy.TOKEN_EXCHANGE_ERROR,
+                                TokenExchangeMetrics.CAUSE_TIMEOUT, "Token endpoint did not respond within " + timeout + " ms"));
+                    }
+                })
+                : -1L;
+
+        endpoint.requestStarted();
+        var start = System.nanoTime();
+        getHttpClient(vertx)
+                .request(requestOpts)
+                .compose(httpClientRequest -> {
+                    // Nach dem Timeout keinen Request mehr senden bzw. den laufenden abbrechen
+                    if (result.future().isComplete()) {
+                        httpClientRequest.reset();
+                        return Future.failedFuture(result.future().cause());
+                    }
+                    result.future().onFailure(throwable -> httpClientRequest.reset());
+                    return httpClientRequest.send(Buffer.buffer(form));
+                })
+                .compose(this::readTokenResponse)
+                .onComplete(ar -> {
+                    vertx.cancelTimer(timerId);
+                    recordEndpointResult(vertx, endpoint, start, isTokenEndpointFailure(ar));
+                    if (!release(released)) {
+                        return;
+                    }
+                    if (ar.succeeded()) {
+                        result.complete(ar.result());
+                    } else {
+                        result.fail(ar.cause());
+                    }
+                });
+
+        return result.future();
+    }
+
+    /**
+     * Release the place of a request in the bulkhead, once: when the request completes or times out,
+     * whichever comes first.
+     *
+     * @return whether the place was released by this call
+     */
+    private boolean release(AtomicBoolean released) {
+        if (!released.compareAndSet(false, true)) {
+            return false;
+        }
+        pendingRequests.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return whether the request failed because of the token endpoint, by the same causes as the circuit
+     * breaker of the policy: timeout, connection error or server error
+     */
+    private static boolean isTokenEndpointFailure(AsyncResult<TokenEndpointResponse> ar) {
+        var failureCause = ar.succeeded()
+                ? TokenExchangeMetrics.responseFailureCause(ar.result().statusCode())
+                : TokenExchangeMetrics.failureCause(ar.cause());
+        return TokenExchangeMetrics.isTokenEndpointFailure(failureCause);
+    }
+
+    private void recordEndpointResult(Vertx vertx, TokenEndpointBalancer.Endpoint endpoint, long start, boolean failed) {
+        var now = System.nanoTime();
+        if (!failed) {
+            endpoint.requestSucceeded(now - start, now);
+        } else if (endpoint.requestFailed(now - start, now)) {
+            logWarn("Token endpoint {} of client '{}' ejected after {} consecutive failures", endpoint.url(), clientName,
+                    configuration.getTokenEndpointEjectionThreshold());
+            scheduleHealthProbe(vertx, endpoint);
+        }
+    }
+
+    private void scheduleHealthProbe(Vertx vertx, TokenEndpointBalancer.Endpoint endpoint) {
+        if (closed) {
+            return;
+        }
+        // Der Timer haelt den Client nicht erreichbar
+        var client = new WeakReference<>(this);
+        var timerId = vertx.setTimer(TimeUnit.SECONDS.toMillis(configuration.getTokenEndpointEjectionDuration()), id -> {
+            var current = client.get();
+            if (current != null) {
+                current.probe(vertx, endpoint);
+            }
+        });
+        healthProbes.put(endpoint, () -> vertx.cancelTimer(timerId));
+        if (closed) {
+            cancelHealthProbe(endpoint);
+        }
+    }
+
+    private void probe(Vertx vertx, TokenEndpointBalancer.Endpoint endpoint) {
+        healthProbes.remove(endpoint);
+        if (closed) {
+            return;
+        }
+        getHttpClient(vertx)
+                .request(new RequestOptions()
+                        .setMethod(HttpMethod.OPTIONS)
+                        .setAbsoluteURI(endpoint.url())
+                        .setIdleTimeout(configuration.getTokenEndpointTimeout()))
+                .compose(request -> request.send())
+                .compose(response -> response.end().map(v -> response.statusCode()))
+                .onComplete(ar -> {
+                    if (ar.succeeded() && ar.result() < 500) {
+                        logInfo("Token endpoint {} of client '{}' reinstated", endpoint.url(), clientName);
+                        endpoint.reinstate();
+                    } else {
+                        logDebug("Health probe of token endpoint {} of client '{}' failed", endpoint.url(), clientName);
+                        scheduleHealthProbe(vertx, endpoint);
+                    }
+                });
+    }
+
+    private void cancelHealthProbe(TokenEndpointBalancer.Endpoint endpoint) {
+        var cancel = healthProbes.remove(endpoint);
+        if (cancel != null) {
+            cancel.run();
+        }
+    }
+
+    /**
+     * Stop probing the ejected token endpoints, e.g. when the policy instance is no longer used.
+     */
+    void close() {
+        closed = true;
+        healthProbes.keySet().forEach(this::cancelHealthProbe);
+    }
+
+    /**
+     * @return the number of ejected token endpoints with a scheduled health probe
+     */
+    int scheduledHealthProbes() {
+        return healthProbes.size();
+    }
+
+    /**
+     * Read the token response while it is received. The request is reset as soon as the response
+     * turns out to be malformed or too large.
+     */
+    private Future<TokenEndpointResponse> readTokenResponse(HttpClientResponse response) {
+        var statusCode = response.statusCode();
+        var maxSize = configuration.getTokenResponseMaxSize();
+        var contentLength = response.getHeader("Content-Length");
+        if (maxSize > 0 && contentLength != null && parseLong(contentLength) > maxSize) {
+            response.request().reset();
+            return Future.failedFuture(invalidTokenResponse(statusCode, "Token response exceeds " + maxSize + " bytes"));
+        }
+
+        var parser = new TokenResponseParser(maxSize);
+        var result = Promise.<TokenEndpointResponse>promise();
+        response.handler(chunk -> {
+            if (result.future().isComplete()) {
+                return;
+            }
+            try {
+                parser.feed(chunk);
+            } catch (TokenResponseParser.InvalidTokenResponseException e) {
+                result.tryFail(invalidTokenResponse(statusCode, e.getMessage()));
+                response.request().reset();
+            }
+        });
+        response.exceptionHandler(result::tryFail);
+        response.endHandler(v -> {
+            try {
+                parser.finish();
+                result.tryComplete(new TokenEndpointResponse(statusCode, parser.accessToken(), parser.expiresIn(),
+                        parser.tokenType(), parser.error()));
+            } catch (TokenResponseParser.InvalidTokenResponseException e) {
+                result.tryFail(invalidTokenResponse(statusCode, e.getMessage()));
+            }
+        });
+        return result.future();
+    }
+
+    private TokenExchangeException invalidTokenResponse(int statusCode, String detail) {
+        logDebug("Invalid response of token endpoint of client '{}' (status {}): {}", clientName, statusCode, detail);
+        return new TokenExchangeException(TokenExchangePolicy.TOKEN_EXCHANGE_EXIT_ON_ERROR,
+                TokenExchangeMetrics.responseFailureCause(statusCode), "Request is terminated.");
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the number of requests currently sent to the token endpoint and waiting for a response,
+     * without those that already timed out
+     */
+    int pendingRequests() {
+        return pendingRequests.get();
+    }
+
+    /**
+     * @return the token endpoints and their load
+     */
+    List<TokenEndpointBalancer.Endpoint> endpoints() {
+        return balancer.endpoints();
+    }
+
+    /**
+     * @return the name of the shared client, also used as metrics name of the connection pool
+     */
+    String clientName() {
+        return clientName;
+    }
+
+    private HttpClient getHttpClient(Vertx vertx) {
+        var client = httpClient;
+        if (client != null && owner == vertx) {
+            return client;
+        }
+        synchronized (this) {
+            if (httpClient == null || owner != vertx) {
+                httpClient = vertx.createHttpClient(createHttpClientOptions(), createPoolOptions());
+                owner = vertx;
+                if (usesTls()) {
+                    logInfo("Token endpoint of client '{}' is connected with the {} SSL engine", clientName, TokenEndpointTls.engine(configuration));
+                }
+                preConnect(httpClient);
+            }
+            return httpClient;
+        }
+    }
+
+    private HttpClientOptions createHttpClientOptions() {
+        var options = new HttpClientOptions()
+                // Verbindungen wiederverwenden
+                .setShared(true)
+                .setName(clientName)
+                .setMetricsName(clientName)
+                .setKeepAlive(true)
+                .setKeepAliveTimeout(configuration.getConnectionKeepAliveTimeout())
+                .setPipelining(configuration.isConnectionPipelining())
+                .setPipeliningLimit(configuration.getConnectionPipeliningLimit());
+
+        if (configuration.isHttp2Enabled()) {
+            options.setProtocolVersion(HttpVersion.HTTP_2)
+                    .setHttp2ClearTextUpgrade(false)
+                    .setHttp2KeepAliveTimeout(configuration.getConnectionKeepAliveTimeout())
+                    .setHttp2MultiplexingLimit(configuration.getHttp2MultiplexingLimit());
+        }
+
+        // TLS nur fuer https-URLs, das Schema der URL bestimmt jeden Request
+        return TokenEndpointTls.configure(options, configuration);
+    }
+
+    private boolean usesTls() {
+        for (var endpoint : balancer.endpoints()) {
+            if (endpoint.url().regionMatches(true, 0, "https:", 0, 6)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PoolOptions createPoolOptions() {
+        return new PoolOptions()
+                .setHttp1MaxSize(configuration.getConnectionPoolMaxSize())
+                .setHttp2MaxSize(configuration.getConnectionPoolMaxSize());
+    }
+
+    private void preConnect(HttpClient client) {
+        var preConnectSize = Math.min(configuration.getConnectionPoolPreConnectSize(), configuration.getConnectionPoolMaxSize());
+        for (var endpoint : balancer.endpoints()) {
+            for (int i = 0; i < preConnectSize; i++) {
+                // OPTIONS wird vom Token Endpoint beantwortet, ohne einen Token auszustellen
+                client.request(new RequestOptions()
+                                .setMethod(HttpMethod.OPTIONS)
+                                .setAbsoluteURI(endpoint.url()))
+                        .compose(request -> request.send())
+                        .compose(HttpClientResponse::end)
+                        .onSuccess(v -> logDebug("Pre-connected to token endpoint {} of client '{}'", endpoint.url(), clientName))
+                        .onFailure(throwable -> logWarn("Pre-connect to token endpoint {} of client '{}' failed: {}", endpoint.url(),
+                                clientName, throwable.getMessage()));
+            }
+        }
+    }
+
+    private static List<String> tokenEndpointUrls(TokenExchangePolicyConfiguration configuration) {
+        var urls = new ArrayList<String>();
+        urls.add(configuration.getTokenEndpointUrl());
+        if (configuration.getAdditionalTokenEndpointUrls() != null) {
+            configuration.getAdditionalTokenEndpointUrls().stream()
+                    .filter(url -> url != null && !url.isBlank() && !urls.contains(url))
+                    .forEach(urls::add);
+        }
+        return urls;
+    }
+
+    /**
+     * @return the name of the shared client: the authority of the token endpoint and a digest of the connection
+     * and TLS options. The truststore is identified by its path and type, the password is left out.
+     */
+    static String clientName(TokenExchangePolicyConfiguration configuration) {
+        var options = String.join(" ",
+                String.valueOf(configuration.getConnectionPoolMaxSize()),
+                String.valueOf(configuration.getConnectionKeepAliveTimeout()),
+                String.valueOf(configuration.isConnectionPipelining()),
+                String.valueOf(configuration.getConnectionPipeliningLimit()),
+                String.valueOf(configuration.isHttp2Enabled()),
+                String.valueOf(configuration.getHttp2MultiplexingLimit()),
+                // TLS: ein Client mit trustAll darf nie von einer pruefenden Policy verwendet werden
+                String.valueOf(configuration.isTokenEndpointTrustAll()),
+                String.valueOf(configuration.isTokenEndpointVerifyHost()),
+                String.valueOf(configuration.getTokenEndpointTruststorePath()),
+                // das Passwort gehoert nicht in den Namen, er steht in Logs und Metriken
+                String.valueOf(configuration.getTokenEndpointTruststoreType()),
+                TokenEndpointTls.engine(configuration));
+        return CLIENT_NAME_PREFIX + authorityOf(configuration.getTokenEndpointUrl()) + '#'
+                + TokenCache.digest(options).substring(0, OPTIONS_DIGEST_LENGTH);
+    }
+
+    private static String authorityOf(String url) {
+        if (url == null || url.isBlank()) {
+            return "default";
+        }
+        try {
+            var authority = URI.create(url).getAuthority();
+            return authority == null ? url : authority;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    private void logDebug(String msg, Object... args) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(msg, args);
+        }
+    }
+
+    private void logInfo(String msg, Object... args) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info(msg, args);
+        }
+    }
+
+    private void logWarn(String msg, Object... args) {
+        if (LOG.isWarnEnabled()) {
+            LOG.warn(msg, args);
+        }
+    }
+
+}
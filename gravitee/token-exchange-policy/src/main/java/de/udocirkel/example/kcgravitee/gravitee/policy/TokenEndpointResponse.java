@@ -0,0 +1,13 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+/**
+ * Response of the token endpoint, reduced to the fields used by the policy
+ *
+ * @param statusCode  the HTTP status code
+ * @param accessToken the field 'access_token', or {@code null}
+ * @param expiresIn   the field 'expires_in' in seconds, or {@code null}
+ * @param tokenType   the field 'token_type', or {@code null}
+ * @param error       the field 'error' of an error response, or {@code null}
+ */
+record TokenEndpointResponse(int statusCode, String accessToken, Long expiresIn, String tokenType, String error) {
+}
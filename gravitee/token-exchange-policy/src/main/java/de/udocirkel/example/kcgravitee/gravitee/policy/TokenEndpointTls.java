@@ -0,0 +1,98 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.net.JdkSSLEngineOptions;
+import io.vertx.core.net.JksOptions;
+import io.vertx.core.net.OpenSSLEngineOptions;
+import io.vertx.core.net.PemTrustOptions;
+import io.vertx.core.net.PfxOptions;
+import io.vertx.core.net.SSLEngineOptions;
+import io.vertx.core.net.TrustOptions;
+
+import java.util.List;
+
+/**
+ * TLS settings of the connections to an HTTPS token endpoint
+ * <p>
+ * The server certificate is verified against the configured truststore, or the truststore of the
+ * JVM if none is configured, and the host name against the certificate. With HTTP/2 the protocol is
+ * negotiated with ALPN.
+ * <p>
+ * The handshakes are done by the OpenSSL engine of netty-tcnative (e.g. BoringSSL) if it is
+ * available in the gateway, otherwise by the SSL engine of the JDK. Both cache the TLS sessions of
+ * the client, so a connection reopened by the pool resumes the session (session ticket or id)
+ * instead of repeating the key exchange and the verification of the certificate chain.
+ */
+final class TokenEndpointTls {
+
+    static final String ENGINE_OPENSSL = "openssl";
+    static final String ENGINE_JDK = "jdk";
+
+    private TokenEndpointTls() {
+    }
+
+    /**
+     * Apply the TLS settings of the configuration to the options of the client.
+     *
+     * @param options       the options of the client for the token endpoint
+     * @param configuration the policy configuration
+     * @return the options
+     */
+    static HttpClientOptions configure(HttpClientOptions options, TokenExchangePolicyConfiguration configuration) {
+        options.setTrustAll(configuration.isTokenEndpointTrustAll())
+                .setVerifyHost(configuration.isTokenEndpointVerifyHost())
+                .setSslEngineOptions(sslEngineOptions(configuration));
+
+        var trustOptions = trustOptions(configuration);
+        if (trustOptions != null) {
+            options.setTrustOptions(trustOptions);
+        }
+
+        if (configuration.isHttp2Enabled()) {
+            options.setUseAlpn(true)
+                    .setAlpnVersions(List.of(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1));
+        }
+        return options;
+    }
+
+    /**
+     * @param configuration the policy configuration
+     * @return the SSL engine used for the token endpoint: {@value #ENGINE_OPENSSL} or {@value #ENGINE_JDK}
+     */
+    static String engine(TokenExchangePolicyConfiguration configuration) {
+        return useOpenSsl(configuration) ? ENGINE_OPENSSL : ENGINE_JDK;
+    }
+
+    private static boolean useOpenSsl(TokenExchangePolicyConfiguration configuration) {
+        if (!configuration.isTokenEndpointOpenSslEnabled() || !OpenSSLEngineOptions.isAvailable()) {
+            return false;
+        }
+        // HTTP/2 ueber TLS braucht ALPN, das nicht jede Version von netty-tcnative bietet
+        return !configuration.isHttp2Enabled() || OpenSSLEngineOptions.isAlpnAvailable();
+    }
+
+    private static SSLEngineOptions sslEngineOptions(TokenExchangePolicyConfiguration configuration) {
+        if (useOpenSsl(configuration)) {
+            return new OpenSSLEngineOptions().setSessionCacheEnabled(true);
+        }
+        return new JdkSSLEngineOptions();
+    }
+
+    private static TrustOptions trustOptions(TokenExchangePolicyConfiguration configuration) {
+        var path = configuration.getTokenEndpointTruststorePath();
+        if (path == null || path.isBlank()) {
+            return null;
+        }
+        var type = configuration.getTokenEndpointTruststoreType() != null
+                ? configuration.getTokenEndpointTruststoreType()
+                : TokenExchangePolicyConfiguration.TruststoreType.PEM;
+        var password = configuration.getTokenEndpointTruststorePassword();
+        return switch (type) {
+            case PEM -> new PemTrustOptions().addCertPath(path);
+            case PKCS12 -> new PfxOptions().setPath(path).setPassword(password);
+            case JKS -> new JksOptions().setPath(path).setPassword(password);
+        };
+    }
+
+}
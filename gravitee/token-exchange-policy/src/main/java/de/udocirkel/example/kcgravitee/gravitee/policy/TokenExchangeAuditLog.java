@@ -0,0 +1,367 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.time.Instant;
+
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Audit log of the token exchange decisions
+ * <p>
+ * For each request the policy records one event: the decision taken, the API, the target scope, the
+ * client the incoming token was issued for, a hash of the incoming token and the latency of the
+ * policy. The incoming and exchanged tokens themselves are never written.
+ * <p>
+ * The request thread only puts the event into a lock-free {@link RingBuffer}. A single daemon thread
+ * (the appender) hashes the token, formats the event as a JSON line and writes it to the logger
+ * {@value #AUDIT_LOGGER}, so the event loop never waits for logging I/O. If the appender falls behind
+ * and the buffer is full, events are dropped and the number of dropped events is logged.
+ * <p>
+ * The appender is started with the first event and parks while the buffer is empty, the request
+ * thread unparks it. It ends after a while without events, or with {@link #shutdown()} when the last
+ * token cache of the {@link TokenCacheRegistry} is released, so it does not keep the class loader of an
+ * unloaded policy plugin alive; the next event starts it again.
+ */
+final class TokenExchangeAuditLog {
+
+    /**
+     * Decision taken by the policy for a request
+     */
+    enum Decision {
+        NO_TOKEN,
+        NO_AUTHORIZED_PARTY,
+        AUTHORIZED_PARTY_MISMATCH,
+        AUDIENCE_SKIPPED,
+        SCOPE_SKIPPED,
+        CACHE_HIT,
+        SHARED_CACHE_HIT,
+        NEGATIVE_CACHE_HIT,
+        EXCHANGED,
+        STALE_TOKEN,
+        FAILED;
+
+        private final String value = name().toLowerCase(Locale.ROOT);
+
+        static Decision of(ClaimMatcher.Mismatch mismatch) {
+            return switch (mismatch) {
+                case NO_AUTHORIZED_PARTY -> NO_AUTHORIZED_PARTY;
+                case AUTHORIZED_PARTY_NOT_MATCHING -> AUTHORIZED_PARTY_MISMATCH;
+                case AUDIENCE_MISSING, AUDIENCE_PRESENT -> AUDIENCE_SKIPPED;
+                case SCOPE_PRESENT -> SCOPE_SKIPPED;
+            };
+        }
+
+    }
+
+    /**
+     * Audit event of one request, completed along the decision path
+     */
+    static final class Event {
+
+        private static final Event DISABLED = new Event(null, null, null, null, 0);
+
+        private final String targetScope;
+
+        private final String api;
+
+        private final String client;
+
+        private final String incomingToken;
+
+        private final long start;
+
+        private volatile Decision decision;
+
+        private long timestamp;
+
+        private long latencyNanos;
+
+        private String failureCause;
+
+        private Event(String targetScope, String api, String client, String incomingToken, long start) {
+            this.targetScope = targetScope;
+            this.api = api;
+            this.client = client;
+            this.incomingToken = incomingToken;
+            this.start = start;
+        }
+
+        /**
+         * Set the decision of a request that is still in progress, e.g. a token taken from the shared cache.
+         *
+         * @param decision the decision
+         */
+        void decide(Decision decision) {
+            if (this != DISABLED) {
+                this.decision = decision;
+            }
+        }
+
+    }
+
+    static final String AUDIT_LOGGER = "de.udocirkel.example.kcgravitee.gravitee.policy.audit";
+
+    private static final int BUFFER_CAPACITY = 8192;
+
+    private final boolean enabled;
+
+    private final String targetScope;
+
+    TokenExchangeAuditLog(TokenExchangePolicyConfiguration configuration) {
+        this.enabled = configuration.isAuditLogEnabled();
+        this.targetScope = String.valueOf(configuration.getTargetScope());
+    }
+
+    /**
+     * Start the audit event of a request.
+     *
+     * @param incomingToken the incoming token, or {@code null}
+     * @param api           the API id, or {@code null} if unknown
+     * @param claims        the claims of the incoming token
+     * @return the event
+     */
+    Event start(String incomingToken, String api, Map<?, ?> claims) {
+        if (!enabled) {
+            return Event.DISABLED;
+        }
+        return new Event(targetScope, api, ClaimMatcher.authorizedParty(claims), incomingToken, System.nanoTime());
+    }
+
+    /**
+     * Record the event of a request with its final decision.
+     *
+     * @param event    the event
+     * @param decision the decision
+     */
+    void record(Event event, Decision decision) {
+        if (event == Event.DISABLED) {
+            return;
+        }
+        event.decision = decision;
+        publish(event);
+    }
+
+    /**
+     * Record the event of a request that went on to the token exchange.
+     *
+     * @param event   the event
+     * @param failure the failure of the token exchange, or {@code null}
+     */
+    void complete(Event event, Throwable failure) {
+        if (event == Event.DISABLED) {
+            return;
+        }
+        if (failure != null) {
+            event.decision = Decision.FAILED;
+            event.failureCause = TokenExchangeMetrics.failureCause(failure);
+        } else if (event.decision == null) {
+            event.decision = Decision.EXCHANGED;
+        }
+        publish(event);
+    }
+
+    private static void publish(Event event) {
+        event.latencyNanos = System.nanoTime() - event.start;
+        event.timestamp = System.currentTimeMillis();
+        if (Appender.BUFFER.offer(event)) {
+            Appender.signal();
+        }
+    }
+
+    /**
+     * Stop the appender after it has written the buffered events, e.g. when the policy plugin is unloaded.
+     */
+    static void shutdown() {
+        var appender = Appender.CURRENT.get();
+        if (appender != null) {
+            appender.stop();
+        }
+    }
+
+    /**
+     * @return whether the appender is running
+     */
+    static boolean isAppenderRunning() {
+        return Appender.CURRENT.get() != null;
+    }
+
+    /**
+     * Format the event as JSON line.
+     *
+     * @param event   the event
+     * @param tokenId the hash of the incoming token, or {@code null}
+     * @return the JSON line
+     */
+    static String format(Event event, String tokenId) {
+        var json = new StringBuilder(256)
+                .append("{\"timestamp\":\"").append(Instant.ofEpochMilli(event.timestamp)).append('"');
+        appendField(json, "api", event.api);
+        appendField(json, "targetScope", event.targetScope);
+        appendField(json, "client", event.client);
+        appendField(json, "decision", event.decision != null ? event.decision.value : null);
+        appendField(json, "tokenId", tokenId);
+        json.append(",\"latencyMicros\":").append(TimeUnit.NANOSECONDS.toMicros(event.latencyNanos));
+        appendField(json, "failureCause", event.failureCause);
+        return json.append('}').toString();
+    }
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        json.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Thread writing the audit events, started with the first audit event
+     */
+    private static final class Appender implements Runnable {
+
+        private static final Logger AUDIT = LoggerFactory.getLogger(AUDIT_LOGGER);
+
+        private static final Logger LOG = LoggerFactory.getLogger(TokenExchangeAuditLog.class);
+
+        private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+        private static final RingBuffer<Event> BUFFER = new RingBuffer<>(BUFFER_CAPACITY);
+
+        private static final AtomicReference<Appender> CURRENT = new AtomicReference<>();
+
+        private final MessageDigest digest;
+
+        private final Thread thread;
+
+        private volatile boolean waiting;
+
+        private volatile boolean stopped;
+
+        private long reportedDropped;
+
+        private Appender() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not supported", e);
+            }
+            thread = new Thread(this, "token-exchange-audit");
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Wake up the appender for a new event, start it if it is not running.
+         */
+        private static void signal() {
+            var appender = CURRENT.get();
+            if (appender == null) {
+                start();
+            } else if (appender.waiting) {
+                LockSupport.unpark(appender.thread);
+            }
+        }
+
+        private static void start() {
+            var appender = new Appender();
+            if (CURRENT.compareAndSet(null, appender)) {
+                appender.thread.start();
+            }
+        }
+
+        private void stop() {
+            stopped = true;
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            var idleSince = System.nanoTime();
+            while (true) {
+                var event = BUFFER.poll();
+                if (event != null) {
+                    write(event);
+                    idleSince = System.nanoTime();
+                    continue;
+                }
+                reportDropped();
+                if ((stopped || System.nanoTime() - idleSince >= IDLE_TIMEOUT_NANOS) && BUFFER.isEmpty()) {
+                    retire();
+                    return;
+                }
+                waiting = true;
+                // Ein Produzent sieht entweder waiting oder der Buffer ist hier nicht leer
+                if (BUFFER.isEmpty() && !stopped) {
+                    LockSupport.parkNanos(this, IDLE_TIMEOUT_NANOS);
+                }
+                waiting = false;
+            }
+        }
+
+        /**
+         * End the appender after the idle timeout or when stopped. An event published meanwhile starts a
+         * new appender, only after this one has taken its last event.
+         */
+        private void retire() {
+            CURRENT.compareAndSet(this, null);
+            if (!BUFFER.isEmpty()) {
+                signal();
+            }
+        }
+
+        private void write(Event event) {
+            try {
+                if (AUDIT.isInfoEnabled()) {
+                    AUDIT.info(format(event, tokenId(event.incomingToken)));
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Audit event could not be written: {}", e.getMessage());
+            }
+        }
+
+        /**
+         * @return the first 64 bits of the SHA-256 digest of the token as hex, to correlate the events of a token
+         */
+        private String tokenId(String token) {
+            if (token == null || token.isBlank()) {
+                return null;
+            }
+            var hash = digest.digest(token.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 8);
+        }
+
+        private void reportDropped() {
+            var dropped = BUFFER.dropped();
+            if (dropped > reportedDropped) {
+                LOG.warn("{} audit events dropped, the audit log cannot keep up", dropped - reportedDropped);
+                reportedDropped = dropped;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,35 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+/**
+ * Failure of a token exchange
+ * <p>
+ * Carries the policy result key with which the request is terminated, and the reason of the
+ * failure reported in the metrics.
+ */
+final class TokenExchangeException extends RuntimeException {
+
+    private final String key;
+
+    private final String reason;
+
+    TokenExchangeException(String key, String reason, String message) {
+        super(message, null, false, false);
+        this.key = key;
+        this.reason = reason;
+    }
+
+    /**
+     * @return the policy result key
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the reason of the failure
+     */
+    String getReason() {
+        return reason;
+    }
+
+}
@@ -0,0 +1,83 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.net.URLEncoder;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Form of the token exchange request (RFC 8693)
+ * <p>
+ * All form parameters except the subject token are fixed per policy configuration and are
+ * url encoded once. Subject tokens that consist of unreserved characters only (as JWTs do)
+ * are not encoded at all.
+ * <p>
+ * The scope parameter contains the target scope and all further requested scopes, each requested
+ * audience is a separate audience parameter.
+ */
+final class TokenExchangeForm {
+
+    private static final String ENCODED_GRANT_TYPE_FOR_TOKEN_EXCHANGE = encode("urn:ietf:params:oauth:grant-type:token-exchange");
+    private static final String ENCODED_TOKEN_TYPE_FOR_ACCESS_TOKEN = encode("urn:ietf:params:oauth:token-type:access_token");
+
+    /**
+     * Encoded form parameters before the subject token
+     */
+    private final String prefix;
+
+    /**
+     * Encoded form parameters after the subject token
+     */
+    private final String suffix;
+
+    TokenExchangeForm(TokenExchangePolicyConfiguration configuration) {
+        var target = TokenExchangeTarget.of(configuration);
+        var audiences = new StringBuilder();
+        for (var audience : target.audiences()) {
+            audiences.append("&audience=").append(encode(audience));
+        }
+        this.prefix = "grant_type=" + ENCODED_GRANT_TYPE_FOR_TOKEN_EXCHANGE
+                + "&client_id=" + encode(configuration.getTokenExchangeClientId())
+                + "&client_secret=" + encode(configuration.getTokenExchangeClientSecret())
+                + "&subject_token=";
+        this.suffix = "&subject_token_type=" + ENCODED_TOKEN_TYPE_FOR_ACCESS_TOKEN
+                + "&requested_token_type=" + ENCODED_TOKEN_TYPE_FOR_ACCESS_TOKEN
+                + "&scope=" + encode(target.scope())
+                + audiences;
+    }
+
+    /**
+     * Build the url encoded form for the given subject token.
+     *
+     * @param subjectToken the incoming token to exchange
+     * @return the url encoded form
+     */
+    String build(String subjectToken) {
+        var encodedSubjectToken = encodeSubjectToken(subjectToken);
+        return new StringBuilder(prefix.length() + encodedSubjectToken.length() + suffix.length())
+                .append(prefix)
+                .append(encodedSubjectToken)
+                .append(suffix)
+                .toString();
+    }
+
+    private static String encodeSubjectToken(String subjectToken) {
+        for (int i = 0; i < subjectToken.length(); i++) {
+            if (!isUnreserved(subjectToken.charAt(i))) {
+                return encode(subjectToken);
+            }
+        }
+        return subjectToken;
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '*';
+    }
+
+    static String encode(String s) {
+        return s == null ? null : URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,454 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import io.vertx.core.Future;
+import io.vertx.core.VertxException;
+import io.vertx.micrometer.backends.BackendRegistries;
+
+import java.io.IOException;
+
+import java.time.Duration;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of the token exchange policy
+ * <p>
+ * The meters are registered with the Micrometer registry of the gateway, which is scraped
+ * at {@code /_node/metrics/prometheus}. If the gateway runs without metrics, the meters are
+ * registered with the (no-op) global registry.
+ * <p>
+ * All meters are tagged with the API and the target scope of the policy instance. The API is
+ * only known at request time, it is bound with {@link #bindApi(String)} by each request. Only the
+ * evictions from a token cache are tagged with the token cache instead of the API.
+ * <p>
+ * If the token cache is partitioned, cache lookups and token exchanges are also counted per
+ * partition, tagged with the client. Clients beyond the first {@value #MAX_PARTITIONS} are counted
+ * together as {@value #OTHER_PARTITIONS}, so the number of time series stays bounded.
+ */
+final class TokenExchangeMetrics {
+
+    static final String CAUSE_ERROR_RESPONSE = "error_response";
+    static final String CAUSE_SERVER_ERROR = "server_error";
+    static final String CAUSE_INVALID_RESPONSE = "invalid_response";
+    static final String CAUSE_TIMEOUT = "timeout";
+    static final String CAUSE_CONNECTION = "connection";
+    static final String CAUSE_REJECTED = "rejected";
+    static final String CAUSE_CIRCUIT_OPEN = "circuit_open";
+    static final String CAUSE_OTHER = "other";
+
+    private static final List<String> CAUSES = List.of(CAUSE_ERROR_RESPONSE, CAUSE_SERVER_ERROR, CAUSE_INVALID_RESPONSE,
+            CAUSE_TIMEOUT, CAUSE_CONNECTION, CAUSE_REJECTED, CAUSE_CIRCUIT_OPEN, CAUSE_OTHER);
+
+    private static final String TIER_LOCAL = "local";
+    private static final String TIER_SHARED = "shared";
+    private static final String TIER_NEGATIVE = "negative";
+
+    private static final String TAG_API = "api";
+    private static final String TAG_TARGET_SCOPE = "target_scope";
+
+    private static final String TAG_CLIENT = "client";
+
+    private static final String TAG_CACHE = "cache";
+
+    private static final String UNKNOWN_API = "unknown";
+
+    private static final int MAX_PARTITIONS = 100;
+    private static final String OTHER_PARTITIONS = "other";
+
+    /**
+     * Token exchanges in flight per API and target scope, shared by all policy instances
+     * (e.g. after a redeployment of the API) as the gauge can only observe one value
+     */
+    private static final ConcurrentMap<Tags, AtomicInteger> IN_FLIGHT_EXCHANGES = new ConcurrentHashMap<>();
+
+    private final MeterRegistry registry;
+
+    private final String targetScope;
+
+    private volatile Meters meters;
+
+    TokenExchangeMetrics(TokenExchangePolicyConfiguration configuration) {
+        this(gatewayRegistry(), configuration);
+    }
+
+    TokenExchangeMetrics(MeterRegistry registry, TokenExchangePolicyConfiguration configuration) {
+        this.registry = registry;
+        this.targetScope = String.valueOf(configuration.getTargetScope());
+    }
+
+    /**
+     * Bind the API of the current request. A policy instance usually serves a single API, so the
+     * meters are only looked up again if the API changes.
+     *
+     * @param api the API id, or {@code null} if unknown
+     */
+    void bindApi(String api) {
+        var apiTag = api == null || api.isBlank() ? UNKNOWN_API : api;
+        var current = meters;
+        if (current == null || !current.api.equals(apiTag)) {
+            meters = new Meters(apiTag);
+        }
+    }
+
+    void localCacheHit() {
+        meters().localCacheHits.increment();
+    }
+
+    void localCacheMiss() {
+        meters().localCacheMisses.increment();
+    }
+
+    void sharedCacheHit() {
+        meters().sharedCacheHits.increment();
+    }
+
+    void sharedCacheMiss() {
+        meters().sharedCacheMisses.increment();
+    }
+
+    void negativeCacheHit() {
+        meters().negativeCacheHits.increment();
+    }
+
+    /**
+     * @param partition the partition of the token cache, or {@code null} if the cache is not partitioned
+     */
+    void partitionCacheHit(String partition) {
+        if (partition != null) {
+            meters().partition(partition).cacheHits.increment();
+        }
+    }
+
+    /**
+     * @param partition the partition of the token cache, or {@code null} if the cache is not partitioned
+     */
+    void partitionCacheMiss(String partition) {
+        if (partition != null) {
+            meters().partition(partition).cacheMisses.increment();
+        }
+    }
+
+    /**
+     * Count a token exchange request of a partition sent to the token endpoint.
+     *
+     * @param partition the partition of the token cache, or {@code null} if the cache is not partitioned
+     */
+    void partitionExchange(String partition) {
+        if (partition != null) {
+            meters().partition(partition).exchanges.increment();
+        }
+    }
+
+    void coalescedExchange() {
+        meters().coalescedExchanges.increment();
+    }
+
+    void refreshAhead() {
+        meters().refreshAheadExchanges.increment();
+    }
+
+    /**
+     * Record a token exchange: its latency, whether it is in flight and the cause if it failed.
+     *
+     * @param exchange the token exchange
+     * @return the result of the token exchange
+     */
+    <T> Future<T> exchange(Supplier<Future<T>> exchange) {
+        var current = meters();
+        current.exchanges.increment();
+        current.inFlightExchanges.incrementAndGet();
+        var start = System.nanoTime();
+
+        Future<T> result;
+        try {
+            result = exchange.get();
+        } catch (RuntimeException e) {
+            result = Future.failedFuture(e);
+        }
+
+        return result.onComplete(ar -> {
+            current.inFlightExchanges.decrementAndGet();
+            var duration = System.nanoTime() - start;
+            if (ar.succeeded()) {
+                current.successfulExchangeDuration.record(duration, TimeUnit.NANOSECONDS);
+            } else {
+                current.failedExchangeDuration.record(duration, TimeUnit.NANOSECONDS);
+                current.failure(failureCause(ar.cause())).increment();
+            }
+        });
+    }
+
+    /**
+     * Count a token exchange that is not sent to the token endpoint, e.g. because the circuit breaker is open.
+     *
+     * @param cause the cause
+     */
+    void rejectedExchange(String cause) {
+        meters().failure(cause).increment();
+    }
+
+    void staleTokenUsed() {
+        meters().staleTokensUsed.increment();
+    }
+
+    void nearExpiryToken() {
+        meters().nearExpiryTokens.increment();
+    }
+
+    /**
+     * Create the counters of the tokens evicted from a token cache, one per cause. The token cache
+     * is shared by the policy instances of all APIs with the same token endpoint, client and target,
+     * so the evictions are tagged with the token cache instead of the API.
+     *
+     * @param cache       the identity of the token cache
+     * @param targetScope the target scope of the token cache
+     * @return the listener counting the evictions
+     */
+    static Consumer<RemovalCause> cacheEvictions(String cache, String targetScope) {
+        return cacheEvictions(gatewayRegistry(), cache, targetScope);
+    }
+
+    static Consumer<RemovalCause> cacheEvictions(MeterRegistry registry, String cache, String targetScope) {
+        var counters = new EnumMap<RemovalCause, Counter>(RemovalCause.class);
+        for (var cause : RemovalCause.values()) {
+            counters.put(cause, Counter.builder("token.exchange.cache.evictions")
+                    .description("Tokens evicted from the local token cache")
+                    .tag(TAG_CACHE, cache)
+                    .tag(TAG_TARGET_SCOPE, String.valueOf(targetScope))
+                    .tag("cause", cause.name().toLowerCase(Locale.ROOT))
+                    .register(registry));
+        }
+        return cause -> counters.get(cause).increment();
+    }
+
+    /**
+     * @param statusCode the status code of an unusable token endpoint response
+     * @return the failure cause
+     */
+    static String responseFailureCause(int statusCode) {
+        if (statusCode >= 500) {
+            return CAUSE_SERVER_ERROR;
+        }
+        return statusCode >= 400 ? CAUSE_ERROR_RESPONSE : CAUSE_INVALID_RESPONSE;
+    }
+
+    /**
+     * @param failureCause the failure cause
+     * @return whether the cause indicates an unhealthy token endpoint: timeout, connection error or server error
+     */
+    static boolean isTokenEndpointFailure(String failureCause) {
+        return switch (failureCause) {
+            case CAUSE_TIMEOUT, CAUSE_CONNECTION, CAUSE_SERVER_ERROR -> true;
+            default -> false;
+        };
+    }
+
+    static String failureCause(Throwable throwable) {
+        if (throwable instanceof TokenExchangeException exchangeException) {
+            return exchangeException.getReason();
+        }
+        if (throwable instanceof TimeoutException) {
+            return CAUSE_TIMEOUT;
+        }
+        if (throwable instanceof IOException || throwable instanceof VertxException) {
+            return CAUSE_CONNECTION;
+        }
+        return CAUSE_OTHER;
+    }
+
+    private Meters meters() {
+        var current = meters;
+        if (current == null) {
+            bindApi(null);
+            current = meters;
+        }
+        return current;
+    }
+
+    private static MeterRegistry gatewayRegistry() {
+        var registry = BackendRegistries.getDefaultNow();
+        return registry != null ? registry : Metrics.globalRegistry;
+    }
+
+    /**
+     * Meters of one API and target scope
+     */
+    private final class Meters {
+
+        private final String api;
+
+        private final Tags tags;
+
+        private final Counter localCacheHits;
+
+        private final Counter localCacheMisses;
+
+        private final Counter sharedCacheHits;
+
+        private final Counter sharedCacheMisses;
+
+        private final Counter negativeCacheHits;
+
+        private final Counter exchanges;
+
+        private final Counter coalescedExchanges;
+
+        private final Counter refreshAheadExchanges;
+
+        private final Counter staleTokensUsed;
+
+        private final Counter nearExpiryTokens;
+
+        private final Timer successfulExchangeDuration;
+
+        private final Timer failedExchangeDuration;
+
+        private final AtomicInteger inFlightExchanges;
+
+        /**
+         * Counters of the failed token exchanges, one per cause
+         */
+        private final Map<String, Counter> failures;
+
+        private final ConcurrentMap<String, PartitionMeters> partitions = new ConcurrentHashMap<>();
+
+        private Meters(String api) {
+            this.api = api;
+            this.tags = Tags.of(TAG_API, api, TAG_TARGET_SCOPE, targetScope);
+
+            this.localCacheHits = cacheRequests(TIER_LOCAL, "hit");
+            this.localCacheMisses = cacheRequests(TIER_LOCAL, "miss");
+            this.sharedCacheHits = cacheRequests(TIER_SHARED, "hit");
+            this.sharedCacheMisses = cacheRequests(TIER_SHARED, "miss");
+            this.negativeCacheHits = cacheRequests(TIER_NEGATIVE, "hit");
+            this.exchanges = Counter.builder("token.exchange.requests")
+                    .description("Token exchange requests sent to the token endpoint")
+                    .tags(tags)
+                    .register(registry);
+            this.coalescedExchanges = Counter.builder("token.exchange.coalesced")
+                    .description("Token exchanges coalesced with an identical token exchange in flight")
+                    .tags(tags)
+                    .register(registry);
+            this.refreshAheadExchanges = Counter.builder("token.exchange.refresh.ahead")
+                    .description("Token exchanges started to refresh a cached token ahead of its expiry")
+                    .tags(tags)
+                    .register(registry);
+            this.staleTokensUsed = Counter.builder("token.exchange.stale.used")
+                    .description("Stale exchanged tokens used because the token endpoint is unhealthy")
+                    .tags(tags)
+                    .register(registry);
+            this.nearExpiryTokens = Counter.builder("token.exchange.cache.near.expiry")
+                    .description("Cached tokens not used because they expire within the token expiry skew")
+                    .tags(tags)
+                    .register(registry);
+            this.successfulExchangeDuration = exchangeDuration("success");
+            this.failedExchangeDuration = exchangeDuration("failure");
+            var failureCounters = new HashMap<String, Counter>();
+            for (var cause : CAUSES) {
+                failureCounters.put(cause, Counter.builder("token.exchange.failures")
+                        .description("Failed token exchanges by cause")
+                        .tags(tags)
+                        .tag("cause", cause)
+                        .register(registry));
+            }
+            this.failures = Map.copyOf(failureCounters);
+
+            this.inFlightExchanges = IN_FLIGHT_EXCHANGES.computeIfAbsent(tags, t -> new AtomicInteger());
+            Gauge.builder("token.exchange.in.flight", inFlightExchanges, AtomicInteger::get)
+                    .description("Token exchanges waiting for the response of the token endpoint")
+                    .tags(tags)
+                    .strongReference(true)
+                    .register(registry);
+        }
+
+        private Timer exchangeDuration(String outcome) {
+            return Timer.builder("token.exchange.duration")
+                    .description("Latency of the token endpoint")
+                    .tags(tags)
+                    .tag("outcome", outcome)
+                    // Buckets fuer Histogramm-Quantile in Prometheus
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofSeconds(30))
+                    .register(registry);
+        }
+
+        private Counter cacheRequests(String tier, String result) {
+            return Counter.builder("token.exchange.cache.requests")
+                    .description("Lookups of exchanged tokens in the token cache")
+                    .tags(tags)
+                    .tag("tier", tier)
+                    .tag("result", result)
+                    .register(registry);
+        }
+
+        private PartitionMeters partition(String partition) {
+            var current = partitions.get(partition);
+            if (current != null) {
+                return current;
+            }
+            // Anzahl der Zeitreihen begrenzen
+            var client = partitions.size() < MAX_PARTITIONS ? partition : OTHER_PARTITIONS;
+            return partitions.computeIfAbsent(client, PartitionMeters::new);
+        }
+
+        private Counter failure(String cause) {
+            var counter = failures.get(cause);
+            return counter != null ? counter : failures.get(CAUSE_OTHER);
+        }
+
+        /**
+         * Meters of one partition of the token cache
+         */
+        private final class PartitionMeters {
+
+            private final Counter cacheHits;
+
+            private final Counter cacheMisses;
+
+            private final Counter exchanges;
+
+            private PartitionMeters(String client) {
+                this.cacheHits = partitionCacheRequests(client, "hit");
+                this.cacheMisses = partitionCacheRequests(client, "miss");
+                this.exchanges = Counter.builder("token.exchange.partition.requests")
+                        .description("Token exchange requests sent to the token endpoint by client")
+                        .tags(tags)
+                        .tag(TAG_CLIENT, client)
+                        .register(registry);
+            }
+
+            private Counter partitionCacheRequests(String client, String result) {
+                return Counter.builder("token.exchange.cache.partition.requests")
+                        .description("Lookups of exchanged tokens in the local token cache by client")
+                        .tags(tags)
+                        .tag(TAG_CLIENT, client)
+                        .tag("result", result)
+                        .register(registry);
+            }
+
+        }
+
+    }
+
+}
@@ -1,35 +1,33 @@
 package de.udocirkel.example.kcgravitee.gravitee.policy;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-
 import io.gravitee.common.http.HttpStatusCode;
 import io.gravitee.gateway.api.ExecutionContext;
 import io.gravitee.gateway.api.Request;
 import io.gravitee.gateway.api.Response;
+import io.gravitee.gateway.api.http.HttpHeaders;
+import io.gravitee.gateway.reactive.api.ExecutionFailure;
+import io.gravitee.gateway.reactive.api.context.ContextAttributes;
+import io.gravitee.gateway.reactive.api.context.http.HttpPlainExecutionContext;
+import io.gravitee.gateway.reactive.api.policy.http.HttpPolicy;
 import io.gravitee.policy.api.PolicyChain;
 import io.gravitee.policy.api.PolicyResult;
 import io.gravitee.policy.api.annotations.OnRequest;
 import io.gravitee.policy.api.annotations.OnResponse;
 
-import io.vertx.core.Vertx;
-import io.vertx.core.buffer.Buffer;
-import io.vertx.core.json.JsonObject;
-import io.vertx.core.http.HttpClient;
-import io.vertx.core.http.HttpClientOptions;
-import io.vertx.core.http.HttpClientResponse;
-import io.vertx.core.http.HttpMethod;
-import io.vertx.core.http.RequestOptions;
+import io.opentelemetry.api.trace.Span;
 
-import java.net.URLEncoder;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Maybe;
 
-import java.nio.charset.StandardCharsets;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
 
-import java.util.Collection;
-import java.util.List;
+import java.time.Instant;
+
+import java.util.Date;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,34 +40,30 @@ import org.slf4j.LoggerFactory;
  * configurable criteria (authorized party, audiences, and scopes) and defines
  * the client credentials and target scopes for the token exchange.
  * <p>
- * Additionally, the policy caches newly issued tokens until they expire.
+ * Additionally, the policy caches newly issued tokens until they expire
+ * (or the incoming token expires, whichever is earlier).
  * This allows reusing the same exchanged token for repeated requests with
  * the same incoming token and target scope, reducing unnecessary token
- * requests to the authorization server.
+ * requests to the authorization server. Concurrent requests with the same
+ * incoming token and target scope share a single token exchange.
+ * <p>
+ * The policy runs on both execution engines of the gateway: as {@link HttpPolicy} on the
+ * reactive (v4) engine, and with the {@link OnRequest} and {@link OnResponse} callbacks on the
+ * legacy (v2) engine. Both share the same token exchange.
  * <p>
  * Use demo token endpoint URL: http://keycloak:8080/realms/coffeehouse/protocol/openid-connect/token
  */
-public class TokenExchangePolicy {
+public class TokenExchangePolicy implements HttpPolicy, AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(TokenExchangePolicy.class);
 
-    private static final long TOKEN_CACHE_DURATION = 5;
-    private static final TimeUnit TOKEN_CACHE_TIMEUNIT = TimeUnit.MINUTES;
-    private static final long TOKEN_CACHE_MAXSIZE = 10_000;
+    private static final String POLICY_ID = "TokenExchange";
 
-    private static final String TOKEN_EXCHANGE_ERROR = "TOKEN_EXCHANGE_ERROR";
-    private static final String TOKEN_EXCHANGE_EXIT_ON_ERROR = "TOKEN_EXCHANGE_EXIT_ON_ERROR";
+    static final String TOKEN_EXCHANGE_ERROR = "TOKEN_EXCHANGE_ERROR";
+    static final String TOKEN_EXCHANGE_EXIT_ON_ERROR = "TOKEN_EXCHANGE_EXIT_ON_ERROR";
 
-    private static final String ENCODED_GRANT_TYPE_FOR_TOKEN_EXCHANGE = encode("urn:ietf:params:oauth:grant-type:token-exchange");
-    private static final String ENCODED_TOKEN_TYPE_FOR_ACCESS_TOKEN = encode("urn:ietf:params:oauth:token-type:access_token");
-
-    private final Cache<String, String> tokenCache =
-            Caffeine.newBuilder()
-                    // Ablaufzeit der Tokens
-                    .expireAfterWrite(TOKEN_CACHE_DURATION, TOKEN_CACHE_TIMEUNIT)
-                    // Tokenanzahl begrenzen
-                    .maximumSize(TOKEN_CACHE_MAXSIZE)
-                    .build();
+    private static final String OAUTH_ERROR_INVALID_GRANT = "invalid_grant";
+    private static final String OAUTH_ERROR_UNAUTHORIZED_CLIENT = "unauthorized_client";
 
     /**
      * The associated configuration to this TokenExchange Policy
@@ -77,19 +71,59 @@ public class TokenExchangePolicy {
     private final TokenExchangePolicyConfiguration configuration;
 
     /**
-     * Encoded client ID for token exchange
+     * Form of the token exchange request
+     */
+    private final TokenExchangeForm tokenExchangeForm;
+
+    /**
+     * Digest of the requested scopes and audiences, for the keys of the token cache
      */
-    private final String encodedTokenExchangeClientId;
+    private final TokenCacheKey.Target cacheTarget;
 
     /**
-     * Encoded client secret for token exchange
+     * Checks of the incoming token claims, compiled from the configuration
      */
-    private final String encodedTokenExchangeClientSecret;
+    private final ClaimMatcher claimMatcher;
 
     /**
-     * Url encoded target scope for token exchange
+     * Use of the token cache of this policy instance
      */
-    private final String encodedTargetScope;
+    private final TokenCacheRegistry.Lease tokenCacheLease;
+
+    /**
+     * Cache for exchanged tokens, shared with other policy instances of the same token endpoint, client, scopes and audiences
+     */
+    private final TokenCache tokenCache;
+
+    /**
+     * Pooled client for the token endpoint
+     */
+    private final TokenEndpointClient tokenEndpointClient;
+
+    /**
+     * Metrics of this policy instance
+     */
+    private final TokenExchangeMetrics metrics;
+
+    /**
+     * Token exchanges in flight, identical concurrent exchanges are coalesced
+     */
+    private final SingleFlight<TokenCacheKey, String> inFlightExchanges;
+
+    /**
+     * Tracing of the token exchanges
+     */
+    private final TokenExchangeTracing tracing;
+
+    /**
+     * Audit log of the decisions of this policy instance
+     */
+    private final TokenExchangeAuditLog auditLog;
+
+    /**
+     * Circuit breaker for the token endpoint, or {@code null} if disabled
+     */
+    private final CircuitBreaker circuitBreaker;
 
     /**
      * Create a new TokenExchange Policy instance based on its associated configuration
@@ -98,246 +132,511 @@ public class TokenExchangePolicy {
      */
     public TokenExchangePolicy(TokenExchangePolicyConfiguration configuration) {
         this.configuration = configuration;
-        this.encodedTokenExchangeClientId = encode(configuration.getTokenExchangeClientId());
-        this.encodedTokenExchangeClientSecret = encode(configuration.getTokenExchangeClientSecret());
-        this.encodedTargetScope = encode(configuration.getTargetScope());
+        this.tokenExchangeForm = new TokenExchangeForm(configuration);
+        this.cacheTarget = TokenCacheKey.Target.of(TokenExchangeTarget.of(configuration).id());
+        this.claimMatcher = new ClaimMatcher(configuration);
+        this.metrics = new TokenExchangeMetrics(configuration);
+        this.tokenCacheLease = TokenCacheRegistry.acquire(this, configuration);
+        this.tokenCache = tokenCacheLease.tokenCache();
+        this.tokenEndpointClient = new TokenEndpointClient(configuration);
+        this.inFlightExchanges = new SingleFlight<>(metrics::coalescedExchange);
+        this.tracing = new TokenExchangeTracing(configuration);
+        this.auditLog = new TokenExchangeAuditLog(configuration);
+        this.circuitBreaker = configuration.isCircuitBreakerEnabled()
+                ? new CircuitBreaker(configuration.getCircuitBreakerFailureThreshold(),
+                TimeUnit.SECONDS.toMillis(configuration.getCircuitBreakerOpenDuration()))
+                : null;
+    }
+
+    @Override
+    public String id() {
+        return POLICY_ID;
+    }
+
+    /**
+     * Release the shared token cache of this policy instance and stop probing ejected token endpoints,
+     * e.g. when its API is undeployed. Otherwise both happen once this policy instance has been garbage
+     * collected.
+     */
+    @Override
+    public void close() {
+        tokenCacheLease.release();
+        tokenEndpointClient.close();
+    }
+
+    @Override
+    public Completable onRequest(HttpPlainExecutionContext ctx) {
+        return Completable.defer(() -> toMaybe(exchangeIncomingToken(
+                        getIncomingToken(ctx.getAttribute("jwt.token")),
+                        getIncomingTokenClaims(ctx.getAttribute("jwt.claims")),
+                        toStringOrNull(ctx.getAttribute(ContextAttributes.ATTR_API)),
+                        () -> ctx.request().headers(),
+                        () -> ctx.getComponent(io.vertx.rxjava3.core.Vertx.class).getDelegate()))
+                .doOnSuccess(token -> setAuthorizationTokenForRequest(ctx.request().headers(), token))
+                .ignoreElement()
+                .onErrorResumeNext(throwable -> ctx.interruptWith(toExecutionFailure(throwable))));
     }
 
     @OnRequest
     public void onRequest(Request request, Response response, ExecutionContext context, PolicyChain policyChain) {
-        Runnable chainDoNext = () -> policyChain.doNext(request, response);
-        var incomingToken = getIncomingToken(context);
-        if (invalidToken(incomingToken, chainDoNext)) return;
-        if (authorizedPartyPrefixNotMatching(context, chainDoNext)) return;
-        if (audienceNotMatching(context, chainDoNext)) return;
-        if (audienceMatching(context, chainDoNext)) return;
-        if (scopeMatching(context, chainDoNext)) return;
-        if (setTokenFromCacheSuccessful(incomingToken, request, chainDoNext)) return;
-        handleTokenExchange(request, response, context, policyChain, incomingToken);
-    }
-
-    private boolean invalidToken(String incomingToken, Runnable chainDoNext) {
+        exchangeIncomingToken(
+                getIncomingToken(context.getAttribute("jwt.token")),
+                getIncomingTokenClaims(context.getAttribute("jwt.claims")),
+                toStringOrNull(context.getAttribute(ExecutionContext.ATTR_API)),
+                request::headers,
+                () -> context.getComponent(Vertx.class))
+                .onSuccess(token -> {
+                    if (token != null) {
+                        setAuthorizationTokenForRequest(request.headers(), token);
+                    }
+                    policyChain.doNext(request, response);
+                })
+                .onFailure(throwable -> handleFailure(policyChain, throwable));
+    }
+
+    /**
+     * Exchange the incoming token, or take the exchanged token from the cache.
+     *
+     * @param incomingToken the incoming token
+     * @param claims        the claims of the incoming token
+     * @param api            the API id, or {@code null} if unknown
+     * @param requestHeaders supplies the headers of the incoming request, for the trace context
+     * @param vertx          supplies the Vert.x instance of the gateway, only called for a token exchange
+     * @return the exchanged token, or {@code null} if the incoming token is not to be exchanged
+     */
+    private Future<String> exchangeIncomingToken(
+            String incomingToken,
+            Map<?, ?> claims,
+            String api,
+            Supplier<HttpHeaders> requestHeaders,
+            Supplier<Vertx> vertx) {
+
+        var auditEvent = auditLog.start(incomingToken, api, claims);
+        if (invalidToken(incomingToken)) {
+            auditLog.record(auditEvent, TokenExchangeAuditLog.Decision.NO_TOKEN);
+            return Future.succeededFuture();
+        }
+        var mismatch = claimsNotMatching(claims);
+        if (mismatch != null) {
+            auditLog.record(auditEvent, TokenExchangeAuditLog.Decision.of(mismatch));
+            return Future.succeededFuture();
+        }
+        metrics.bindApi(api);
+        var span = tracing.startSpan(requestHeaders);
+        var cacheKey = TokenCacheKey.of(incomingToken, cacheTarget, getCachePartition(claims));
+        var tokenFromCache = getTokenFromCache(cacheKey, incomingToken, claims, vertx, span);
+        if (tokenFromCache != null) {
+            span.end();
+            auditLog.record(auditEvent, TokenExchangeAuditLog.Decision.CACHE_HIT);
+            return Future.succeededFuture(tokenFromCache);
+        }
+        var cachedFailure = tokenCache.getFailure(cacheKey);
+        if (cachedFailure != null) {
+            logDebug("Token exchange for incoming Bearer token and target scope '{}' failed recently, request is terminated",
+                    configuration.getTargetScope());
+            metrics.negativeCacheHit();
+            span.setAttribute(TokenExchangeTracing.LOCAL_CACHE, TokenExchangeTracing.NEGATIVE);
+            TokenExchangeTracing.endSpan(span, cachedFailure);
+            auditLog.record(auditEvent, TokenExchangeAuditLog.Decision.NEGATIVE_CACHE_HIT);
+            return Future.failedFuture(cachedFailure);
+        }
+        return handleTokenExchange(vertx.get(), incomingToken, cacheKey, getIncomingTokenExpiresAt(claims), span, auditEvent)
+                .onComplete(ar -> {
+                    TokenExchangeTracing.endSpan(span, ar.cause());
+                    auditLog.complete(auditEvent, ar.cause());
+                });
+    }
+
+    private boolean invalidToken(String incomingToken) {
         if (incomingToken == null || incomingToken.isBlank()) {
             logDebug("Request has no Authorization header with Bearer token");
-            chainDoNext.run();
             return true;
         }
         return false;
     }
 
-    private boolean authorizedPartyPrefixNotMatching(ExecutionContext context, Runnable chainDoNext) {
-        var authorizedPartyPrefix = configuration.getAuthorizedPartyPrefix();
-        var issuedFor = getIncomingTokenIssuedFor(context);
-        if (issuedFor == null || issuedFor.isBlank()) {
-            logWarn("Incoming Bearer token has no authorized party (claim 'azp') specified");
-            chainDoNext.run();
-            return true;
+    /**
+     * @return the reason why the incoming token is not exchanged, or {@code null} if it is exchanged
+     */
+    private ClaimMatcher.Mismatch claimsNotMatching(Map<?, ?> claims) {
+        var mismatch = claimMatcher.match(claims);
+        if (mismatch == null) {
+            return null;
         }
-        if (!issuedFor.startsWith(authorizedPartyPrefix)) {
-            logDebug("Incoming Bearer token has an authorized party (claim 'azp') not matching the configured prefix '{}'", authorizedPartyPrefix);
-            chainDoNext.run();
-            return true;
+        switch (mismatch) {
+            case NO_AUTHORIZED_PARTY ->
+                    logWarn("Incoming Bearer token has no authorized party (claim 'azp') specified");
+            case AUTHORIZED_PARTY_NOT_MATCHING ->
+                    logDebug("Incoming Bearer token has an authorized party (claim 'azp') not matching the configured prefix '{}'", configuration.getAuthorizedPartyPrefix());
+            case AUDIENCE_MISSING ->
+                    logDebug("Incoming Bearer token does not contain the audience '{}'", configuration.getMatchingAudience());
+            case AUDIENCE_PRESENT ->
+                    logDebug("Incoming Bearer token does already contain the audience '{}'", configuration.getNotMatchingAudience());
+            case SCOPE_PRESENT ->
+                    logDebug("Incoming Bearer token does already contain the scope '{}'", configuration.getNotMatchingScope());
         }
-        return false;
+        return mismatch;
     }
 
-    private boolean audienceNotMatching(ExecutionContext context, Runnable chainDoNext) {
-        var matchingAudience = configuration.getMatchingAudience();
-        if (matchingAudience != null && !matchingAudience.isBlank()) {
-            var audiences = getIncomingTokenAudiences(context);
-            if (!audiences.contains(matchingAudience)) {
-                logDebug("Incoming Bearer token does not contain the audience '{}'", matchingAudience);
-                chainDoNext.run();
-                return true;
+    private String getTokenFromCache(
+            TokenCacheKey cacheKey,
+            String incomingToken,
+            Map<?, ?> claims,
+            Supplier<Vertx> vertx,
+            Span span) {
+
+        var targetScope = configuration.getTargetScope();
+        var tokenFromCache = tokenCache.getStale(cacheKey);
+        if (tokenFromCache == null) {
+            var coveringToken = getTokenFromCoveringCache(cacheKey, claims);
+            if (coveringToken != null) {
+                logDebug("Cached token with further scopes found for incoming Bearer token and target scope '{}'", targetScope);
+                metrics.localCacheHit();
+                metrics.partitionCacheHit(cacheKey.partition());
+                span.setAttribute(TokenExchangeTracing.LOCAL_CACHE, TokenExchangeTracing.HIT);
+                return coveringToken;
             }
+            span.setAttribute(TokenExchangeTracing.LOCAL_CACHE, TokenExchangeTracing.MISS);
+        } else if (tokenFromCache.remainingLifetime(System.currentTimeMillis()) == 0) {
+            logDebug("Cached token for target scope '{}' expires within the token expiry skew", targetScope);
+            metrics.nearExpiryToken();
+            span.setAttribute(TokenExchangeTracing.LOCAL_CACHE, TokenExchangeTracing.NEAR_EXPIRY);
+            tokenFromCache = null;
         }
-        return false;
+        if (tokenFromCache != null) {
+            logDebug("Cached token found for incoming Bearer token and target scope '{}'", targetScope);
+            metrics.localCacheHit();
+            metrics.partitionCacheHit(cacheKey.partition());
+            span.setAttribute(TokenExchangeTracing.LOCAL_CACHE, TokenExchangeTracing.HIT);
+            refreshTokenAheadIfExpiring(vertx, incomingToken, claims, cacheKey, tokenFromCache);
+            return tokenFromCache.accessToken();
+        }
+        metrics.localCacheMiss();
+        metrics.partitionCacheMiss(cacheKey.partition());
+        return null;
     }
 
-    private boolean audienceMatching(ExecutionContext context, Runnable chainDoNext) {
-        var notMatchingAudience = configuration.getNotMatchingAudience();
-        if (notMatchingAudience != null && !notMatchingAudience.isBlank()) {
-            var audiences = getIncomingTokenAudiences(context);
-            if (audiences.contains(notMatchingAudience)) {
-                logDebug("Incoming Bearer token does already contain the audience '{}'", notMatchingAudience);
-                chainDoNext.run();
-                return true;
+    /**
+     * Take a token exchanged for the incoming token by a policy instance requesting further scopes or
+     * audiences besides those of this policy instance, e.g. for the whole call chain of a backend.
+     *
+     * @return the exchanged token, or {@code null} if none is cached
+     */
+    private String getTokenFromCoveringCache(TokenCacheKey cacheKey, Map<?, ?> claims) {
+        var coveringTokenCaches = tokenCacheLease.coveringTokenCaches();
+        for (int i = 0; i < coveringTokenCaches.size(); i++) {
+            var covering = coveringTokenCaches.get(i);
+            var partition = covering.partitioned() ? ClaimMatcher.authorizedParty(claims) : null;
+            // Der Digest des eingehenden Tokens wird nicht erneut berechnet
+            var token = covering.tokenCache().getIfPresent(cacheKey.withTarget(cacheTarget, covering.target(), partition));
+            if (token != null) {
+                return token.accessToken();
             }
         }
-        return false;
+        return null;
     }
 
-    private boolean scopeMatching(ExecutionContext context, Runnable chainDoNext) {
-        var notMatchingScope = configuration.getNotMatchingScope();
-        if (notMatchingScope != null && !notMatchingScope.isBlank()) {
-            var scopes = getIncomingTokenScopes(context);
-            if (scopes.contains(notMatchingScope)) {
-                logDebug("Incoming Bearer token does already contain the scope '{}'", notMatchingScope);
-                chainDoNext.run();
-                return true;
-            }
+    /**
+     * Re-exchange a cached token in the background if it expires within the refresh-ahead window,
+     * so that requests with the same incoming token never wait for the token endpoint. Only the
+     * first request that finds the token within the window starts the refresh. If the refresh fails,
+     * the next request starts it again.
+     */
+    private void refreshTokenAheadIfExpiring(
+            Supplier<Vertx> vertx,
+            String incomingToken,
+            Map<?, ?> claims,
+            TokenCacheKey cacheKey,
+            ExchangedToken cachedToken) {
+
+        if (!configuration.isRefreshAheadEnabled() || cachedToken.refreshStarted()) {
+            return;
         }
-        return false;
-    }
 
-    private boolean setTokenFromCacheSuccessful(String incomingToken, Request request, Runnable chainDoNext) {
-        var targetScope = configuration.getTargetScope();
-        var tokenFromCache = getTokenFromCache(incomingToken, targetScope);
-        if (tokenFromCache != null) {
-            logDebug("Cached token found for incoming Bearer token and target scope '{}': {}", targetScope, tokenFromCache);
-            setAuthorizationTokenForRequest(request, tokenFromCache);
-            chainDoNext.run();
-            return true;
+        var refreshAheadWindow = TimeUnit.SECONDS.toMillis(configuration.getRefreshAheadWindow());
+        if (cachedToken.remainingLifetime(System.currentTimeMillis()) > refreshAheadWindow) {
+            return;
+        }
+
+        // Ablaufzeit des eingehenden Tokens begrenzt auch den neuen Token
+        var incomingTokenExpiresAt = getIncomingTokenExpiresAt(claims);
+        var tokenExpirySkew = TimeUnit.SECONDS.toMillis(configuration.getTokenExpirySkew());
+        if (incomingTokenExpiresAt != null && incomingTokenExpiresAt - tokenExpirySkew <= cachedToken.expiresAt()) {
+            return;
         }
-        return false;
-    }
 
-    private void handleTokenExchange(Request request, Response response, ExecutionContext context, PolicyChain policyChain, String incomingToken) {
-
-        var options = new HttpClientOptions()
-                .setSsl(false)
-                .setTrustAll(true)
-                .setVerifyHost(false);
-
-        var httpClient = context
-                .getComponent(Vertx.class)
-                .createHttpClient(options);
-
-        var form = "grant_type=" + ENCODED_GRANT_TYPE_FOR_TOKEN_EXCHANGE
-                + "&client_id=" + encodedTokenExchangeClientId
-                + "&client_secret=" + encodedTokenExchangeClientSecret
-                + "&subject_token=" + encode(incomingToken)
-                + "&subject_token_type=" + ENCODED_TOKEN_TYPE_FOR_ACCESS_TOKEN
-                + "&requested_token_type=" + ENCODED_TOKEN_TYPE_FOR_ACCESS_TOKEN
-                + "&scope=" + encodedTargetScope;
-
-        var requestOpts = new RequestOptions()
-                .setMethod(HttpMethod.POST)
-                .setAbsoluteURI(configuration.getTokenEndpointUrl())
-                .putHeader("Content-Type", "application/x-www-form-urlencoded")
-                .putHeader("Content-Length", String.valueOf(form.length()));
-
-        httpClient.request(requestOpts)
-                .onFailure(throwable -> handleFailure(policyChain, httpClient, throwable))
-                .onSuccess(httpClientRequest -> { // Connection established, lets continue
-                    httpClientRequest.send(Buffer.buffer(form))
-                            .onSuccess(httpResponse -> handleSuccess(httpResponse, request, response, policyChain, httpClient, incomingToken))
-                            .onFailure(throwable -> handleFailure(policyChain, httpClient, throwable));
+        var markedToken = cachedToken.withRefreshStarted();
+        if (!tokenCache.replace(cacheKey, cachedToken, markedToken)) {
+            return;
+        }
+
+        logDebug("Refreshing cached token for target scope '{}' ahead of its expiry", configuration.getTargetScope());
+        metrics.refreshAhead();
+        var currentVertx = vertx.get();
+        inFlightExchanges.execute(cacheKey, () -> exchangeToken(currentVertx, incomingToken, cacheKey, incomingTokenExpiresAt, Span.getInvalid()))
+                .onFailure(throwable -> {
+                    logWarn("Refresh-ahead of cached token for target scope '{}' failed: {}",
+                            configuration.getTargetScope(), throwable.getMessage());
+                    // Markierung zuruecknehmen, der naechste Request versucht es erneut
+                    tokenCache.replace(cacheKey, markedToken, cachedToken);
                 });
     }
 
-    private void handleSuccess(
-            HttpClientResponse httpResponse,
-            Request request,
-            Response response,
-            PolicyChain policyChain,
-            HttpClient httpClient,
-            String incomingToken) {
-
-        httpResponse.bodyHandler(body -> {
-            try {
-
-                if (!(body.toJsonValue() instanceof JsonObject json)) {
-                    var errorContent = "Request is terminated.";
-                    policyChain.failWith(PolicyResult.failure(TOKEN_EXCHANGE_EXIT_ON_ERROR, errorContent));
-                    return;
-                }
-
-                String newToken = json.getString("access_token");
-                if (newToken == null || newToken.isBlank()) {
-                    var errorContent = "Request is terminated.";
-                    policyChain.failWith(PolicyResult.failure(TOKEN_EXCHANGE_EXIT_ON_ERROR, errorContent));
-                    return;
-                }
-
-                putTokenInCache(incomingToken, configuration.getTargetScope(), newToken);
-                setAuthorizationTokenForRequest(request, newToken);
-                policyChain.doNext(request, response);
-
-            } finally {
-                httpClient.close();
-            }
-        });
+    private Future<String> handleTokenExchange(
+            Vertx vertx,
+            String incomingToken,
+            TokenCacheKey cacheKey,
+            Long incomingTokenExpiresAt,
+            Span span,
+            TokenExchangeAuditLog.Event auditEvent) {
+
+        return inFlightExchanges.execute(cacheKey, () -> getTokenFromSharedCacheOrExchange(vertx, incomingToken, cacheKey, incomingTokenExpiresAt, span, auditEvent))
+                .recover(throwable -> useStaleTokenIfTokenEndpointUnhealthy(cacheKey, throwable, span, auditEvent));
     }
 
-    private void handleFailure(PolicyChain policyChain, HttpClient httpClient, Throwable throwable) {
-        try {
+    private Future<String> getTokenFromSharedCacheOrExchange(
+            Vertx vertx,
+            String incomingToken,
+            TokenCacheKey cacheKey,
+            Long incomingTokenExpiresAt,
+            Span span,
+            TokenExchangeAuditLog.Event auditEvent) {
+
+        var tokenExpirySkew = TimeUnit.SECONDS.toMillis(configuration.getTokenExpirySkew());
+        return tokenCache.getFromSharedCache(cacheKey, tokenExpirySkew, vertx.getOrCreateContext())
+                .compose(sharedToken -> {
+                    if (sharedToken != null) {
+                        logDebug("Shared cached token found for incoming Bearer token and target scope '{}'", configuration.getTargetScope());
+                        metrics.sharedCacheHit();
+                        span.setAttribute(TokenExchangeTracing.SHARED_CACHE, TokenExchangeTracing.HIT);
+                        auditEvent.decide(TokenExchangeAuditLog.Decision.SHARED_CACHE_HIT);
+                        return Future.succeededFuture(sharedToken.accessToken());
+                    }
+                    if (tokenCache.readsThroughSharedCache()) {
+                        metrics.sharedCacheMiss();
+                        span.setAttribute(TokenExchangeTracing.SHARED_CACHE, TokenExchangeTracing.MISS);
+                    }
+                    return exchangeToken(vertx, incomingToken, cacheKey, incomingTokenExpiresAt, span);
+                });
+    }
 
-            policyChain.failWith(PolicyResult.failure(TOKEN_EXCHANGE_ERROR, throwable.getMessage()));
+    private Future<String> exchangeToken(
+            Vertx vertx,
+            String incomingToken,
+            TokenCacheKey cacheKey,
+            Long incomingTokenExpiresAt,
+            Span span) {
+
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire(System.currentTimeMillis())) {
+            logDebug("Token exchange for target scope '{}' rejected, the circuit breaker is open", configuration.getTargetScope());
+            metrics.rejectedExchange(TokenExchangeMetrics.CAUSE_CIRCUIT_OPEN);
+            return Future.failedFuture(new TokenExchangeException(TOKEN_EXCHANGE_ERROR, TokenExchangeMetrics.CAUSE_CIRCUIT_OPEN,
+                    "Token endpoint is unavailable"));
+        }
 
-        } finally {
-            httpClient.close();
+        var form = tokenExchangeForm.build(incomingToken);
+        metrics.partitionExchange(cacheKey.partition());
+        var result = metrics.exchange(() -> tokenEndpointClient.post(vertx, form, TokenExchangeTracing.traceHeaders(span))
+                .compose(response -> {
+                    span.setAttribute(TokenExchangeTracing.TOKEN_ENDPOINT_STATUS, (long) response.statusCode());
+                    return handleSuccess(response, cacheKey, incomingTokenExpiresAt);
+                }));
+        if (circuitBreaker != null) {
+            result = result.onComplete(ar -> recordCircuitBreakerResult(ar.failed() ? TokenExchangeMetrics.failureCause(ar.cause()) : null));
         }
+        return result;
     }
 
-    private String getIncomingToken(ExecutionContext context) {
-        var token = context.getAttribute("jwt.token");
-        if (token == null) {
-            return null;
+    private void recordCircuitBreakerResult(String failureCause) {
+        if (failureCause == null) {
+            circuitBreaker.onSuccess();
+        } else if (TokenExchangeMetrics.isTokenEndpointFailure(failureCause)) {
+            circuitBreaker.onFailure(System.currentTimeMillis());
+        } else if (TokenExchangeMetrics.CAUSE_REJECTED.equals(failureCause)
+                || TokenExchangeMetrics.CAUSE_OTHER.equals(failureCause)) {
+            // Token Endpoint nicht aufgerufen oder Fehler der Policy selbst
+            circuitBreaker.release();
+        } else {
+            // Token Endpoint hat geantwortet, z.B. mit 400 fuer einen ungueltigen Token
+            circuitBreaker.onSuccess();
         }
-
-        return token.toString();
     }
 
-    private String getIncomingTokenIssuedFor(ExecutionContext context) {
-        var claims = context.getAttribute("jwt.claims");
-        if (!(claims instanceof Map<?, ?> map)) {
-            return null;
+    /**
+     * Use a stale token, i.e. a token cached for the incoming token that is only within the
+     * expiry skew, if the token exchange failed because the token endpoint is unhealthy.
+     */
+    private Future<String> useStaleTokenIfTokenEndpointUnhealthy(
+            TokenCacheKey cacheKey,
+            Throwable throwable,
+            Span span,
+            TokenExchangeAuditLog.Event auditEvent) {
+
+        if (!configuration.isStaleTokenFallbackEnabled()) {
+            return Future.failedFuture(throwable);
         }
 
-        var issuedFor = map.get("azp");
-        if (issuedFor == null) {
-            return null;
+        var failureCause = TokenExchangeMetrics.failureCause(throwable);
+        if (!TokenExchangeMetrics.isTokenEndpointFailure(failureCause)
+                && !TokenExchangeMetrics.CAUSE_CIRCUIT_OPEN.equals(failureCause)
+                && !TokenExchangeMetrics.CAUSE_REJECTED.equals(failureCause)) {
+            return Future.failedFuture(throwable);
+        }
+
+        var staleToken = tokenCache.getStale(cacheKey);
+        if (staleToken == null || staleToken.remainingRetention(System.currentTimeMillis()) == 0) {
+            return Future.failedFuture(throwable);
         }
 
-        return issuedFor.toString();
+        logWarn("Token exchange for target scope '{}' failed ({}), using the previously exchanged token until it expires",
+                configuration.getTargetScope(), failureCause);
+        metrics.staleTokenUsed();
+        span.setAttribute(TokenExchangeTracing.STALE_TOKEN_USED, true);
+        span.setAttribute(TokenExchangeTracing.FAILURE_CAUSE, failureCause);
+        auditEvent.decide(TokenExchangeAuditLog.Decision.STALE_TOKEN);
+        return Future.succeededFuture(staleToken.accessToken());
     }
 
-    private Collection<String> getIncomingTokenAudiences(ExecutionContext context) {
-        var claims = context.getAttribute("jwt.claims");
-        if (!(claims instanceof Map<?, ?> map)) {
-            return List.of();
+    private Future<String> handleSuccess(TokenEndpointResponse response, TokenCacheKey cacheKey, Long incomingTokenExpiresAt) {
+        var newToken = response.accessToken();
+        if (newToken == null || newToken.isBlank()) {
+            var errorContent = "Request is terminated.";
+            var reason = TokenExchangeMetrics.responseFailureCause(response.statusCode());
+            var failure = new TokenExchangeException(TOKEN_EXCHANGE_EXIT_ON_ERROR, reason, errorContent);
+            if (isDeterministicFailure(response)) {
+                // Wiederholung mit demselben eingehenden Token scheitert ebenso
+                tokenCache.putFailure(cacheKey, failure);
+            }
+            return Future.failedFuture(failure);
         }
 
-        var audiences = map.get("aud");
-        if (!(audiences instanceof Collection<?> coll)) {
-            return List.of();
+        var validUntil = getValidUntil(newToken, response.expiresIn(), incomingTokenExpiresAt);
+        var expiresAt = validUntil - TimeUnit.SECONDS.toMillis(configuration.getTokenExpirySkew());
+        // Bis zum Ablauf im Cache halten: Stale Token, Zaehlen abgewiesener Tokens
+        putTokenInCache(cacheKey, new ExchangedToken(newToken, expiresAt, validUntil));
+        return Future.succeededFuture(newToken);
+    }
+
+    /**
+     * A response without access token is a deterministic failure if the token endpoint accepted the
+     * request, or rejected the incoming token or the client. Other error responses, e.g. server errors
+     * or rate limiting, may succeed on the next attempt.
+     */
+    private static boolean isDeterministicFailure(TokenEndpointResponse response) {
+        var statusCode = response.statusCode();
+        if (statusCode >= 200 && statusCode < 300) {
+            return true;
         }
+        return statusCode >= 400 && statusCode < 500
+                && (OAUTH_ERROR_INVALID_GRANT.equals(response.error()) || OAUTH_ERROR_UNAUTHORIZED_CLIENT.equals(response.error()));
+    }
 
-        return (Collection<String>) coll;
+    /**
+     * Determine how long an exchanged token is valid: until the token itself expires (field
+     * 'expires_in' of the token response and claim 'exp' of the token) or the incoming token
+     * expires, whichever is earlier. The token is used until the configured expiry skew before
+     * this time.
+     */
+    private long getValidUntil(String newToken, Long expiresIn, Long incomingTokenExpiresAt) {
+        var now = System.currentTimeMillis();
+        var validUntil = expiresIn != null
+                ? now + TimeUnit.SECONDS.toMillis(expiresIn)
+                : now + configuration.getTokenCacheTimeUnit().toMillis(configuration.getTokenCacheDuration());
+        var newTokenExpiresAt = JwtExpirationDecoder.decode(newToken);
+        if (newTokenExpiresAt != null) {
+            validUntil = Math.min(validUntil, newTokenExpiresAt);
+        }
+        if (incomingTokenExpiresAt != null) {
+            validUntil = Math.min(validUntil, incomingTokenExpiresAt);
+        }
+        return validUntil;
     }
 
-    private Collection<String> getIncomingTokenScopes(ExecutionContext context) {
-        var claims = context.getAttribute("jwt.claims");
-        if (!(claims instanceof Map<?, ?> map)) {
-            return List.of();
+    private void handleFailure(PolicyChain policyChain, Throwable throwable) {
+        if (throwable instanceof TokenExchangeException exchangeException) {
+            policyChain.failWith(PolicyResult.failure(exchangeException.getKey(), exchangeException.getMessage()));
+        } else {
+            policyChain.failWith(PolicyResult.failure(TOKEN_EXCHANGE_ERROR, throwable.getMessage()));
         }
+    }
 
-        var scopes = map.get("scope");
-        if (!(scopes instanceof String scopesString)) {
-            return List.of();
+    private static ExecutionFailure toExecutionFailure(Throwable throwable) {
+        var failure = new ExecutionFailure(HttpStatusCode.INTERNAL_SERVER_ERROR_500);
+        if (throwable instanceof TokenExchangeException exchangeException) {
+            return failure.key(exchangeException.getKey()).message(exchangeException.getMessage());
         }
+        return failure.key(TOKEN_EXCHANGE_ERROR).message(throwable.getMessage());
+    }
+
+    /**
+     * Bridge the result of the token exchange to RxJava. The Vert.x future completes on the event loop,
+     * the chain of the gateway continues there without a further context switch.
+     */
+    private static Maybe<String> toMaybe(Future<String> future) {
+        return Maybe.create(emitter -> future.onComplete(ar -> {
+            if (ar.failed()) {
+                emitter.onError(ar.cause());
+            } else if (ar.result() == null) {
+                emitter.onComplete();
+            } else {
+                emitter.onSuccess(ar.result());
+            }
+        }));
+    }
+
+    private static String getIncomingToken(Object token) {
+        return toStringOrNull(token);
+    }
+
+    private static String toStringOrNull(Object value) {
+        return value == null ? null : value.toString();
+    }
 
-        return List.of(scopesString.split(" "));
+    private static Map<?, ?> getIncomingTokenClaims(Object claims) {
+        return claims instanceof Map<?, ?> map ? map : Map.of();
     }
 
-    private String getTokenFromCache(String incomingToken, String targetScope) {
-        var hashKey = getHashKeyForTokenAndScope(incomingToken, targetScope);
-        return tokenCache.getIfPresent(hashKey);
+    /**
+     * @return the partition of the token cache: the client the incoming token was issued for, or {@code null}
+     * if the token cache is not partitioned
+     */
+    private String getCachePartition(Map<?, ?> claims) {
+        return configuration.isTokenCachePartitioningEnabled() ? ClaimMatcher.authorizedParty(claims) : null;
     }
 
-    private void putTokenInCache(String incomingToken, String targetScope, String newToken) {
-        var hashKey = getHashKeyForTokenAndScope(incomingToken, targetScope);
-        tokenCache.put(hashKey, newToken);
+    private static Long getIncomingTokenExpiresAt(Map<?, ?> claims) {
+        var expiration = claims.get("exp");
+        if (expiration instanceof Date date) {
+            return date.getTime();
+        }
+        if (expiration instanceof Instant instant) {
+            return instant.toEpochMilli();
+        }
+        if (expiration instanceof Number seconds) {
+            return TimeUnit.SECONDS.toMillis(seconds.longValue());
+        }
+
+        return null;
     }
 
-    private String getHashKeyForTokenAndScope(String token, String targetScope) {
-        return Objects.toString((token + "|" + targetScope).hashCode());
+    private void putTokenInCache(TokenCacheKey cacheKey, ExchangedToken newToken) {
+        if (newToken.remainingLifetime(System.currentTimeMillis()) == 0) {
+            logDebug("Exchanged token for target scope '{}' is not cached as it expires within the expiry skew", configuration.getTargetScope());
+            return;
+        }
+        tokenCache.put(cacheKey, newToken);
     }
 
-    private void setAuthorizationTokenForRequest(Request request, String token) {
+    private static void setAuthorizationTokenForRequest(HttpHeaders headers, String token) {
         var headerValue = "Bearer " + token;
-        request.headers().set("Authorization", headerValue);
+        headers.set("Authorization", headerValue);
+    }
+
+    @Override
+    public Completable onResponse(HttpPlainExecutionContext ctx) {
+        return Completable.defer(() -> isASuccessfulStatus(ctx.response().status())
+                ? Completable.complete()
+                : ctx.interruptWith(new ExecutionFailure(HttpStatusCode.INTERNAL_SERVER_ERROR_500).message("Not a successful response :-(")));
     }
 
     @OnResponse
@@ -351,12 +650,11 @@ public class TokenExchangePolicy {
     }
 
     private static boolean isASuccessfulResponse(Response response) {
-        var status = response.status();
-        return (status >= 100 && status <= 399);
+        return isASuccessfulStatus(response.status());
     }
 
-    private static String encode(String s) {
-        return s == null ? null : URLEncoder.encode(s, StandardCharsets.UTF_8);
+    private static boolean isASuccessfulStatus(int status) {
+        return (status >= 100 && status <= 399);
     }
 
     private void logDebug(String msg, Object... args) {
@@ -2,6 +2,9 @@ package de.udocirkel.example.kcgravitee.gravitee.policy;
 
 import io.gravitee.policy.api.PolicyConfiguration;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -21,6 +24,14 @@ public class TokenExchangePolicyConfiguration implements PolicyConfiguration {
      */
     private String tokenEndpointUrl;
 
+    /**
+     * URLs of further token endpoints, e.g. the other nodes of a Keycloak cluster. Each token exchange is
+     * sent to the endpoint with the lowest latency and load.
+     * <p>
+     * Optional parameter.
+     */
+    private List<String> additionalTokenEndpointUrls;
+
     /**
      * Client ID used to authenticate against the token endpoint during the token exchange.
      * <p>
@@ -84,4 +95,382 @@ public class TokenExchangePolicyConfiguration implements PolicyConfiguration {
      */
     private String targetScope;
 
+    /**
+     * Further scopes requested in the same token exchange as {@link #targetScope}.
+     * <p>
+     * Use case: The backend calls further APIs through the gateway, e.g. order -> menu -> ingredient. With the scopes
+     * of all these APIs, a single token exchange issues a token for the whole call chain, and the policies of the
+     * downstream APIs do not exchange it again (see {@link #notMatchingScope}). The exchanged token is cached once for
+     * all policies requesting the same scopes and audiences.
+     * <p>
+     * Optional parameter.
+     */
+    private List<String> additionalTargetScopes;
+
+    /**
+     * Audiences (client IDs of the target APIs) requested in the token exchange (RFC 8693 parameter "audience").
+     * <p>
+     * Optional parameter.
+     */
+    private List<String> targetAudiences;
+
+    /**
+     * Time in seconds subtracted from the lifetime of an exchanged token before it is no longer
+     * taken from the cache.
+     * <p>
+     * Use case: Prevents forwarding cached tokens that expire before the backend has processed the request.
+     * <p>
+     * Optional parameter. Default: 10
+     */
+    private int tokenExpirySkew = 10;
+
+    /**
+     * Whether cached tokens that are still in use are exchanged again in the background shortly before they expire.
+     * <p>
+     * Use case: Requests with a frequently used incoming token never wait for the token endpoint.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean refreshAheadEnabled = false;
+
+    /**
+     * Time in seconds before the expiry of a cached token, within which a request using the token starts the
+     * refresh-ahead.
+     * <p>
+     * Optional parameter. Default: 30
+     */
+    private int refreshAheadWindow = 30;
+
+    /**
+     * Type of the shared cache used by all gateway nodes in addition to the local token cache, empty for none.
+     * <p>
+     * Use case: A token exchanged on one gateway node is reused on all other nodes. The type selects a
+     * {@link de.udocirkel.example.kcgravitee.gravitee.policy.cache.SharedTokenCacheProvider}, e.g. "in-memory".
+     * <p>
+     * Optional parameter.
+     */
+    private String sharedCacheType;
+
+    /**
+     * Whether tokens missing in the local token cache are looked up in the shared cache.
+     * <p>
+     * Optional parameter. Default: true
+     */
+    private boolean sharedCacheReadThrough = true;
+
+    /**
+     * Whether newly exchanged tokens are written to the shared cache.
+     * <p>
+     * Optional parameter. Default: true
+     */
+    private boolean sharedCacheWriteThrough = true;
+
+    /**
+     * Maximum number of pooled connections to the token endpoint.
+     * <p>
+     * Connections are kept alive and shared by all policy instances that use the same token endpoint
+     * (host and port) with the same connection and TLS settings. Policy instances with other settings
+     * get a connection pool of their own.
+     * <p>
+     * Optional parameter. Default: 20
+     */
+    private int connectionPoolMaxSize = 20;
+
+    /**
+     * Number of connections opened to the token endpoint as soon as the connection pool is created.
+     * <p>
+     * Use case: Avoids the connection handshake for the first token exchanges after a deployment.
+     * <p>
+     * Optional parameter. Default: 1
+     */
+    private int connectionPoolPreConnectSize = 1;
+
+    /**
+     * Time in seconds after which an unused pooled connection to the token endpoint is closed.
+     * <p>
+     * Optional parameter. Default: 60
+     */
+    private int connectionKeepAliveTimeout = 60;
+
+    /**
+     * Whether HTTP/1.1 pipelining is used for requests to the token endpoint.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean connectionPipelining = false;
+
+    /**
+     * Maximum number of pipelined requests per connection, if pipelining is enabled.
+     * <p>
+     * Optional parameter. Default: 10
+     */
+    private int connectionPipeliningLimit = 10;
+
+    /**
+     * Whether HTTP/2 is used for requests to the token endpoint, so that concurrent token exchanges
+     * are multiplexed over few connections.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean http2Enabled = false;
+
+    /**
+     * Maximum number of concurrent requests multiplexed over one HTTP/2 connection, -1 for the limit
+     * announced by the token endpoint.
+     * <p>
+     * Optional parameter. Default: -1
+     */
+    private int http2MultiplexingLimit = -1;
+
+    /**
+     * Whether any server certificate of an HTTPS token endpoint is trusted, without verification.
+     * <p>
+     * Use case: Only for local tests against a token endpoint with a self-signed certificate.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean tokenEndpointTrustAll = false;
+
+    /**
+     * Whether the host name of an HTTPS token endpoint is verified against its server certificate.
+     * <p>
+     * Optional parameter. Default: true
+     */
+    private boolean tokenEndpointVerifyHost = true;
+
+    /**
+     * Path of the truststore with the certificates an HTTPS token endpoint is verified against, empty for the
+     * truststore of the JVM.
+     * <p>
+     * Optional parameter.
+     */
+    private String tokenEndpointTruststorePath;
+
+    /**
+     * Type of the truststore.
+     * <p>
+     * Optional parameter. Default: PEM
+     */
+    private TruststoreType tokenEndpointTruststoreType = TruststoreType.PEM;
+
+    /**
+     * Password of the truststore, for the types PKCS12 and JKS.
+     * <p>
+     * Optional parameter.
+     */
+    private String tokenEndpointTruststorePassword;
+
+    /**
+     * Whether the TLS handshakes with an HTTPS token endpoint are done by the OpenSSL engine (netty-tcnative,
+     * e.g. BoringSSL) if it is available in the gateway, instead of the SSL engine of the JDK.
+     * <p>
+     * Use case: Reduces the CPU time of the handshakes of new connections to the token endpoint.
+     * <p>
+     * Optional parameter. Default: true
+     */
+    private boolean tokenEndpointOpenSslEnabled = true;
+
+    /**
+     * Time in milliseconds within which the token endpoint must answer a token exchange request, 0 for no timeout.
+     * <p>
+     * Optional parameter. Default: 5000
+     */
+    private int tokenEndpointTimeout = 5000;
+
+    /**
+     * Maximum number of concurrent token exchange requests of the policy instance, 0 for no limit.
+     * <p>
+     * Use case: A slow token endpoint cannot tie up more gateway requests than this limit, further
+     * token exchanges fail immediately.
+     * <p>
+     * Optional parameter. Default: 50
+     */
+    private int tokenEndpointMaxConcurrentRequests = 50;
+
+    /**
+     * Whether token exchanges fail fast while the token endpoint is unhealthy (circuit breaker).
+     * <p>
+     * Optional parameter. Default: true
+     */
+    private boolean circuitBreakerEnabled = true;
+
+    /**
+     * Number of consecutive failed token exchanges (timeout, connection error or server error) after which
+     * the circuit breaker opens.
+     * <p>
+     * Optional parameter. Default: 5
+     */
+    private int circuitBreakerFailureThreshold = 5;
+
+    /**
+     * Time in seconds the circuit breaker stays open, before a single token exchange probes the token endpoint.
+     * <p>
+     * Optional parameter. Default: 30
+     */
+    private int circuitBreakerOpenDuration = 30;
+
+    /**
+     * Whether a previously exchanged token for the same incoming token is used if the token endpoint is
+     * unhealthy, as long as the token has not expired. Such a token is used within the token expiry skew.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean staleTokenFallbackEnabled = false;
+
+    /**
+     * Maximum size in bytes of a token endpoint response, 0 for no limit. Larger responses are rejected.
+     * <p>
+     * Optional parameter. Default: 65536
+     */
+    private int tokenResponseMaxSize = 65536;
+
+    /**
+     * Whether the exchanged tokens of the local token cache are stored off-heap in direct memory.
+     * <p>
+     * Use case: Many or large tokens are cached without increasing the heap and the garbage collection load.
+     * The direct memory of the gateway must be large enough (-XX:MaxDirectMemorySize).
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean tokenCacheOffHeapEnabled = false;
+
+    /**
+     * Capacity in MiB of the off-heap token cache. If it is full, the least recently used tokens are evicted.
+     * <p>
+     * Optional parameter. Default: 64
+     */
+    private int tokenCacheOffHeapCapacity = 64;
+
+    /**
+     * Time an exchanged token is cached if the token endpoint does not return its lifetime (expires_in),
+     * in the unit {@link #tokenCacheTimeUnit}. Tokens are never cached beyond the expiry of the incoming token.
+     * <p>
+     * Optional parameter. Default: 5
+     */
+    private long tokenCacheDuration = 5;
+
+    /**
+     * Time unit of {@link #tokenCacheDuration}.
+     * <p>
+     * Optional parameter. Default: MINUTES
+     */
+    private TimeUnit tokenCacheTimeUnit = TimeUnit.MINUTES;
+
+    /**
+     * Maximum number of tokens in the local token cache, if it is not bounded by {@link #tokenCacheMaxWeight}.
+     * <p>
+     * Optional parameter. Default: 10000
+     */
+    private long tokenCacheMaxSize = 10_000;
+
+    /**
+     * Maximum total size in bytes of the tokens in the local token cache, 0 to bound the cache by
+     * {@link #tokenCacheMaxSize} instead.
+     * <p>
+     * Use case: Bounds the memory of the cache if the size of the tokens varies, e.g. with many claims.
+     * Not used by the off-heap token cache, which is bounded by {@link #tokenCacheOffHeapCapacity}.
+     * <p>
+     * Optional parameter. Default: 0
+     */
+    private long tokenCacheMaxWeight = 0;
+
+    /**
+     * Whether the local token cache is partitioned by the client the incoming token was issued for (claim azp).
+     * <p>
+     * Use case: A client whose tokens rotate quickly can only evict its own tokens, not the tokens of all other
+     * clients. Not used by the off-heap token cache.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean tokenCachePartitioningEnabled = false;
+
+    /**
+     * Maximum share in percent of the local token cache the tokens of a single client may occupy, if the cache is
+     * partitioned. If the cache is full, the tokens of the client with the largest share are evicted first.
+     * <p>
+     * Optional parameter. Default: 25
+     */
+    private int tokenCachePartitionQuota = 25;
+
+    /**
+     * Time in seconds for which a token exchange that failed deterministically (error 'invalid_grant' or
+     * 'unauthorized_client', or a response without access token) is cached, 0 to disable. Requests with
+     * the same incoming token fail immediately during this time. Timeouts, connection errors and server
+     * errors are never cached.
+     * <p>
+     * Use case: Protects the token endpoint from clients retrying with a revoked or otherwise unusable token.
+     * <p>
+     * Optional parameter. Default: 10
+     */
+    private int negativeCacheDuration = 10;
+
+    /**
+     * Whether the tokens of the local token cache are written to an encrypted snapshot file periodically and
+     * when the gateway shuts down, and restored from it when the token cache is created.
+     * <p>
+     * Use case: A restarted gateway node reuses the tokens exchanged before the restart, so that a rolling restart
+     * does not cause a burst of token exchanges at the token endpoint.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean tokenCacheSnapshotEnabled = false;
+
+    /**
+     * Directory of the snapshot files, empty for the temporary directory of the JVM. Each token cache has its own
+     * snapshot file.
+     * <p>
+     * Optional parameter. Default: empty
+     */
+    private String tokenCacheSnapshotDirectory = "";
+
+    /**
+     * Base64-encoded AES key (128, 192 or 256 bits) the snapshot files are encrypted with.
+     * <p>
+     * Mandatory parameter, if {@link #tokenCacheSnapshotEnabled} is set.
+     */
+    private String tokenCacheSnapshotKey;
+
+    /**
+     * Time in seconds between two snapshots, 0 to write the snapshot only when the gateway shuts down.
+     * <p>
+     * Optional parameter. Default: 60
+     */
+    private int tokenCacheSnapshotInterval = 60;
+
+    /**
+     * Number of consecutive failed token exchanges (timeout, connection error or server error) after which
+     * a token endpoint is no longer used, if further token endpoints are configured.
+     * <p>
+     * Optional parameter. Default: 3
+     */
+    private int tokenEndpointEjectionThreshold = 3;
+
+    /**
+     * Time in seconds after which an ejected token endpoint is probed, and used again if it answers.
+     * <p>
+     * Optional parameter. Default: 10
+     */
+    private int tokenEndpointEjectionDuration = 10;
+
+    /**
+     * Whether the decision of the policy for each request (e.g. no token, not matching, cache hit, exchanged,
+     * failed) is written to the audit log, with a hash of the incoming token, the client and the latency. The
+     * events are written asynchronously to the logger {@code de.udocirkel.example.kcgravitee.gravitee.policy.audit}
+     * at level INFO.
+     * <p>
+     * Use case: Comprehend which requests were exchanged and why, without debug logging on the request thread.
+     * <p>
+     * Optional parameter. Default: false
+     */
+    private boolean auditLogEnabled = false;
+
+    /**
+     * Type of a truststore
+     */
+    public enum TruststoreType {
+        PEM,
+        PKCS12,
+        JKS
+    }
+
 }
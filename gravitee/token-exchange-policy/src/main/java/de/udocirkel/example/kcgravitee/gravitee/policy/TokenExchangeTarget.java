@@ -0,0 +1,87 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Scopes and audiences requested by a token exchange
+ * <p>
+ * The target scope of the policy can be requested together with further scopes and audiences, e.g.
+ * those of the downstream APIs called by the backend, so that a single token exchange issues a token
+ * for all of them. Scopes and audiences are de-duplicated and sorted, so policies requesting the same
+ * scopes and audiences in a different order share the exchanged tokens. Policies requesting only a
+ * part of these scopes and audiences use the exchanged tokens as well (see {@link #covers}).
+ *
+ * @param scopes    the requested scopes
+ * @param audiences the requested audiences
+ */
+record TokenExchangeTarget(SortedSet<String> scopes, SortedSet<String> audiences) {
+
+    /**
+     * Create the target of the token exchanges of the configuration.
+     *
+     * @param configuration the policy configuration
+     * @return the target
+     */
+    static TokenExchangeTarget of(TokenExchangePolicyConfiguration configuration) {
+        var scopes = new TreeSet<String>();
+        addAll(scopes, configuration.getTargetScope() != null ? List.of(configuration.getTargetScope()) : List.of());
+        addAll(scopes, configuration.getAdditionalTargetScopes());
+        var audiences = new TreeSet<String>();
+        addAll(audiences, configuration.getTargetAudiences());
+        return new TokenExchangeTarget(Collections.unmodifiableSortedSet(scopes), Collections.unmodifiableSortedSet(audiences));
+    }
+
+    /**
+     * @return the requested scopes, space separated
+     */
+    String scope() {
+        return String.join(" ", scopes);
+    }
+
+    /**
+     * @return the identity of the target, for the token cache: the scope, followed by the audiences if any
+     */
+    String id() {
+        if (audiences.isEmpty()) {
+            return scope();
+        }
+        return scope() + " audience=" + String.join(",", audiences);
+    }
+
+    /**
+     * Whether a token exchanged for this target can also be used for the other target, i.e. whether it has
+     * all scopes and audiences of the other target. A token for requested audiences is not used for a target
+     * without audiences, as it may lack the audiences the token endpoint issues by default.
+     *
+     * @param other the other target
+     * @return whether this target covers the other target
+     */
+    boolean covers(TokenExchangeTarget other) {
+        if (audiences.isEmpty() != other.audiences.isEmpty()) {
+            return false;
+        }
+        return scopes.containsAll(other.scopes) && audiences.containsAll(other.audiences);
+    }
+
+    private static void addAll(Collection<String> target, Collection<String> values) {
+        if (values == null) {
+            return;
+        }
+        for (var value : values) {
+            if (value == null) {
+                continue;
+            }
+            // Auch mehrere, durch Leerzeichen getrennte Werte
+            for (var part : value.trim().split("\\s+")) {
+                if (!part.isEmpty()) {
+                    target.add(part);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.gravitee.gateway.api.http.HttpHeaders;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * OpenTelemetry tracing of the token exchange policy
+ * <p>
+ * Each request with a token to exchange gets a span covering the lookup in the token cache and, on a
+ * cache miss, the token exchange. The span is a child of the current span of the gateway if there is
+ * one (e.g. with the OpenTelemetry Java agent), otherwise of the W3C trace context ({@code traceparent})
+ * of the incoming request. The trace context is propagated to the token endpoint, so its spans are
+ * part of the same trace.
+ * <p>
+ * The spans are created with the global OpenTelemetry instance, they are not recorded if no SDK or
+ * agent is installed.
+ */
+final class TokenExchangeTracing {
+
+    static final AttributeKey<String> TARGET_SCOPE = AttributeKey.stringKey("token_exchange.target_scope");
+    static final AttributeKey<String> LOCAL_CACHE = AttributeKey.stringKey("token_exchange.cache.local");
+    static final AttributeKey<String> SHARED_CACHE = AttributeKey.stringKey("token_exchange.cache.shared");
+    static final AttributeKey<Long> TOKEN_ENDPOINT_STATUS = AttributeKey.longKey("http.response.status_code");
+    static final AttributeKey<String> FAILURE_CAUSE = AttributeKey.stringKey("token_exchange.failure.cause");
+    static final AttributeKey<Boolean> STALE_TOKEN_USED = AttributeKey.booleanKey("token_exchange.stale_token_used");
+
+    static final String HIT = "hit";
+    static final String MISS = "miss";
+    static final String NEAR_EXPIRY = "near_expiry";
+    static final String NEGATIVE = "negative";
+
+    private static final String INSTRUMENTATION_SCOPE = "de.udocirkel.example.kcgravitee.token-exchange-policy";
+    private static final String SPAN_NAME = "token exchange";
+
+    private static final TextMapGetter<HttpHeaders> HEADER_GETTER = new TextMapGetter<>() {
+
+        @Override
+        public Iterable<String> keys(HttpHeaders headers) {
+            return headers != null ? headers.names() : Set.of();
+        }
+
+        @Override
+        public String get(HttpHeaders headers, String key) {
+            return headers != null ? headers.get(key) : null;
+        }
+
+    };
+
+    private final String targetScope;
+
+    private volatile Tracer tracer;
+
+    TokenExchangeTracing(TokenExchangePolicyConfiguration configuration) {
+        this.targetScope = String.valueOf(configuration.getTargetScope());
+    }
+
+    /**
+     * Start the span of a token exchange.
+     *
+     * @param requestHeaders supplies the headers of the incoming request
+     * @return the span
+     */
+    Span startSpan(Supplier<HttpHeaders> requestHeaders) {
+        var parent = Context.current();
+        if (!Span.fromContext(parent).getSpanContext().isValid()) {
+            // Kein Span des Gateways, Trace-Kontext des eingehenden Requests fortsetzen
+            parent = GlobalOpenTelemetry.getPropagators().getTextMapPropagator().extract(parent, requestHeaders.get(), HEADER_GETTER);
+        }
+        return tracer().spanBuilder(SPAN_NAME)
+                .setParent(parent)
+                .setAttribute(TARGET_SCOPE, targetScope)
+                .startSpan();
+    }
+
+    /**
+     * End the span, marked as failed if the token exchange failed.
+     *
+     * @param span      the span
+     * @param throwable the failure, or {@code null}
+     */
+    static void endSpan(Span span, Throwable throwable) {
+        if (throwable != null) {
+            span.setAttribute(FAILURE_CAUSE, TokenExchangeMetrics.failureCause(throwable));
+            span.setStatus(StatusCode.ERROR, throwable.getMessage());
+        }
+        span.end();
+    }
+
+    /**
+     * @param span the span of the token exchange
+     * @return the trace context headers ({@code traceparent}, {@code tracestate}) for the request to the
+     * token endpoint, empty if tracing is not active
+     */
+    static Map<String, String> traceHeaders(Span span) {
+        if (!span.getSpanContext().isValid()) {
+            return Map.of();
+        }
+        var headers = new HashMap<String, String>(4);
+        GlobalOpenTelemetry.getPropagators().getTextMapPropagator()
+                .inject(Context.root().with(span), headers, (carrier, key, value) -> carrier.put(key, value));
+        return headers;
+    }
+
+    private Tracer tracer() {
+        // Erst beim ersten Span holen, nachdem ein Agent die globale Instanz gesetzt hat
+        var current = tracer;
+        if (current == null) {
+            current = GlobalOpenTelemetry.getTracer(INSTRUMENTATION_SCOPE);
+            tracer = current;
+        }
+        return current;
+    }
+
+}
@@ -0,0 +1,460 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+/**
+ * Streaming parser for the JSON response of the token endpoint
+ * <p>
+ * The response is parsed chunk by chunk as it is received. Only the fields {@code access_token},
+ * {@code expires_in}, {@code token_type} and {@code error} of the top-level object are materialized, all other
+ * values (e.g. refresh or ID tokens) are skipped without being copied. The parser fails as soon
+ * as the response exceeds the maximum size or is not a valid JSON object.
+ * <p>
+ * A parser instance parses a single response and is not thread-safe.
+ */
+final class TokenResponseParser {
+
+    /**
+     * Malformed or oversized token response
+     */
+    static final class InvalidTokenResponseException extends RuntimeException {
+
+        InvalidTokenResponseException(String message) {
+            super(message, null, false, false);
+        }
+
+    }
+
+    private enum State {
+        BEFORE_OBJECT, BEFORE_KEY, IN_KEY, AFTER_KEY, BEFORE_VALUE, IN_STRING, IN_NUMBER, IN_LITERAL, IN_NESTED, AFTER_VALUE, DONE
+    }
+
+    private enum Field {
+        ACCESS_TOKEN, EXPIRES_IN, TOKEN_TYPE, ERROR, OTHER
+    }
+
+    private static final byte[] ACCESS_TOKEN = "access_token".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EXPIRES_IN = "expires_in".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOKEN_TYPE = "token_type".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = "error".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_KEY_LENGTH = 32;
+
+    private final int maxSize;
+
+    private int size;
+
+    private State state = State.BEFORE_OBJECT;
+
+    private Field field;
+
+    // Schluessel des aktuellen Feldes, nur bis MAX_KEY_LENGTH relevant
+    private final byte[] key = new byte[MAX_KEY_LENGTH];
+
+    private int keyLength;
+
+    // Wert des aktuellen Feldes, nur fuer materialisierte Felder
+    private byte[] value = new byte[0];
+
+    private int valueLength;
+
+    private boolean escape;
+
+    private int unicodeDigits = -1;
+
+    private int unicodeCodeUnit;
+
+    private int highSurrogate;
+
+    private boolean leadingEmptyObject;
+
+    private int nestedDepth;
+
+    private boolean nestedInString;
+
+    private boolean nestedEscape;
+
+    private String accessToken;
+
+    private Long expiresIn;
+
+    private String tokenType;
+
+    private String error;
+
+    /**
+     * @param maxSize the maximum size of the response in bytes
+     */
+    TokenResponseParser(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Parse the next chunk of the response.
+     *
+     * @param chunk the chunk
+     * @throws InvalidTokenResponseException if the response is malformed or too large
+     */
+    void feed(Buffer chunk) {
+        size += chunk.length();
+        if (maxSize > 0 && size > maxSize) {
+            throw new InvalidTokenResponseException("Token response exceeds " + maxSize + " bytes");
+        }
+        for (int i = 0, length = chunk.length(); i < length; i++) {
+            feed(chunk.getByte(i) & 0xff);
+        }
+    }
+
+    /**
+     * Complete parsing after the last chunk.
+     *
+     * @throws InvalidTokenResponseException if the response is incomplete
+     */
+    void finish() {
+        if (state != State.DONE) {
+            throw new InvalidTokenResponseException("Token response is not a complete JSON object");
+        }
+    }
+
+    /**
+     * @return whether the top-level object has been parsed completely
+     */
+    boolean isDone() {
+        return state == State.DONE;
+    }
+
+    String accessToken() {
+        return accessToken;
+    }
+
+    Long expiresIn() {
+        return expiresIn;
+    }
+
+    String tokenType() {
+        return tokenType;
+    }
+
+    /**
+     * @return the OAuth error code of an error response, e.g. {@code invalid_grant}
+     */
+    String error() {
+        return error;
+    }
+
+    private void feed(int b) {
+        switch (state) {
+            case BEFORE_OBJECT -> {
+                if (b == '{') {
+                    state = State.BEFORE_KEY;
+                    leadingEmptyObject = true;
+                } else if (!isWhitespace(b)) {
+                    throw malformed();
+                }
+            }
+            case BEFORE_KEY -> {
+                if (b == '"') {
+                    state = State.IN_KEY;
+                    keyLength = 0;
+                } else if (b == '}' && leadingEmptyObject) {
+                    state = State.DONE;
+                } else if (!isWhitespace(b)) {
+                    throw malformed();
+                }
+            }
+            case IN_KEY -> {
+                if (escape || b != '"') {
+                    readKeyByte(b);
+                } else {
+                    state = State.AFTER_KEY;
+                }
+            }
+            case AFTER_KEY -> {
+                if (b == ':') {
+                    field = field();
+                    state = State.BEFORE_VALUE;
+                } else if (!isWhitespace(b)) {
+                    throw malformed();
+                }
+            }
+            case BEFORE_VALUE -> startValue(b);
+            case IN_STRING -> {
+                if (escape || b != '"') {
+                    readStringByte(b);
+                } else {
+                    endString();
+                    state = State.AFTER_VALUE;
+                }
+            }
+            case IN_NUMBER -> {
+                if (isNumberByte(b)) {
+                    appendValue(b);
+                } else {
+                    endNumber();
+                    state = State.AFTER_VALUE;
+                    feed(b);
+                }
+            }
+            case IN_LITERAL -> {
+                if (b >= 'a' && b <= 'z') {
+                    appendValue(b);
+                } else {
+                    endLiteral();
+                    state = State.AFTER_VALUE;
+                    feed(b);
+                }
+            }
+            case IN_NESTED -> skipNested(b);
+            case AFTER_VALUE -> {
+                if (b == ',') {
+                    state = State.BEFORE_KEY;
+                    leadingEmptyObject = false;
+                } else if (b == '}') {
+                    state = State.DONE;
+                } else if (!isWhitespace(b)) {
+                    throw malformed();
+                }
+            }
+            case DONE -> {
+                if (!isWhitespace(b)) {
+                    throw malformed();
+                }
+            }
+        }
+    }
+
+    private void startValue(int b) {
+        valueLength = 0;
+        if (b == '"') {
+            state = State.IN_STRING;
+        } else if (b == '{' || b == '[') {
+            state = State.IN_NESTED;
+            nestedDepth = 1;
+            nestedInString = false;
+            nestedEscape = false;
+        } else if (b == '-' || (b >= '0' && b <= '9')) {
+            state = State.IN_NUMBER;
+            appendValue(b);
+        } else if (b == 't' || b == 'f' || b == 'n') {
+            state = State.IN_LITERAL;
+            appendValue(b);
+        } else if (!isWhitespace(b)) {
+            throw malformed();
+        }
+    }
+
+    private void readKeyByte(int b) {
+        // Schluessel sind ASCII, Escapes in Schluesseln werden nicht aufgeloest
+        if (escape) {
+            escape = false;
+        } else if (b == '\\') {
+            escape = true;
+        } else if (b < 0x20) {
+            throw malformed();
+        }
+        if (keyLength < MAX_KEY_LENGTH) {
+            key[keyLength] = (byte) b;
+        }
+        keyLength++;
+    }
+
+    private void readStringByte(int b) {
+        if (unicodeDigits >= 0) {
+            var digit = Character.digit(b, 16);
+            if (digit < 0) {
+                throw malformed();
+            }
+            unicodeCodeUnit = (unicodeCodeUnit << 4) | digit;
+            if (++unicodeDigits == 4) {
+                unicodeDigits = -1;
+                appendCodeUnit(unicodeCodeUnit);
+            }
+            return;
+        }
+        if (escape) {
+            escape = false;
+            switch (b) {
+                case '"', '\\', '/' -> appendCodeUnit(b);
+                case 'b' -> appendCodeUnit('\b');
+                case 'f' -> appendCodeUnit('\f');
+                case 'n' -> appendCodeUnit('\n');
+                case 'r' -> appendCodeUnit('\r');
+                case 't' -> appendCodeUnit('\t');
+                case 'u' -> {
+                    unicodeDigits = 0;
+                    unicodeCodeUnit = 0;
+                }
+                default -> throw malformed();
+            }
+            return;
+        }
+        if (b == '\\') {
+            escape = true;
+        } else if (b < 0x20) {
+            throw malformed();
+        } else {
+            flushHighSurrogate();
+            appendValue(b);
+        }
+    }
+
+    private void skipNested(int b) {
+        if (nestedInString) {
+            if (nestedEscape) {
+                nestedEscape = false;
+            } else if (b == '\\') {
+                nestedEscape = true;
+            } else if (b == '"') {
+                nestedInString = false;
+            }
+        } else if (b == '"') {
+            nestedInString = true;
+        } else if (b == '{' || b == '[') {
+            nestedDepth++;
+        } else if ((b == '}' || b == ']') && --nestedDepth == 0) {
+            state = State.AFTER_VALUE;
+        }
+    }
+
+    private Field field() {
+        if (keyEquals(ACCESS_TOKEN)) {
+            return Field.ACCESS_TOKEN;
+        }
+        if (keyEquals(EXPIRES_IN)) {
+            return Field.EXPIRES_IN;
+        }
+        if (keyEquals(TOKEN_TYPE)) {
+            return Field.TOKEN_TYPE;
+        }
+        if (keyEquals(ERROR)) {
+            return Field.ERROR;
+        }
+        return Field.OTHER;
+    }
+
+    private boolean keyEquals(byte[] name) {
+        return keyLength == name.length && Arrays.equals(key, 0, keyLength, name, 0, name.length);
+    }
+
+    private void endString() {
+        flushHighSurrogate();
+        if (unicodeDigits >= 0) {
+            throw malformed();
+        }
+        switch (field) {
+            case ACCESS_TOKEN -> accessToken = valueAsString();
+            case TOKEN_TYPE -> tokenType = valueAsString();
+            case ERROR -> error = valueAsString();
+            default -> {
+            }
+        }
+    }
+
+    private void endNumber() {
+        if (field != Field.EXPIRES_IN) {
+            return;
+        }
+        // Nur der ganzzahlige Anteil, Exponenten werden nicht erwartet
+        long seconds = 0;
+        var negative = value[0] == '-';
+        for (int i = negative ? 1 : 0; i < valueLength; i++) {
+            var b = value[i];
+            if (b < '0' || b > '9') {
+                break;
+            }
+            seconds = Math.min(seconds * 10 + (b - '0'), Integer.MAX_VALUE);
+        }
+        expiresIn = negative ? 0 : seconds;
+    }
+
+    private void endLiteral() {
+        if (!(literalEquals("true") || literalEquals("false") || literalEquals("null"))) {
+            throw malformed();
+        }
+    }
+
+    private boolean literalEquals(String literal) {
+        if (valueLength != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < valueLength; i++) {
+            if (value[i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendCodeUnit(int codeUnit) {
+        if (highSurrogate != 0) {
+            if (Character.isLowSurrogate((char) codeUnit)) {
+                appendCodePoint(Character.toCodePoint((char) highSurrogate, (char) codeUnit));
+                highSurrogate = 0;
+                return;
+            }
+            flushHighSurrogate();
+        }
+        if (Character.isHighSurrogate((char) codeUnit)) {
+            highSurrogate = codeUnit;
+        } else {
+            appendCodePoint(Character.isLowSurrogate((char) codeUnit) ? 0xfffd : codeUnit);
+        }
+    }
+
+    private void flushHighSurrogate() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            appendCodePoint(0xfffd);
+        }
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            appendValue(codePoint);
+        } else if (codePoint < 0x800) {
+            appendValue(0xc0 | (codePoint >> 6));
+            appendValue(0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            appendValue(0xe0 | (codePoint >> 12));
+            appendValue(0x80 | ((codePoint >> 6) & 0x3f));
+            appendValue(0x80 | (codePoint & 0x3f));
+        } else {
+            appendValue(0xf0 | (codePoint >> 18));
+            appendValue(0x80 | ((codePoint >> 12) & 0x3f));
+            appendValue(0x80 | ((codePoint >> 6) & 0x3f));
+            appendValue(0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private void appendValue(int b) {
+        // Werte uebersprungener Felder werden nicht kopiert, ausser Literale zur Pruefung
+        if (field == Field.OTHER && state != State.IN_LITERAL) {
+            return;
+        }
+        if (valueLength == value.length) {
+            value = Arrays.copyOf(value, Math.max(64, valueLength * 2));
+        }
+        value[valueLength++] = (byte) b;
+    }
+
+    private String valueAsString() {
+        return new String(value, 0, valueLength, StandardCharsets.UTF_8);
+    }
+
+    private InvalidTokenResponseException malformed() {
+        return new InvalidTokenResponseException("Token response is not a valid JSON object");
+    }
+
+    private static boolean isNumberByte(int b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+}
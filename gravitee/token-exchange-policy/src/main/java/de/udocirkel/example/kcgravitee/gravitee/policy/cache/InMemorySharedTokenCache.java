@@ -0,0 +1,61 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared token cache held in memory
+ * <p>
+ * Reference implementation of {@link SharedTokenCache}. The cache is shared by all policy instances
+ * of one gateway, but not across gateway nodes. It is meant for tests and as a template for
+ * implementations backed by a distributed store.
+ */
+public class InMemorySharedTokenCache implements SharedTokenCache {
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final int maximumSize;
+
+    /**
+     * @param maximumSize the maximum number of cached tokens, further tokens are not cached
+     */
+    public InMemorySharedTokenCache(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    @Override
+    public CompletionStage<Entry> get(String key) {
+        var entry = entries.get(key);
+        if (entry != null && entry.expiresAt() <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        return CompletableFuture.completedFuture(entry);
+    }
+
+    @Override
+    public CompletionStage<Void> put(String key, Entry entry) {
+        if (entries.size() >= maximumSize) {
+            removeExpiredEntries();
+        }
+        if (entries.size() < maximumSize || entries.containsKey(key)) {
+            entries.put(key, entry);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return the number of cached tokens, including expired tokens not yet removed
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void removeExpiredEntries() {
+        var now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiresAt() <= now);
+    }
+
+}
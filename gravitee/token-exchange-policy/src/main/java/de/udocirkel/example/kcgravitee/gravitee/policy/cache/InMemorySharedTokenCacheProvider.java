@@ -0,0 +1,28 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy.cache;
+
+import de.udocirkel.example.kcgravitee.gravitee.policy.TokenExchangePolicyConfiguration;
+
+/**
+ * Provides the {@link InMemorySharedTokenCache} for the shared cache type {@value #TYPE}
+ * <p>
+ * All policy instances share one in-memory cache.
+ */
+public class InMemorySharedTokenCacheProvider implements SharedTokenCacheProvider {
+
+    public static final String TYPE = "in-memory";
+
+    private static final int MAXIMUM_SIZE = 100_000;
+
+    private static final InMemorySharedTokenCache INSTANCE = new InMemorySharedTokenCache(MAXIMUM_SIZE);
+
+    @Override
+    public String type() {
+        return TYPE;
+    }
+
+    @Override
+    public SharedTokenCache create(TokenExchangePolicyConfiguration configuration) {
+        return INSTANCE;
+    }
+
+}
@@ -0,0 +1,44 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy.cache;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Shared (second level) cache for exchanged tokens
+ * <p>
+ * A shared cache is used by the token exchange policies of all gateway nodes, in addition to the
+ * local cache of each policy. A token exchanged on one node can then be reused on all other nodes.
+ * <p>
+ * Implementations are provided by a {@link SharedTokenCacheProvider}. All operations are asynchronous
+ * and must not block the calling thread.
+ */
+public interface SharedTokenCache {
+
+    /**
+     * Get the cached token for the given key.
+     *
+     * @param key the cache key, a hex encoded digest of the token cache identity (token endpoint, client, scopes
+     *            and audiences) and of the incoming token and the target scope
+     * @return the cached token, or {@code null} if no (still valid) token is cached
+     */
+    CompletionStage<Entry> get(String key);
+
+    /**
+     * Cache the given token. The token must not be returned after its expiry time.
+     *
+     * @param key   the cache key, a hex encoded digest of the token cache identity (token endpoint, client,
+     *              scopes and audiences) and of the incoming token and the target scope
+     * @param entry the token to cache
+     * @return completed when the token is cached
+     */
+    CompletionStage<Void> put(String key, Entry entry);
+
+    /**
+     * Cached token
+     *
+     * @param accessToken the exchanged access token
+     * @param expiresAt   the time (epoch milliseconds) until the token may be used
+     */
+    record Entry(String accessToken, long expiresAt) {
+    }
+
+}
@@ -0,0 +1,27 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy.cache;
+
+import de.udocirkel.example.kcgravitee.gravitee.policy.TokenExchangePolicyConfiguration;
+
+/**
+ * Service provider interface for shared token caches
+ * <p>
+ * Providers are looked up with {@link java.util.ServiceLoader} in the class loader of the policy plugin,
+ * i.e. a provider is added by placing its jar (with a {@code META-INF/services} entry) in the {@code lib}
+ * directory of the plugin. The provider is selected by the configured shared cache type.
+ */
+public interface SharedTokenCacheProvider {
+
+    /**
+     * @return the type of the shared cache, as configured in the policy
+     */
+    String type();
+
+    /**
+     * Create (or look up) the shared cache for the given policy configuration.
+     *
+     * @param configuration the policy configuration
+     * @return the shared cache
+     */
+    SharedTokenCache create(TokenExchangePolicyConfiguration configuration);
+
+}
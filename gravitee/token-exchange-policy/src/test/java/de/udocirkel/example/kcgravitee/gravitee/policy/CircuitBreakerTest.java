@@ -0,0 +1,78 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(3, 1_000);
+
+    @Test
+    void testOpensAfterConsecutiveFailures() {
+        circuitBreaker.onFailure(0);
+        circuitBreaker.onFailure(0);
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure(0);
+        circuitBreaker.onFailure(0);
+        assertThat(circuitBreaker.tryAcquire(0)).isTrue();
+
+        circuitBreaker.onFailure(0);
+
+        assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.tryAcquire(999)).isFalse();
+    }
+
+    @Test
+    void testHalfOpenPermitsSingleProbe() {
+        openCircuitBreaker();
+
+        assertThat(circuitBreaker.tryAcquire(1_000)).isTrue();
+        assertThat(circuitBreaker.tryAcquire(1_000)).isFalse();
+
+        circuitBreaker.onSuccess();
+
+        assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(circuitBreaker.tryAcquire(1_000)).isTrue();
+    }
+
+    @Test
+    void testFailedProbeOpensAgain() {
+        openCircuitBreaker();
+        assertThat(circuitBreaker.tryAcquire(1_000)).isTrue();
+
+        circuitBreaker.onFailure(1_000);
+
+        assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.tryAcquire(1_999)).isFalse();
+        assertThat(circuitBreaker.tryAcquire(2_000)).isTrue();
+    }
+
+    @Test
+    void testFailureWhileOpenDoesNotExtendOpenDuration() {
+        openCircuitBreaker();
+
+        // Aufruf vor dem Oeffnen zugelassen, scheitert spaeter
+        circuitBreaker.onFailure(500);
+
+        assertThat(circuitBreaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.tryAcquire(1_000)).isTrue();
+    }
+
+    @Test
+    void testReleasedProbeIsPermittedAgain() {
+        openCircuitBreaker();
+        assertThat(circuitBreaker.tryAcquire(1_000)).isTrue();
+
+        circuitBreaker.release();
+
+        assertThat(circuitBreaker.tryAcquire(1_000)).isTrue();
+    }
+
+    private void openCircuitBreaker() {
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onFailure(0);
+        }
+    }
+
+}
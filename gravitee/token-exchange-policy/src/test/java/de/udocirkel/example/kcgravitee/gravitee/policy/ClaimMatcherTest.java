@@ -0,0 +1,59 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ClaimMatcherTest {
+
+    @Test
+    void testMatchPassesQualifyingClaims() {
+        var matcher = new ClaimMatcher(configuration());
+
+        var mismatch = matcher.match(Map.of(
+                "azp", "coffee-app-123",
+                "aud", List.of("api-gateway"),
+                "scope", "profile coffee-order-read email"));
+
+        assertThat(mismatch).isNull();
+    }
+
+    @Test
+    void testMatchReturnsFirstMismatch() {
+        var matcher = new ClaimMatcher(configuration());
+
+        assertThat(matcher.match(Map.of())).isEqualTo(ClaimMatcher.Mismatch.NO_AUTHORIZED_PARTY);
+        assertThat(matcher.match(Map.of("azp", "tea-app", "aud", List.of("coffee-order-api"))))
+                .isEqualTo(ClaimMatcher.Mismatch.AUTHORIZED_PARTY_NOT_MATCHING);
+        assertThat(matcher.match(Map.of("azp", "coffee-app", "aud", List.of("account"))))
+                .isEqualTo(ClaimMatcher.Mismatch.AUDIENCE_MISSING);
+        assertThat(matcher.match(Map.of("azp", "coffee-app", "aud", List.of("api-gateway", "coffee-order-api"))))
+                .isEqualTo(ClaimMatcher.Mismatch.AUDIENCE_PRESENT);
+        assertThat(matcher.match(Map.of("azp", "coffee-app", "aud", "api-gateway", "scope", "profile coffee-order")))
+                .isEqualTo(ClaimMatcher.Mismatch.SCOPE_PRESENT);
+    }
+
+    @Test
+    void testContainsScopeMatchesWholeScopesOnly() {
+        assertThat(ClaimMatcher.containsScope("coffee-order", "coffee-order")).isTrue();
+        assertThat(ClaimMatcher.containsScope("profile coffee-order", "coffee-order")).isTrue();
+        assertThat(ClaimMatcher.containsScope("coffee-order profile", "coffee-order")).isTrue();
+        assertThat(ClaimMatcher.containsScope("coffee-order-read coffee-order", "coffee-order")).isTrue();
+        assertThat(ClaimMatcher.containsScope("coffee-order-read my-coffee-order", "coffee-order")).isFalse();
+        assertThat(ClaimMatcher.containsScope("coffee", "coffee-order")).isFalse();
+        assertThat(ClaimMatcher.containsScope(null, "coffee-order")).isFalse();
+    }
+
+    private static TokenExchangePolicyConfiguration configuration() {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setAuthorizedPartyPrefix("coffee-");
+        config.setMatchingAudience("api-gateway");
+        config.setNotMatchingAudience("coffee-order-api");
+        config.setNotMatchingScope("coffee-order");
+        return config;
+    }
+
+}
@@ -0,0 +1,36 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ExchangedTokenExpiryTest {
+
+    private final ExchangedTokenExpiry expiry = new ExchangedTokenExpiry();
+
+    @Test
+    void testExpireAfterCreateUsesTokenLifetime() {
+        var token = new ExchangedToken("token", System.currentTimeMillis() + 60_000);
+
+        var duration = expiry.expireAfterCreate("key", token, 0);
+
+        assertThat(duration).isBetween(TimeUnit.SECONDS.toNanos(59), TimeUnit.SECONDS.toNanos(60));
+    }
+
+    @Test
+    void testExpireAfterCreateWithExpiredToken() {
+        var token = new ExchangedToken("token", System.currentTimeMillis() - 1_000);
+
+        assertThat(expiry.expireAfterCreate("key", token, 0)).isZero();
+    }
+
+    @Test
+    void testExpireAfterReadKeepsLifetime() {
+        var token = new ExchangedToken("token", System.currentTimeMillis() + 60_000);
+
+        assertThat(expiry.expireAfterRead("key", token, 0, 42)).isEqualTo(42);
+    }
+
+}
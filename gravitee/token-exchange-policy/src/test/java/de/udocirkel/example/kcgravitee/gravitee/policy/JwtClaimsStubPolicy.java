@@ -0,0 +1,62 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.gravitee.gateway.api.ExecutionContext;
+import io.gravitee.gateway.api.Request;
+import io.gravitee.gateway.api.Response;
+import io.gravitee.gateway.api.http.HttpHeaders;
+import io.gravitee.gateway.reactive.api.context.http.HttpPlainExecutionContext;
+import io.gravitee.gateway.reactive.api.policy.http.HttpPolicy;
+import io.gravitee.policy.api.PolicyChain;
+import io.gravitee.policy.api.annotations.OnRequest;
+
+import io.reactivex.rxjava3.core.Completable;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test policy that takes the Bearer token of the request as JWT without validating it, in place of a
+ * JWT plan. The claims are fixed, the token only has to be unique per user.
+ */
+public class JwtClaimsStubPolicy implements HttpPolicy {
+
+    static final String POLICY_ID = "jwt-claims-stub";
+
+    @Override
+    public String id() {
+        return POLICY_ID;
+    }
+
+    @Override
+    public Completable onRequest(HttpPlainExecutionContext ctx) {
+        return Completable.fromRunnable(() -> {
+            var token = bearerToken(ctx.request().headers());
+            if (token != null) {
+                ctx.setAttribute("jwt.token", token);
+                ctx.setAttribute("jwt.claims", claims());
+            }
+        });
+    }
+
+    @OnRequest
+    public void onRequest(Request request, Response response, ExecutionContext context, PolicyChain policyChain) {
+        var token = bearerToken(request.headers());
+        if (token != null) {
+            context.setAttribute("jwt.token", token);
+            context.setAttribute("jwt.claims", claims());
+        }
+        policyChain.doNext(request, response);
+    }
+
+    private static String bearerToken(HttpHeaders headers) {
+        var authorization = headers.get("Authorization");
+        return authorization != null && authorization.startsWith("Bearer ") ? authorization.substring(7) : null;
+    }
+
+    private static Map<String, Object> claims() {
+        return Map.of(
+                "azp", "coffee-app",
+                "exp", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 3600);
+    }
+
+}
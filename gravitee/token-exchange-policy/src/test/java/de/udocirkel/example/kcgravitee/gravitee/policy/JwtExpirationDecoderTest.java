@@ -0,0 +1,47 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+class JwtExpirationDecoderTest {
+
+    @Test
+    void testDecodesExpiration() {
+        var token = jwt("{\"sub\":\"coffee-app\",\"exp\" : 1700000000,\"iat\":1699999700}");
+
+        assertThat(JwtExpirationDecoder.decode(token)).isEqualTo(1_700_000_000_000L);
+    }
+
+    @Test
+    void testSkipsExpAsValue() {
+        var token = jwt("{\"scope\":\"exp\",\"exp\":1700000000}");
+
+        assertThat(JwtExpirationDecoder.decode(token)).isEqualTo(1_700_000_000_000L);
+    }
+
+    @Test
+    void testWithoutExpiration() {
+        assertThat(JwtExpirationDecoder.decode(jwt("{\"sub\":\"coffee-app\"}"))).isNull();
+        assertThat(JwtExpirationDecoder.decode(jwt("{\"exp\":null}"))).isNull();
+    }
+
+    @Test
+    void testNoJwt() {
+        assertThat(JwtExpirationDecoder.decode("opaque-token")).isNull();
+        assertThat(JwtExpirationDecoder.decode("header.payload")).isNull();
+        assertThat(JwtExpirationDecoder.decode("header.!!!.signature")).isNull();
+    }
+
+    private static String jwt(String payload) {
+        var encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8))
+                + "." + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8))
+                + ".signature";
+    }
+
+}
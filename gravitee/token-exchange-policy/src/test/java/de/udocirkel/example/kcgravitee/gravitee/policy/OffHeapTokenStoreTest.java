@@ -0,0 +1,83 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class OffHeapTokenStoreTest {
+
+    private final List<RemovalCause> evictions = new ArrayList<>();
+
+    private final OffHeapTokenStore store = new OffHeapTokenStore(64 * OffHeapTokenStore.BLOCK_SIZE, evictions::add);
+
+    @Test
+    void testRoundTrip() {
+        var key = TokenCacheKey.of("incoming-token", "coffee-order");
+        var token = new ExchangedToken("x".repeat(1000) + "\u00e4", System.currentTimeMillis() + 60_000);
+
+        store.put(key, token);
+
+        assertThat(store.get(key)).isEqualTo(token);
+        assertThat(store.usedBytes()).isEqualTo(4 * OffHeapTokenStore.BLOCK_SIZE);
+    }
+
+    @Test
+    void testPutIfAbsentKeepsStoredToken() {
+        var key = TokenCacheKey.of("incoming-token", "coffee-order");
+        var token = new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000);
+        store.put(key, token);
+
+        assertThat(store.putIfAbsent(key, new ExchangedToken("older-token", System.currentTimeMillis() + 30_000))).isFalse();
+
+        assertThat(store.get(key)).isEqualTo(token);
+        assertThat(store.usedBytes()).isEqualTo(OffHeapTokenStore.BLOCK_SIZE);
+    }
+
+    @Test
+    void testReplaceOverwritesToken() {
+        var key = TokenCacheKey.of("incoming-token", "coffee-order");
+        var token = new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000);
+        store.put(key, token);
+
+        assertThat(store.replace(key, token, token.withRefreshStarted())).isTrue();
+        assertThat(store.replace(key, token, token.withRefreshStarted())).isFalse();
+        assertThat(store.get(key).refreshStarted()).isTrue();
+
+        var newToken = new ExchangedToken("new-token", System.currentTimeMillis() + 120_000);
+        assertThat(store.replace(key, store.get(key), newToken)).isTrue();
+        assertThat(store.get(key)).isEqualTo(newToken);
+        assertThat(store.usedBytes()).isEqualTo(OffHeapTokenStore.BLOCK_SIZE);
+    }
+
+    @Test
+    void testEvictionReturnsBlocksToSlab() {
+        var expiresAt = System.currentTimeMillis() + 60_000;
+        for (int i = 0; i < 100; i++) {
+            store.put(TokenCacheKey.of("incoming-token-" + i, "coffee-order"), new ExchangedToken("x".repeat(1000), expiresAt));
+        }
+
+        assertThat(evictions).hasSizeGreaterThanOrEqualTo(85).containsOnly(RemovalCause.SIZE);
+        assertThat(store.usedBytes()).isLessThanOrEqualTo(60 * OffHeapTokenStore.BLOCK_SIZE);
+    }
+
+    @Test
+    void testKeepsStaleTokenUntilRetentionEnds() {
+        var key = TokenCacheKey.of("incoming-token", "coffee-order");
+        var now = System.currentTimeMillis();
+        var staleToken = new ExchangedToken("stale-token", now - 1_000, now + 60_000);
+        store.put(key, staleToken);
+
+        assertThat(store.get(key)).isEqualTo(staleToken);
+
+        var expiredKey = TokenCacheKey.of("expired-token", "coffee-order");
+        store.put(expiredKey, new ExchangedToken("expired-token", now - 1_000));
+
+        assertThat(store.get(expiredKey)).isNull();
+    }
+
+}
@@ -0,0 +1,65 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class PartitionedTokenStoreTest {
+
+    private final List<RemovalCause> evictions = new ArrayList<>();
+
+    private final PartitionedTokenStore store = new PartitionedTokenStore(100, 0, 50, evictions::add);
+
+    private final long expiresAt = System.currentTimeMillis() + 60_000;
+
+    @Test
+    void testNoisyClientOnlyEvictsOwnTokens() {
+        var quietKey = TokenCacheKey.of("quiet-token", "coffee-order", "coffee-app-quiet");
+        var quietToken = new ExchangedToken("quiet-exchanged-token", expiresAt);
+        store.put(quietKey, quietToken);
+
+        for (int i = 0; i < 200; i++) {
+            store.put(TokenCacheKey.of("noisy-token-" + i, "coffee-order", "coffee-app-noisy"), new ExchangedToken("noisy-" + i, expiresAt));
+        }
+
+        assertThat(store.get(quietKey)).isEqualTo(quietToken);
+        assertThat(evictions).hasSize(150).containsOnly(RemovalCause.SIZE);
+    }
+
+    @Test
+    void testFullStoreEvictsFromLargestPartition() {
+        var clients = List.of("coffee-app-a", "coffee-app-b", "coffee-app-c");
+        for (var client : clients) {
+            for (int i = 0; i < 40; i++) {
+                store.put(TokenCacheKey.of(client + "-token-" + i, "coffee-order", client), new ExchangedToken("exchanged", expiresAt));
+            }
+        }
+        var smallKey = TokenCacheKey.of("small-token", "coffee-order", "coffee-app-small");
+        store.put(smallKey, new ExchangedToken("small-exchanged-token", expiresAt));
+
+        var sizes = new HashMap<String, Integer>();
+        store.forEach((key, token) -> sizes.merge(key.partition(), 1, Integer::sum));
+        assertThat(sizes.values().stream().mapToInt(Integer::intValue).sum()).isEqualTo(100);
+        assertThat(sizes).containsEntry("coffee-app-small", 1);
+        assertThat(sizes.get("coffee-app-a")).isBetween(32, 34);
+        assertThat(store.get(smallKey)).isNotNull();
+    }
+
+    @Test
+    void testSameTokenInDifferentPartitions() {
+        var key = TokenCacheKey.of("incoming-token", "coffee-order", "coffee-app-a");
+        var token = new ExchangedToken("exchanged-token", expiresAt);
+        store.put(key, token);
+
+        assertThat(store.get(key)).isEqualTo(token);
+        assertThat(store.get(TokenCacheKey.of("incoming-token", "coffee-order", "coffee-app-b"))).isNull();
+        assertThat(store.partitionCount()).isEqualTo(1);
+    }
+
+}
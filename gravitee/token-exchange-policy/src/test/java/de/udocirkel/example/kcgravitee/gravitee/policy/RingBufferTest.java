@@ -0,0 +1,99 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+class RingBufferTest {
+
+    @Test
+    void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertThat(new RingBuffer<String>(1).capacity()).isEqualTo(2);
+        assertThat(new RingBuffer<String>(8).capacity()).isEqualTo(8);
+        assertThat(new RingBuffer<String>(1000).capacity()).isEqualTo(1024);
+    }
+
+    @Test
+    void testPollReturnsElementsInOrder() {
+        var buffer = new RingBuffer<String>(4);
+
+        buffer.offer("a");
+        buffer.offer("b");
+
+        assertThat(buffer.poll()).isEqualTo("a");
+        assertThat(buffer.poll()).isEqualTo("b");
+        assertThat(buffer.poll()).isNull();
+    }
+
+    @Test
+    void testOfferDropsElementsIfFull() {
+        var buffer = new RingBuffer<Integer>(2);
+
+        assertThat(buffer.offer(1)).isTrue();
+        assertThat(buffer.offer(2)).isTrue();
+        assertThat(buffer.offer(3)).isFalse();
+        assertThat(buffer.dropped()).isEqualTo(1);
+
+        assertThat(buffer.poll()).isEqualTo(1);
+        assertThat(buffer.offer(4)).isTrue();
+        assertThat(buffer.poll()).isEqualTo(2);
+        assertThat(buffer.poll()).isEqualTo(4);
+    }
+
+    @Test
+    void testConcurrentProducersLoseNoElements() throws InterruptedException {
+        var buffer = new RingBuffer<Integer>(1024);
+        var producers = 4;
+        var perProducer = 10_000;
+        var start = new CountDownLatch(1);
+        var threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            var offset = p * perProducer;
+            var thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    // Volle Puffer wiederholen, damit kein Element verloren geht
+                    while (!buffer.offer(offset + i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        var received = new HashSet<Integer>();
+        var lastOfProducer = new int[producers];
+        Arrays.fill(lastOfProducer, -1);
+        while (received.size() < producers * perProducer) {
+            var element = buffer.poll();
+            if (element == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            // Reihenfolge je Produzent bleibt erhalten
+            var producer = element / perProducer;
+            assertThat(element % perProducer).isGreaterThan(lastOfProducer[producer]);
+            lastOfProducer[producer] = element % perProducer;
+            received.add(element);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertThat(received).hasSize(producers * perProducer);
+        assertThat(buffer.poll()).isNull();
+    }
+
+}
@@ -0,0 +1,77 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class SingleFlightTest {
+
+    private final AtomicInteger coalesced = new AtomicInteger();
+
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>(coalesced::incrementAndGet);
+
+    @Test
+    void testExecuteCoalescesConcurrentCalls() {
+        var calls = new AtomicInteger();
+        var promise = Promise.<String>promise();
+
+        var first = singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            return promise.future();
+        });
+        var second = singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            return Future.succeededFuture("other");
+        });
+
+        promise.complete("token");
+
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(coalesced.get()).isEqualTo(1);
+        assertThat(first.result()).isEqualTo("token");
+        assertThat(second.result()).isEqualTo("token");
+        assertThat(singleFlight.size()).isZero();
+    }
+
+    @Test
+    void testExecuteResumesWaitersWithSameFailure() {
+        var promise = Promise.<String>promise();
+        var failure = new TokenExchangeException("TOKEN_EXCHANGE_ERROR", TokenExchangeMetrics.CAUSE_OTHER, "failed");
+
+        var first = singleFlight.execute("key", promise::future);
+        var second = singleFlight.execute("key", promise::future);
+
+        promise.fail(failure);
+
+        assertThat(first.cause()).isSameAs(failure);
+        assertThat(second.cause()).isSameAs(failure);
+        assertThat(singleFlight.size()).isZero();
+    }
+
+    @Test
+    void testExecuteDoesNotCoalesceCompletedCalls() {
+        var calls = new AtomicInteger();
+
+        singleFlight.execute("key", () -> Future.succeededFuture("token-" + calls.incrementAndGet()));
+        var second = singleFlight.execute("key", () -> Future.succeededFuture("token-" + calls.incrementAndGet()));
+
+        assertThat(second.result()).isEqualTo("token-2");
+        assertThat(coalesced.get()).isZero();
+    }
+
+    @Test
+    void testExecuteDoesNotCoalesceDifferentKeys() {
+        var first = singleFlight.execute("key-1", () -> Promise.<String>promise().future());
+        var second = singleFlight.execute("key-2", () -> Promise.<String>promise().future());
+
+        assertThat(first).isNotSameAs(second);
+        assertThat(singleFlight.size()).isEqualTo(2);
+        assertThat(coalesced.get()).isZero();
+    }
+
+}
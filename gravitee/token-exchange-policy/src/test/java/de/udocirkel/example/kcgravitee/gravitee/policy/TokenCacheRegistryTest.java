@@ -0,0 +1,159 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TokenCacheRegistryTest {
+
+    private final TokenCacheKey key = TokenCacheKey.of("incoming-token", "coffee-order");
+
+    private final Object owner = new Object();
+
+    @AfterEach
+    void tearDown() {
+        TokenCacheRegistry.clear();
+    }
+
+    @Test
+    void testSameTokenEndpointClientAndScopeShareTokenCache() {
+        var tokenCache = TokenCacheRegistry.acquire(owner, configuration("coffee-order")).tokenCache();
+        tokenCache.put(key, new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000));
+
+        // z.B. nach einem Redeployment der API
+        var redeployed = TokenCacheRegistry.acquire(owner, configuration("coffee-order")).tokenCache();
+
+        assertThat(redeployed).isSameAs(tokenCache);
+        assertThat(redeployed.getIfPresent(key).accessToken()).isEqualTo("exchanged-token");
+    }
+
+    @Test
+    void testOtherScopeGetsOwnTokenCache() {
+        var tokenCache = TokenCacheRegistry.acquire(owner, configuration("coffee-order")).tokenCache();
+
+        assertThat(TokenCacheRegistry.acquire(owner, configuration("coffee-pay")).tokenCache()).isNotSameAs(tokenCache);
+    }
+
+    @Test
+    void testSameScopesShareTokenCache() {
+        var orderConfig = configuration("coffee-order");
+        orderConfig.setAdditionalTargetScopes(List.of("coffee-menu", "coffee-ingredient"));
+        var menuConfig = configuration("coffee-menu");
+        menuConfig.setAdditionalTargetScopes(List.of("coffee-ingredient", "coffee-order"));
+
+        var tokenCache = TokenCacheRegistry.acquire(owner, orderConfig).tokenCache();
+
+        assertThat(TokenCacheRegistry.acquire(owner, menuConfig).tokenCache()).isSameAs(tokenCache);
+    }
+
+    @Test
+    void testTokenCachesOfMoreScopesCoverTarget() {
+        var chainConfig = configuration("coffee-order");
+        chainConfig.setAdditionalTargetScopes(List.of("coffee-menu", "coffee-ingredient"));
+        var chain = TokenCacheRegistry.acquire(owner, chainConfig);
+        var otherClientConfig = configuration("coffee-order");
+        otherClientConfig.setAdditionalTargetScopes(List.of("coffee-menu"));
+        otherClientConfig.setTokenExchangeClientId("other-client");
+        TokenCacheRegistry.acquire(owner, otherClientConfig);
+        TokenCacheRegistry.acquire(owner, configuration("coffee-pay"));
+
+        var menu = TokenCacheRegistry.acquire(owner, configuration("coffee-menu"));
+
+        assertThat(menu.coveringTokenCaches()).containsExactly(new TokenCacheRegistry.CoveringTokenCache(
+                TokenCacheKey.Target.of("coffee-ingredient coffee-menu coffee-order"), false, chain.tokenCache()));
+        assertThat(chain.coveringTokenCaches()).isEmpty();
+
+        chain.release();
+
+        assertThat(menu.coveringTokenCaches()).isEmpty();
+    }
+
+    @Test
+    void testOtherCacheSettingsGetOwnTokenCache() {
+        var tokenCache = TokenCacheRegistry.acquire(owner, configuration("coffee-order")).tokenCache();
+
+        var config = configuration("coffee-order");
+        config.setTokenCacheMaxSize(100);
+
+        assertThat(TokenCacheRegistry.acquire(owner, config).tokenCache()).isNotSameAs(tokenCache);
+        // Die API mit den bisherigen Einstellungen behaelt ihren Cache
+        assertThat(TokenCacheRegistry.acquire(owner, configuration("coffee-order")).tokenCache()).isSameAs(tokenCache);
+    }
+
+    @Test
+    void testTokenCacheIsReleasedWithLastOwner() throws Exception {
+        var undeployed = new Object();
+        TokenCacheRegistry.acquire(undeployed, configuration("coffee-order"));
+        TokenCacheRegistry.acquire(owner, configuration("coffee-order"));
+        TokenCacheRegistry.acquire(new Object(), configuration("coffee-pay"));
+        undeployed = null;
+
+        awaitSize(1);
+
+        assertThat(TokenCacheRegistry.size()).isEqualTo(1);
+    }
+
+    @Test
+    void testTokenCacheIsReleasedWithLastLease() {
+        var undeployed = TokenCacheRegistry.acquire(owner, configuration("coffee-order"));
+        var redeployed = TokenCacheRegistry.acquire(owner, configuration("coffee-order"));
+
+        undeployed.release();
+        undeployed.release();
+
+        assertThat(TokenCacheRegistry.size()).isEqualTo(1);
+
+        redeployed.release();
+
+        assertThat(TokenCacheRegistry.size()).isZero();
+    }
+
+    @Test
+    void testConcurrentlyCreatedTokenCacheIsRegisteredOnce() throws Exception {
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var start = new CountDownLatch(1);
+            var leases = new ArrayList<Future<TokenCacheRegistry.Lease>>();
+            for (int i = 0; i < 8; i++) {
+                leases.add(executor.submit(() -> {
+                    start.await();
+                    return TokenCacheRegistry.acquire(owner, configuration("coffee-order"));
+                }));
+            }
+            start.countDown();
+
+            var tokenCache = leases.get(0).get(5, TimeUnit.SECONDS).tokenCache();
+            for (var lease : leases) {
+                assertThat(lease.get(5, TimeUnit.SECONDS).tokenCache()).isSameAs(tokenCache);
+            }
+            assertThat(TokenCacheRegistry.size()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitSize(int size) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5_000;
+        while (TokenCacheRegistry.size() > size && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    private static TokenExchangePolicyConfiguration configuration(String targetScope) {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointUrl("http://localhost:8080/token");
+        config.setTokenExchangeClientId("token-exchange-client");
+        config.setTargetScope(targetScope);
+        return config;
+    }
+
+}
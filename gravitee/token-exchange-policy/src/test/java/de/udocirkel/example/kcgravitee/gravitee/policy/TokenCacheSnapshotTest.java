@@ -0,0 +1,119 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TokenCacheSnapshotTest {
+
+    private static final byte[] KEY = Arrays.copyOf("0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII), 32);
+
+    private static final String CACHE_ID = "http://keycloak/token gateway coffee-order";
+
+    private final TokenCacheKey key = TokenCacheKey.of("incoming-token", "coffee-order");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testRestoreWrittenSnapshot() throws Exception {
+        var snapshot = new TokenCacheSnapshot(directory.resolve("token-cache.snapshot"), KEY, CACHE_ID);
+        var tokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        var token = new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000, System.currentTimeMillis() + 70_000);
+        tokenCache.put(key, token);
+
+        assertThat(snapshot.write(tokenCache)).isEqualTo(1);
+
+        var restartedTokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        assertThat(snapshot.restore(restartedTokenCache)).isEqualTo(1);
+        assertThat(restartedTokenCache.getIfPresent(key)).isEqualTo(token);
+    }
+
+    @Test
+    void testRestoreKeepsTokenCachedMeanwhile() throws Exception {
+        var snapshot = new TokenCacheSnapshot(directory.resolve("token-cache.snapshot"), KEY, CACHE_ID);
+        var tokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        tokenCache.put(key, new ExchangedToken("snapshot-token", System.currentTimeMillis() + 60_000));
+        snapshot.write(tokenCache);
+
+        var restartedTokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        var newToken = new ExchangedToken("new-token", System.currentTimeMillis() + 120_000);
+        restartedTokenCache.put(key, newToken);
+
+        assertThat(snapshot.restore(restartedTokenCache)).isZero();
+        assertThat(restartedTokenCache.getIfPresent(key)).isEqualTo(newToken);
+    }
+
+    @Test
+    void testRestoreKeepsPartition() throws Exception {
+        var snapshot = new TokenCacheSnapshot(directory.resolve("token-cache.snapshot"), KEY, CACHE_ID);
+        var configuration = new TokenExchangePolicyConfiguration();
+        configuration.setTokenCachePartitioningEnabled(true);
+        var partitionedKey = TokenCacheKey.of("incoming-token", "coffee-order", "coffee-app-a");
+        var tokenCache = new TokenCache(null, configuration);
+        var token = new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000);
+        tokenCache.put(partitionedKey, token);
+        snapshot.write(tokenCache);
+
+        var restartedTokenCache = new TokenCache(null, configuration);
+        assertThat(snapshot.restore(restartedTokenCache)).isEqualTo(1);
+        assertThat(restartedTokenCache.getIfPresent(partitionedKey)).isEqualTo(token);
+    }
+
+    @Test
+    void testSnapshotIsEncrypted() throws Exception {
+        var file = directory.resolve("token-cache.snapshot");
+        var tokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        tokenCache.put(key, new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000));
+
+        new TokenCacheSnapshot(file, KEY, CACHE_ID).write(tokenCache);
+
+        assertThat(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1)).doesNotContain("exchanged-token");
+    }
+
+    @Test
+    void testRestoreSkipsExpiredTokens() throws Exception {
+        var file = directory.resolve("token-cache.snapshot");
+        var tokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        tokenCache.put(key, new ExchangedToken("exchanged-token", System.currentTimeMillis() + 1_000));
+        new TokenCacheSnapshot(file, KEY, CACHE_ID).write(tokenCache);
+
+        Thread.sleep(1_100);
+
+        assertThat(new TokenCacheSnapshot(file, KEY, CACHE_ID).restore(new TokenCache(null, new TokenExchangePolicyConfiguration())))
+                .isZero();
+    }
+
+    @Test
+    void testRestoreRejectsSnapshotOfOtherTokenCache() throws Exception {
+        var file = directory.resolve("token-cache.snapshot");
+        var tokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        tokenCache.put(key, new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000));
+        new TokenCacheSnapshot(file, KEY, CACHE_ID).write(tokenCache);
+
+        var otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        var restoredTokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        assertThatThrownBy(() -> new TokenCacheSnapshot(file, otherKey, CACHE_ID).restore(restoredTokenCache))
+                .isInstanceOf(TokenCacheSnapshot.InvalidSnapshotException.class);
+        assertThatThrownBy(() -> new TokenCacheSnapshot(file, KEY, CACHE_ID + "-other").restore(restoredTokenCache))
+                .isInstanceOf(TokenCacheSnapshot.InvalidSnapshotException.class);
+        assertThat(restoredTokenCache.getIfPresent(key)).isNull();
+    }
+
+    @Test
+    void testRestoreWithoutSnapshot() throws Exception {
+        var snapshot = new TokenCacheSnapshot(directory.resolve("missing.snapshot"), KEY, CACHE_ID);
+
+        assertThat(snapshot.restore(new TokenCache(null, new TokenExchangePolicyConfiguration()))).isZero();
+    }
+
+}
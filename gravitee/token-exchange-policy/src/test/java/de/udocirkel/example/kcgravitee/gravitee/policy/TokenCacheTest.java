@@ -0,0 +1,136 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.await;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.udocirkel.example.kcgravitee.gravitee.policy.cache.InMemorySharedTokenCache;
+import de.udocirkel.example.kcgravitee.gravitee.policy.cache.SharedTokenCache;
+
+import io.vertx.core.Vertx;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class TokenCacheTest {
+
+    private final Vertx vertx = Vertx.vertx();
+
+    private final InMemorySharedTokenCache sharedCache = new InMemorySharedTokenCache(100);
+
+    private final TokenCacheKey key = TokenCacheKey.of("incoming-token", "coffee-order");
+
+    @AfterEach
+    void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    @Test
+    void testPutWritesThroughToSharedCache() throws Exception {
+        var node1 = new TokenCache(sharedCache, new TokenExchangePolicyConfiguration());
+        var node2 = new TokenCache(sharedCache, new TokenExchangePolicyConfiguration());
+
+        node1.put(key, new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000));
+
+        assertThat(node2.getIfPresent(key)).isNull();
+        var token = await(node2.getFromSharedCache(key, 0, vertx.getOrCreateContext()));
+        assertThat(token.accessToken()).isEqualTo("exchanged-token");
+        assertThat(node2.getIfPresent(key)).isEqualTo(token);
+    }
+
+    @Test
+    void testSharedCacheIsSeparatedByClient() throws Exception {
+        var orders = new TokenCache(sharedCache, configuration("orders-client"));
+        var billing = new TokenCache(sharedCache, configuration("billing-client"));
+
+        orders.put(key, new ExchangedToken("orders-token", System.currentTimeMillis() + 60_000));
+
+        assertThat(await(billing.getFromSharedCache(key, 0, vertx.getOrCreateContext()))).isNull();
+        var ordersNode2 = new TokenCache(sharedCache, configuration("orders-client"));
+        assertThat(await(ordersNode2.getFromSharedCache(key, 0, vertx.getOrCreateContext())).accessToken()).isEqualTo("orders-token");
+    }
+
+    @Test
+    void testGetFromSharedCacheIgnoresExpiredTokens() throws Exception {
+        var tokenCache = new TokenCache(sharedCache, new TokenExchangePolicyConfiguration());
+        sharedCache.put(tokenCache.sharedCacheKey(key), new SharedTokenCache.Entry("expired-token", System.currentTimeMillis() - 1));
+
+        assertThat(await(tokenCache.getFromSharedCache(key, 0, vertx.getOrCreateContext()))).isNull();
+    }
+
+    @Test
+    void testGetFromSharedCacheIgnoresTokensExpiringWithinSkew() throws Exception {
+        var tokenCache = new TokenCache(sharedCache, new TokenExchangePolicyConfiguration());
+        var exp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 5;
+        var payload = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(("{\"exp\":" + exp + "}").getBytes(StandardCharsets.UTF_8));
+        sharedCache.put(tokenCache.sharedCacheKey(key), new SharedTokenCache.Entry("e30." + payload + ".sig", System.currentTimeMillis() + 60_000));
+
+        assertThat(await(tokenCache.getFromSharedCache(key, 10_000, vertx.getOrCreateContext()))).isNull();
+        assertThat(await(tokenCache.getFromSharedCache(key, 0, vertx.getOrCreateContext()))).isNotNull();
+    }
+
+    @Test
+    void testSharedCacheWithoutReadAndWriteThrough() throws Exception {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setSharedCacheReadThrough(false);
+        config.setSharedCacheWriteThrough(false);
+        var tokenCache = new TokenCache(sharedCache, config);
+
+        tokenCache.put(key, new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000));
+        sharedCache.put(tokenCache.sharedCacheKey(key), new SharedTokenCache.Entry("shared-token", System.currentTimeMillis() + 60_000));
+
+        assertThat(sharedCache.size()).isEqualTo(1);
+        assertThat(await(tokenCache.getFromSharedCache(key, 0, vertx.getOrCreateContext()))).isNull();
+        assertThat(tokenCache.getIfPresent(key).accessToken()).isEqualTo("exchanged-token");
+    }
+
+    @Test
+    void testWithoutSharedCache() throws Exception {
+        var tokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+
+        tokenCache.put(key, new ExchangedToken("exchanged-token", System.currentTimeMillis() + 60_000));
+
+        assertThat(tokenCache.getIfPresent(key).accessToken()).isEqualTo("exchanged-token");
+        assertThat(await(tokenCache.getFromSharedCache(key, 0, vertx.getOrCreateContext()))).isNull();
+    }
+
+    @Test
+    void testPutFailureCachesFailureForIncomingToken() {
+        var tokenCache = new TokenCache(null, new TokenExchangePolicyConfiguration());
+        var failure = new TokenExchangeException(TokenExchangePolicy.TOKEN_EXCHANGE_EXIT_ON_ERROR,
+                TokenExchangeMetrics.CAUSE_ERROR_RESPONSE, "Request is terminated.");
+
+        tokenCache.putFailure(key, failure);
+
+        assertThat(tokenCache.getFailure(key)).isSameAs(failure);
+        assertThat(tokenCache.getFailure(TokenCacheKey.of("other-token", "coffee-order"))).isNull();
+        assertThat(tokenCache.getIfPresent(key)).isNull();
+    }
+
+    @Test
+    void testPutFailureWithNegativeCachingDisabled() {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setNegativeCacheDuration(0);
+        var tokenCache = new TokenCache(null, config);
+
+        tokenCache.putFailure(key, new TokenExchangeException(TokenExchangePolicy.TOKEN_EXCHANGE_EXIT_ON_ERROR,
+                TokenExchangeMetrics.CAUSE_ERROR_RESPONSE, "Request is terminated."));
+
+        assertThat(tokenCache.getFailure(key)).isNull();
+    }
+
+    private static TokenExchangePolicyConfiguration configuration(String clientId) {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointUrl("http://keycloak:8080/realms/coffeehouse/protocol/openid-connect/token");
+        config.setTokenExchangeClientId(clientId);
+        config.setTargetScope("coffee-order");
+        return config;
+    }
+
+}
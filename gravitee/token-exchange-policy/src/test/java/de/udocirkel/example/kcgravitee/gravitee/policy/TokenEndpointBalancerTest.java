@@ -0,0 +1,94 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TokenEndpointBalancerTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final TokenEndpointBalancer balancer = new TokenEndpointBalancer(List.of("http://kc1/token", "http://kc2/token"), 2);
+
+    private final TokenEndpointBalancer.Endpoint kc1 = balancer.endpoints().get(0);
+
+    private final TokenEndpointBalancer.Endpoint kc2 = balancer.endpoints().get(1);
+
+    @Test
+    void testSelectsEndpointWithLowerLatency() {
+        answer(kc1, 10 * MILLIS);
+        answer(kc2, 100 * MILLIS);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(balancer.select(0)).isSameAs(kc1);
+        }
+    }
+
+    @Test
+    void testSelectsEndpointWithFewerOutstandingRequests() {
+        answer(kc1, 10 * MILLIS);
+        answer(kc2, 10 * MILLIS);
+        kc1.requestStarted();
+        kc1.requestStarted();
+
+        assertThat(balancer.select(0)).isSameAs(kc2);
+    }
+
+    @Test
+    void testSlowEndpointIsSelectedAgainAfterLatencyDecayed() {
+        answer(kc1, 10 * MILLIS);
+        answer(kc2, 1_000 * MILLIS);
+        kc1.requestStarted();
+
+        assertThat(balancer.select(0)).isSameAs(kc1);
+        assertThat(balancer.select(TimeUnit.MINUTES.toNanos(10))).isSameAs(kc2);
+    }
+
+    @Test
+    void testEjectsFailingEndpointUntilReinstated() {
+        kc1.requestStarted();
+        assertThat(kc1.requestFailed(MILLIS, 0)).isFalse();
+        kc1.requestStarted();
+        assertThat(kc1.requestFailed(MILLIS, 0)).isTrue();
+
+        assertThat(kc1.isEjected()).isTrue();
+        for (int i = 0; i < 10; i++) {
+            assertThat(balancer.select(0)).isSameAs(kc2);
+        }
+
+        kc1.reinstate();
+
+        assertThat(kc1.isEjected()).isFalse();
+    }
+
+    @Test
+    void testSelectsEndpointIfAllAreEjected() {
+        for (var endpoint : balancer.endpoints()) {
+            endpoint.requestStarted();
+            endpoint.requestFailed(MILLIS, 0);
+            endpoint.requestStarted();
+            endpoint.requestFailed(MILLIS, 0);
+        }
+
+        assertThat(balancer.select(0)).isIn(kc1, kc2);
+    }
+
+    @Test
+    void testSingleEndpointIsNeverEjected() {
+        var single = new TokenEndpointBalancer(List.of("http://kc1/token"), 1).endpoints().get(0);
+
+        single.requestStarted();
+
+        assertThat(single.requestFailed(MILLIS, 0)).isFalse();
+        assertThat(single.isEjected()).isFalse();
+    }
+
+    private static void answer(TokenEndpointBalancer.Endpoint endpoint, long latency) {
+        endpoint.requestStarted();
+        endpoint.requestSucceeded(latency, 0);
+    }
+
+}
@@ -0,0 +1,270 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.await;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.awaitFailure;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.listen;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.respond;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TokenEndpointClientTest {
+
+    private Vertx vertx;
+
+    private HttpServer server;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger optionsRequests = new AtomicInteger();
+
+    private final AtomicInteger slowRequests = new AtomicInteger();
+
+    @BeforeEach
+    void setup() throws Exception {
+        vertx = Vertx.vertx();
+        server = listen(vertx.createHttpServer().connectionHandler(connection -> connections.incrementAndGet()), request -> {
+            if (request.method() == HttpMethod.OPTIONS) {
+                optionsRequests.incrementAndGet();
+            }
+            if (request.path().equals("/error")) {
+                request.body().onSuccess(body -> respond(request, 503, "{\"error\":\"temporarily_unavailable\"}"));
+            } else if (request.method() == HttpMethod.OPTIONS) {
+                request.response().end();
+            } else if (request.path().equals("/invalid")) {
+                request.body().onSuccess(body -> respond(request, 200, "not json"));
+            } else if (request.path().equals("/slow")) {
+                // Antwortet nie
+                slowRequests.incrementAndGet();
+            } else {
+                request.body().onSuccess(body -> respond(request, 200, "{\"access_token\":\"exchanged\"}"));
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    @Test
+    void testPostReusesPooledConnection() throws Exception {
+        var client = new TokenEndpointClient(configuration(0));
+
+        for (int i = 0; i < 3; i++) {
+            var response = await(client.post(vertx, "subject_token=token"));
+            assertThat(response.statusCode()).isEqualTo(200);
+            assertThat(response.accessToken()).isEqualTo("exchanged");
+        }
+
+        assertThat(connections.get()).isEqualTo(1);
+        assertThat(client.pendingRequests()).isZero();
+    }
+
+    @Test
+    void testClientsWithSameOptionsShareConnectionPool() throws Exception {
+        var first = new TokenEndpointClient(configuration(0));
+        var second = new TokenEndpointClient(configuration(0));
+
+        await(first.post(vertx, "subject_token=token"));
+        await(second.post(vertx, "subject_token=token"));
+
+        assertThat(first.clientName()).isEqualTo(second.clientName());
+        assertThat(connections.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testClientsWithDifferentOptionsDoNotShareConnectionPool() throws Exception {
+        var first = new TokenEndpointClient(configuration(0));
+        var config = configuration(0);
+        config.setConnectionPoolMaxSize(2);
+        var second = new TokenEndpointClient(config);
+
+        await(first.post(vertx, "subject_token=token"));
+        await(second.post(vertx, "subject_token=token"));
+
+        assertThat(first.clientName()).isNotEqualTo(second.clientName())
+                .startsWith("token-exchange@localhost:" + server.actualPort() + "#");
+        assertThat(connections.get()).isEqualTo(2);
+    }
+
+    @Test
+    void testClientNameDoesNotDependOnTruststorePassword() {
+        var first = configuration(0);
+        first.setTokenEndpointTruststorePath("/etc/truststore.p12");
+        first.setTokenEndpointTruststorePassword("secret");
+        var second = configuration(0);
+        second.setTokenEndpointTruststorePath("/etc/truststore.p12");
+        second.setTokenEndpointTruststorePassword("other");
+        var third = configuration(0);
+        third.setTokenEndpointTruststorePath("/etc/other.p12");
+        third.setTokenEndpointTruststorePassword("secret");
+
+        assertThat(TokenEndpointClient.clientName(first)).isEqualTo(TokenEndpointClient.clientName(second))
+                .isNotEqualTo(TokenEndpointClient.clientName(third));
+    }
+
+    @Test
+    void testPostPreConnectsPool() throws Exception {
+        var client = new TokenEndpointClient(configuration(2));
+
+        await(client.post(vertx, "subject_token=token"));
+
+        var deadline = System.currentTimeMillis() + 5_000;
+        while (optionsRequests.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(optionsRequests.get()).isEqualTo(2);
+    }
+
+    @Test
+    void testPostFailsAfterTimeout() throws Exception {
+        var config = configuration(0);
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/slow");
+        config.setTokenEndpointTimeout(100);
+        var client = new TokenEndpointClient(config);
+
+        var failure = awaitFailure(client.post(vertx, "subject_token=token"));
+
+        assertThat(failure).isInstanceOf(TokenExchangeException.class);
+        assertThat(((TokenExchangeException) failure).getReason()).isEqualTo(TokenExchangeMetrics.CAUSE_TIMEOUT);
+        assertThat(client.pendingRequests()).isZero();
+    }
+
+    @Test
+    void testTimeoutReleasesPlaceInBulkhead() throws Exception {
+        var config = configuration(0);
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/slow");
+        config.setTokenEndpointTimeout(100);
+        config.setTokenEndpointMaxConcurrentRequests(1);
+        // Der zweite Request wartet auf die einzige Verbindung
+        config.setConnectionPoolMaxSize(1);
+        var client = new TokenEndpointClient(config);
+
+        var first = awaitFailure(client.post(vertx, "subject_token=token1"));
+        var second = awaitFailure(client.post(vertx, "subject_token=token2"));
+
+        assertThat(((TokenExchangeException) first).getReason()).isEqualTo(TokenExchangeMetrics.CAUSE_TIMEOUT);
+        assertThat(((TokenExchangeException) second).getReason()).isEqualTo(TokenExchangeMetrics.CAUSE_TIMEOUT);
+        assertThat(client.pendingRequests()).isZero();
+    }
+
+    @Test
+    void testPostRejectsRequestsBeyondConcurrencyLimit() throws Exception {
+        var config = configuration(0);
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/slow");
+        config.setTokenEndpointTimeout(0);
+        config.setTokenEndpointMaxConcurrentRequests(1);
+        var client = new TokenEndpointClient(config);
+
+        client.post(vertx, "subject_token=token1");
+        var failure = awaitFailure(client.post(vertx, "subject_token=token2"));
+
+        assertThat(((TokenExchangeException) failure).getReason()).isEqualTo(TokenExchangeMetrics.CAUSE_REJECTED);
+        assertThat(client.pendingRequests()).isEqualTo(1);
+    }
+
+    @Test
+    void testPostRejectsOversizedResponse() throws Exception {
+        var config = configuration(0);
+        config.setTokenResponseMaxSize(16);
+        var client = new TokenEndpointClient(config);
+
+        var failure = awaitFailure(client.post(vertx, "subject_token=token"));
+
+        assertThat(((TokenExchangeException) failure).getReason()).isEqualTo(TokenExchangeMetrics.CAUSE_INVALID_RESPONSE);
+    }
+
+    @Test
+    void testPostAvoidsUnreachableTokenEndpoint() throws Exception {
+        var unreachable = listen(vertx.createHttpServer(), request -> request.response().end());
+        var unreachablePort = unreachable.actualPort();
+        await(unreachable.close());
+
+        var config = configuration(0);
+        config.setAdditionalTokenEndpointUrls(List.of("http://localhost:" + unreachablePort + "/token"));
+        config.setTokenEndpointEjectionThreshold(1);
+        var client = new TokenEndpointClient(config);
+
+        var failures = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                await(client.post(vertx, "subject_token=token"));
+            } catch (ExecutionException e) {
+                failures++;
+            }
+        }
+
+        assertThat(failures).isLessThanOrEqualTo(1);
+        assertThat(client.endpoints().get(0).isEjected()).isFalse();
+    }
+
+    @Test
+    void testServerErrorsEjectTokenEndpoint() throws Exception {
+        var config = configuration(0);
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/error");
+        config.setTokenEndpointEjectionThreshold(1);
+        var client = new TokenEndpointClient(config);
+
+        var response = await(client.post(vertx, "subject_token=token"));
+
+        assertThat(response.statusCode()).isEqualTo(503);
+        assertThat(client.endpoints().get(0).isEjected()).isTrue();
+    }
+
+    @Test
+    void testClosedClientStopsProbingEjectedTokenEndpoint() throws Exception {
+        var config = configuration(0);
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/error");
+        config.setTokenEndpointEjectionThreshold(1);
+        config.setTokenEndpointEjectionDuration(1);
+        var client = new TokenEndpointClient(config);
+
+        await(client.post(vertx, "subject_token=token"));
+        var deadline = System.currentTimeMillis() + 5_000;
+        while (optionsRequests.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(optionsRequests.get()).isEqualTo(1);
+
+        client.close();
+        Thread.sleep(1_500);
+
+        assertThat(optionsRequests.get()).isEqualTo(1);
+        assertThat(client.scheduledHealthProbes()).isZero();
+        assertThat(client.endpoints().get(0).isEjected()).isTrue();
+    }
+
+    @Test
+    void testInvalidResponsesDoNotEjectTokenEndpoint() throws Exception {
+        var config = configuration(0);
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/invalid");
+        config.setTokenEndpointEjectionThreshold(1);
+        var client = new TokenEndpointClient(config);
+
+        var failure = awaitFailure(client.post(vertx, "subject_token=token"));
+
+        assertThat(((TokenExchangeException) failure).getReason()).isEqualTo(TokenExchangeMetrics.CAUSE_INVALID_RESPONSE);
+        assertThat(client.endpoints().get(0).isEjected()).isFalse();
+    }
+
+    private TokenExchangePolicyConfiguration configuration(int preConnectSize) {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/token");
+        config.setConnectionPoolPreConnectSize(preConnectSize);
+        return config;
+    }
+
+}
@@ -0,0 +1,49 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test fixture for a stub token endpoint on a local Vert.x HTTP server, and for waiting on Vert.x futures.
+ */
+final class TokenEndpointStub {
+
+    private TokenEndpointStub() {
+    }
+
+    /**
+     * Starts the server on a free port with the handler for token requests.
+     */
+    static HttpServer listen(HttpServer server, Handler<HttpServerRequest> handler) throws Exception {
+        return await(server.requestHandler(handler).listen(0));
+    }
+
+    /**
+     * Answers the token request with a JSON body.
+     */
+    static void respond(HttpServerRequest request, int status, String json) {
+        request.response()
+                .setStatusCode(status)
+                .putHeader("Content-Type", "application/json")
+                .end(json);
+    }
+
+    static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    static Throwable awaitFailure(Future<?> future) throws Exception {
+        try {
+            await(future);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        throw new AssertionError("Future succeeded");
+    }
+
+}
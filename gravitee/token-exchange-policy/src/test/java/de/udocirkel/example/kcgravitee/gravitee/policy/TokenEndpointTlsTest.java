@@ -0,0 +1,109 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.await;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.awaitFailure;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.listen;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.respond;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.net.PemKeyCertOptions;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TokenEndpointTlsTest {
+
+    // Selbstsigniertes Zertifikat fuer localhost, gueltig bis 2126
+    private static final String CERTIFICATE = "tls/localhost.crt";
+    private static final String PRIVATE_KEY = "tls/localhost.key";
+
+    private Vertx vertx;
+
+    private HttpServer server;
+
+    @BeforeEach
+    void setup() throws Exception {
+        vertx = Vertx.vertx();
+        server = listen(vertx.createHttpServer(new HttpServerOptions()
+                        .setSsl(true)
+                        .setKeyCertOptions(new PemKeyCertOptions().setKeyPath(PRIVATE_KEY).setCertPath(CERTIFICATE))),
+                request -> request.body().onSuccess(body -> respond(request, 200, "{\"access_token\":\"exchanged\"}")));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        await(vertx.close());
+    }
+
+    @Test
+    void testPostVerifiesServerCertificateAgainstTruststore() throws Exception {
+        var config = configuration();
+        config.setTokenEndpointTruststorePath(CERTIFICATE);
+        var client = new TokenEndpointClient(config);
+
+        var response = await(client.post(vertx, "subject_token=token"));
+
+        assertThat(response.accessToken()).isEqualTo("exchanged");
+    }
+
+    @Test
+    void testPostRejectsUntrustedServerCertificate() throws Exception {
+        var client = new TokenEndpointClient(configuration());
+
+        var failure = awaitFailure(client.post(vertx, "subject_token=token"));
+
+        assertThat(TokenExchangeMetrics.failureCause(failure)).isEqualTo(TokenExchangeMetrics.CAUSE_CONNECTION);
+    }
+
+    @Test
+    void testPostTrustsAnyServerCertificateIfConfigured() throws Exception {
+        var config = configuration();
+        config.setTokenEndpointTrustAll(true);
+        var client = new TokenEndpointClient(config);
+
+        var response = await(client.post(vertx, "subject_token=token"));
+
+        assertThat(response.accessToken()).isEqualTo("exchanged");
+    }
+
+    @Test
+    void testClientsWithDifferentTrustSettingsDoNotShareConnections() throws Exception {
+        var trustAllConfig = configuration();
+        trustAllConfig.setTokenEndpointTrustAll(true);
+        var trustAll = new TokenEndpointClient(trustAllConfig);
+        var verifying = new TokenEndpointClient(configuration());
+
+        // Der zuerst erzeugte Client vertraut jedem Zertifikat
+        assertThat(await(trustAll.post(vertx, "subject_token=token")).accessToken()).isEqualTo("exchanged");
+        var failure = awaitFailure(verifying.post(vertx, "subject_token=token"));
+
+        assertThat(trustAll.clientName()).isNotEqualTo(verifying.clientName());
+        assertThat(TokenExchangeMetrics.failureCause(failure)).isEqualTo(TokenExchangeMetrics.CAUSE_CONNECTION);
+    }
+
+    @Test
+    void testPostWithJdkEngine() throws Exception {
+        var config = configuration();
+        config.setTokenEndpointTruststorePath(CERTIFICATE);
+        config.setTokenEndpointOpenSslEnabled(false);
+        var client = new TokenEndpointClient(config);
+
+        var response = await(client.post(vertx, "subject_token=token"));
+
+        assertThat(TokenEndpointTls.engine(config)).isEqualTo(TokenEndpointTls.ENGINE_JDK);
+        assertThat(response.accessToken()).isEqualTo("exchanged");
+    }
+
+    private TokenExchangePolicyConfiguration configuration() {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointUrl("https://localhost:" + server.actualPort() + "/token");
+        config.setConnectionPoolPreConnectSize(0);
+        return config;
+    }
+
+}
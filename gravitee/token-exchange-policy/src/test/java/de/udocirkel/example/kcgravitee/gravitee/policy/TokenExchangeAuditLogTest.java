@@ -0,0 +1,92 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class TokenExchangeAuditLogTest {
+
+    private static TokenExchangePolicyConfiguration config(boolean auditLogEnabled) {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTargetScope("coffee-order");
+        config.setAuditLogEnabled(auditLogEnabled);
+        return config;
+    }
+
+    @Test
+    void testFormatWritesDecisionWithoutToken() {
+        var auditLog = new TokenExchangeAuditLog(config(true));
+        var event = auditLog.start("incoming-token", "coffeehouse-order", Map.of("azp", "coffeehouse-web"));
+        event.decide(TokenExchangeAuditLog.Decision.SHARED_CACHE_HIT);
+
+        var line = TokenExchangeAuditLog.format(event, "3f9a0c5e7b21d4a8");
+
+        assertThat(line)
+                .startsWith("{\"timestamp\":\"")
+                .contains("\"api\":\"coffeehouse-order\"")
+                .contains("\"targetScope\":\"coffee-order\"")
+                .contains("\"client\":\"coffeehouse-web\"")
+                .contains("\"decision\":\"shared_cache_hit\"")
+                .contains("\"tokenId\":\"3f9a0c5e7b21d4a8\"")
+                .contains("\"latencyMicros\":")
+                .doesNotContain("incoming-token")
+                .doesNotContain("failureCause")
+                .endsWith("}");
+    }
+
+    @Test
+    void testFormatEscapesValues() {
+        var auditLog = new TokenExchangeAuditLog(config(true));
+        var event = auditLog.start("incoming-token", null, Map.of("azp", "web\"\n\\"));
+        event.decide(TokenExchangeAuditLog.Decision.EXCHANGED);
+
+        var line = TokenExchangeAuditLog.format(event, null);
+
+        assertThat(line)
+                .contains("\"client\":\"web\\\"\\u000a\\\\\"")
+                .doesNotContain("\"api\"")
+                .doesNotContain("\"tokenId\"");
+    }
+
+    @Test
+    void testDecisionOfMismatch() {
+        assertThat(TokenExchangeAuditLog.Decision.of(ClaimMatcher.Mismatch.AUTHORIZED_PARTY_NOT_MATCHING))
+                .isEqualTo(TokenExchangeAuditLog.Decision.AUTHORIZED_PARTY_MISMATCH);
+        assertThat(TokenExchangeAuditLog.Decision.of(ClaimMatcher.Mismatch.AUDIENCE_PRESENT))
+                .isEqualTo(TokenExchangeAuditLog.Decision.AUDIENCE_SKIPPED);
+        assertThat(TokenExchangeAuditLog.Decision.of(ClaimMatcher.Mismatch.SCOPE_PRESENT))
+                .isEqualTo(TokenExchangeAuditLog.Decision.SCOPE_SKIPPED);
+    }
+
+    @Test
+    void testAppenderIsStartedByEventAndEndsWithShutdown() throws Exception {
+        var auditLog = new TokenExchangeAuditLog(config(true));
+
+        auditLog.record(auditLog.start("incoming-token", "coffeehouse-order", Map.of()), TokenExchangeAuditLog.Decision.CACHE_HIT);
+
+        assertThat(TokenExchangeAuditLog.isAppenderRunning()).isTrue();
+
+        TokenExchangeAuditLog.shutdown();
+        var deadline = System.currentTimeMillis() + 5_000;
+        while (TokenExchangeAuditLog.isAppenderRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(TokenExchangeAuditLog.isAppenderRunning()).isFalse();
+    }
+
+    @Test
+    void testDisabledAuditLogSharesIgnoredEvent() {
+        var auditLog = new TokenExchangeAuditLog(config(false));
+
+        var first = auditLog.start("incoming-token", "coffeehouse-order", Map.of());
+        var second = auditLog.start("other-token", "coffeehouse-order", Map.of());
+        first.decide(TokenExchangeAuditLog.Decision.EXCHANGED);
+
+        assertThat(first).isSameAs(second);
+        assertThat(TokenExchangeAuditLog.format(first, null)).doesNotContain("\"decision\"");
+    }
+
+}
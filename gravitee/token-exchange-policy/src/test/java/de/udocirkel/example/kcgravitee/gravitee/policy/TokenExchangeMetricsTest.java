@@ -0,0 +1,129 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+import java.net.ConnectException;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TokenExchangeMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private TokenExchangeMetrics metrics;
+
+    @BeforeEach
+    void setup() {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTargetScope("coffee-order");
+        metrics = new TokenExchangeMetrics(registry, config);
+        metrics.bindApi("coffeehouse-api");
+    }
+
+    @Test
+    void testExchangeRecordsLatencyAndInFlight() {
+        var promise = Promise.<String>promise();
+
+        var result = metrics.exchange(promise::future);
+
+        assertThat(registry.get("token.exchange.in.flight").tags("api", "coffeehouse-api", "target_scope", "coffee-order")
+                .gauge().value()).isEqualTo(1);
+
+        promise.complete("exchanged-token");
+
+        assertThat(result.result()).isEqualTo("exchanged-token");
+        assertThat(registry.get("token.exchange.in.flight").gauge().value()).isZero();
+        assertThat(registry.get("token.exchange.duration").tag("outcome", "success").timer().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.requests").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void testExchangeCountsFailuresByCause() {
+        metrics.exchange(() -> Future.failedFuture(new TokenExchangeException("TOKEN_EXCHANGE_EXIT_ON_ERROR",
+                TokenExchangeMetrics.CAUSE_ERROR_RESPONSE, "Request is terminated.")));
+        metrics.exchange(() -> Future.failedFuture(new ConnectException("Connection refused")));
+
+        assertThat(registry.get("token.exchange.failures").tag("cause", "error_response").counter().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.failures").tag("cause", "connection").counter().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.duration").tag("outcome", "failure").timer().count()).isEqualTo(2);
+    }
+
+    @Test
+    void testFailureCountersAreRegisteredWithApi() {
+        assertThat(registry.get("token.exchange.failures").counters()).hasSize(8);
+
+        metrics.rejectedExchange(TokenExchangeMetrics.CAUSE_CIRCUIT_OPEN);
+        metrics.rejectedExchange("unknown_cause");
+
+        assertThat(registry.get("token.exchange.failures").tag("cause", "circuit_open").counter().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.failures").tag("cause", "other").counter().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.failures").counters()).hasSize(8);
+    }
+
+    @Test
+    void testOnlyTimeoutConnectionAndServerErrorsAreTokenEndpointFailures() {
+        assertThat(TokenExchangeMetrics.isTokenEndpointFailure(TokenExchangeMetrics.CAUSE_TIMEOUT)).isTrue();
+        assertThat(TokenExchangeMetrics.isTokenEndpointFailure(TokenExchangeMetrics.CAUSE_CONNECTION)).isTrue();
+        assertThat(TokenExchangeMetrics.isTokenEndpointFailure(TokenExchangeMetrics.CAUSE_SERVER_ERROR)).isTrue();
+        assertThat(TokenExchangeMetrics.isTokenEndpointFailure(TokenExchangeMetrics.CAUSE_ERROR_RESPONSE)).isFalse();
+        assertThat(TokenExchangeMetrics.isTokenEndpointFailure(TokenExchangeMetrics.CAUSE_INVALID_RESPONSE)).isFalse();
+        assertThat(TokenExchangeMetrics.isTokenEndpointFailure(TokenExchangeMetrics.CAUSE_OTHER)).isFalse();
+    }
+
+    @Test
+    void testCacheCountersAreTaggedByTierAndResult() {
+        metrics.localCacheHit();
+        metrics.localCacheHit();
+        metrics.localCacheMiss();
+        metrics.sharedCacheHit();
+
+        assertThat(registry.get("token.exchange.cache.requests").tags("tier", "local", "result", "hit").counter().count()).isEqualTo(2);
+        assertThat(registry.get("token.exchange.cache.requests").tags("tier", "local", "result", "miss").counter().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.cache.requests").tags("tier", "shared", "result", "hit").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    void testCacheEvictionsAreTaggedByCacheAndCause() {
+        var evictions = TokenExchangeMetrics.cacheEvictions(registry, "0123456789abcdef", "coffee-order");
+
+        evictions.accept(RemovalCause.SIZE);
+        evictions.accept(RemovalCause.SIZE);
+        evictions.accept(RemovalCause.EXPIRED);
+
+        assertThat(registry.get("token.exchange.cache.evictions").tags("cache", "0123456789abcdef", "cause", "size").counter().count()).isEqualTo(2);
+        assertThat(registry.get("token.exchange.cache.evictions").tags("cache", "0123456789abcdef", "cause", "expired").counter().count()).isEqualTo(1);
+        assertThat(registry.find("token.exchange.cache.evictions").tag("api", "coffeehouse-api").counters()).isEmpty();
+    }
+
+    @Test
+    void testPartitionCountersAreTaggedByClient() {
+        metrics.partitionCacheHit("coffee-app-a");
+        metrics.partitionCacheMiss("coffee-app-a");
+        metrics.partitionExchange("coffee-app-a");
+        metrics.partitionCacheMiss(null);
+
+        assertThat(registry.get("token.exchange.cache.partition.requests").tags("client", "coffee-app-a", "result", "hit").counter().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.cache.partition.requests").tags("client", "coffee-app-a", "result", "miss").counter().count()).isEqualTo(1);
+        assertThat(registry.get("token.exchange.partition.requests").tag("client", "coffee-app-a").counter().count()).isEqualTo(1);
+        assertThat(registry.find("token.exchange.cache.partition.requests").counters()).hasSize(2);
+    }
+
+    @Test
+    void testPartitionCountersOfTooManyClientsAreCountedTogether() {
+        for (int i = 0; i < 150; i++) {
+            metrics.partitionExchange("coffee-app-" + i);
+        }
+
+        assertThat(registry.find("token.exchange.partition.requests").counters()).hasSize(101);
+        assertThat(registry.get("token.exchange.partition.requests").tag("client", "other").counter().count()).isEqualTo(50);
+    }
+
+}
@@ -0,0 +1,185 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.gravitee.apim.gateway.tests.sdk.AbstractPolicyTest;
+import io.gravitee.apim.gateway.tests.sdk.annotations.DeployApi;
+import io.gravitee.apim.gateway.tests.sdk.annotations.GatewayTest;
+import io.gravitee.apim.gateway.tests.sdk.policy.PolicyBuilder;
+
+import io.gravitee.definition.model.Api;
+
+import io.gravitee.plugin.policy.PolicyPlugin;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Single;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.rxjava3.core.http.HttpClient;
+import io.vertx.rxjava3.core.http.HttpClientResponse;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load test of the policy in the gateway of the tests SDK
+ * <p>
+ * The policy exchanges the tokens at a stub token endpoint with a configurable latency. The test
+ * sends requests with a configurable concurrency, a share of them with tokens that are already
+ * cached, and reports latency percentiles and throughput. Everything runs locally, so results of
+ * different policy versions on the same machine are comparable.
+ * <p>
+ * Excluded from the default build, run with the profile {@code load-test}:
+ * <pre>
+ * mvn test -P load-test -Dload.requests=20000 -Dload.concurrency=64 -Dload.cacheHitRatio=0.95 -Dload.tokenEndpointLatency=20
+ * </pre>
+ */
+@Tag("load")
+@GatewayTest
+@DeployApi("/de/udocirkel/example/kcgravitee/apis/TokenExchangeLoad.json")
+class TokenExchangePolicyLoadTest extends AbstractPolicyTest<TokenExchangePolicy, TokenExchangePolicyConfiguration> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenExchangePolicyLoadTest.class);
+
+    private static final int REQUESTS = Integer.getInteger("load.requests", 10_000);
+    private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 32);
+    private static final double CACHE_HIT_RATIO = Double.parseDouble(System.getProperty("load.cacheHitRatio", "0.9"));
+    private static final int TOKEN_ENDPOINT_LATENCY = Integer.getInteger("load.tokenEndpointLatency", 20);
+
+    /**
+     * Number of distinct incoming tokens of the cache hits
+     */
+    private static final int CACHED_TOKENS = 100;
+
+    private static final AtomicInteger TOKEN_EXCHANGES = new AtomicInteger();
+
+    private static Vertx tokenEndpointVertx;
+
+    private static HttpServer tokenEndpoint;
+
+    @AfterAll
+    static void stopTokenEndpoint() throws Exception {
+        if (tokenEndpointVertx != null) {
+            tokenEndpointVertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void configureApi(Api api) {
+        var configuration = """
+                {
+                  "tokenEndpointUrl": "http://localhost:%d/token",
+                  "tokenExchangeClientId": "token-exchange-client",
+                  "tokenExchangeClientSecret": "secret",
+                  "authorizedPartyPrefix": "coffee-",
+                  "targetScope": "coffee-order",
+                  "tokenEndpointMaxConcurrentRequests": 0
+                }
+                """.formatted(startTokenEndpoint());
+        api.getFlows().forEach(flow -> flow.getPre().stream()
+                .filter(step -> "TokenExchange".equals(step.getPolicy()))
+                .forEach(step -> step.setConfiguration(configuration)));
+    }
+
+    @Override
+    public void configurePolicies(Map<String, PolicyPlugin> policies) {
+        policies.put(JwtClaimsStubPolicy.POLICY_ID, PolicyBuilder.build(JwtClaimsStubPolicy.POLICY_ID, JwtClaimsStubPolicy.class));
+    }
+
+    @Test
+    void shouldReportLatencyAndThroughput(HttpClient client) {
+        wiremock.stubFor(get("/backend").willReturn(ok("response from backend")));
+
+        // Tokens der Cache-Treffer vorab tauschen
+        Flowable.range(0, CACHED_TOKENS)
+                .flatMapSingle(i -> send(client, "cached-" + i), false, CONCURRENCY)
+                .blockingSubscribe();
+        TOKEN_EXCHANGES.set(0);
+
+        var random = new Random(42);
+        var tokens = new String[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            tokens[i] = random.nextDouble() < CACHE_HIT_RATIO ? "cached-" + random.nextInt(CACHED_TOKENS) : "uncached-" + i;
+        }
+
+        var latencies = new long[REQUESTS];
+        var failures = new AtomicInteger();
+        var start = System.nanoTime();
+        Flowable.range(0, REQUESTS)
+                .flatMapSingle(i -> {
+                    var requestStart = System.nanoTime();
+                    return send(client, tokens[i]).doOnSuccess(status -> {
+                        latencies[i] = System.nanoTime() - requestStart;
+                        if (status != 200) {
+                            failures.incrementAndGet();
+                        }
+                    });
+                }, false, CONCURRENCY)
+                .blockingSubscribe();
+        var duration = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        LOG.info("""
+                        Token exchange load test
+                          requests:               %d (concurrency %d, cache hit ratio %.2f)
+                          token endpoint latency: %d ms, %d token exchanges
+                          throughput:             %.0f requests/s
+                          latency p50:            %.2f ms
+                          latency p99:            %.2f ms
+                          latency max:            %.2f ms
+                          failures:               %d""".formatted(
+                REQUESTS, CONCURRENCY, CACHE_HIT_RATIO,
+                TOKEN_ENDPOINT_LATENCY, TOKEN_EXCHANGES.get(),
+                REQUESTS / (duration / 1e9),
+                percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[REQUESTS - 1] / 1e6,
+                failures.get()));
+
+        assertThat(failures.get()).isZero();
+    }
+
+    private Single<Integer> send(HttpClient client, String token) {
+        return client.rxRequest(HttpMethod.GET, "/load")
+                .flatMap(request -> request.putHeader("Authorization", "Bearer " + token).rxSend())
+                .flatMap(response -> response.rxBody().map(body -> response.statusCode()));
+    }
+
+    private static double percentile(long[] sortedLatencies, double percentile) {
+        var index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1e6;
+    }
+
+    private static synchronized int startTokenEndpoint() {
+        if (tokenEndpoint == null) {
+            tokenEndpointVertx = Vertx.vertx();
+            try {
+                tokenEndpoint = tokenEndpointVertx.createHttpServer()
+                        .requestHandler(request -> request.body().onSuccess(body -> {
+                            var exchange = TOKEN_EXCHANGES.incrementAndGet();
+                            tokenEndpointVertx.setTimer(Math.max(1, TOKEN_ENDPOINT_LATENCY), id -> request.response()
+                                    .putHeader("Content-Type", "application/json")
+                                    .end("{\"access_token\":\"exchanged-" + exchange + "\",\"expires_in\":300,\"token_type\":\"Bearer\"}"));
+                        }))
+                        .listen(0)
+                        .toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IllegalStateException("Stub token endpoint could not be started", e);
+            }
+        }
+        return tokenEndpoint.actualPort();
+    }
+
+}
@@ -0,0 +1,190 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.await;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.listen;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.gravitee.gateway.api.http.HttpHeaders;
+import io.gravitee.gateway.reactive.api.context.http.HttpPlainExecutionContext;
+import io.gravitee.gateway.reactive.api.context.http.HttpPlainRequest;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.mockito.ArgumentCaptor;
+
+class TokenExchangePolicyRefreshAheadTest {
+
+    private static final String INCOMING_TOKEN = "incoming-token";
+
+    private Vertx vertx;
+
+    private HttpServer server;
+
+    private final AtomicInteger exchanges = new AtomicInteger();
+
+    private volatile int status = 200;
+
+    private volatile boolean holdResponses;
+
+    private final Queue<Runnable> heldResponses = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    void setup() throws Exception {
+        vertx = Vertx.vertx();
+        server = listen(vertx.createHttpServer(), request -> request.body().onSuccess(body -> {
+            var exchange = exchanges.incrementAndGet();
+            if (holdResponses) {
+                heldResponses.add(() -> respond(request, exchange));
+            } else {
+                respond(request, exchange);
+            }
+        }));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        TokenCacheRegistry.clear();
+        await(vertx.close());
+    }
+
+    @Test
+    void testTokenWithinRefreshAheadWindowIsReplaced() throws Exception {
+        var config = configuration();
+        var policy = new TokenExchangePolicy(config);
+        var claims = claims(TimeUnit.HOURS.toSeconds(1));
+
+        assertThat(exchange(policy, claims)).isEqualTo("exchanged-1");
+        assertThat(exchange(policy, claims)).isEqualTo("exchanged-1");
+
+        awaitCondition(() -> "exchanged-2".equals(cachedToken(policy, config).accessToken()));
+        assertThat(cachedToken(policy, config).refreshStarted()).isFalse();
+        assertThat(exchange(policy, claims)).isEqualTo("exchanged-2");
+    }
+
+    @Test
+    void testOnlyFirstRequestStartsRefreshAhead() throws Exception {
+        var config = configuration();
+        var policy = new TokenExchangePolicy(config);
+        var claims = claims(TimeUnit.HOURS.toSeconds(1));
+        exchange(policy, claims);
+
+        holdResponses = true;
+        for (int i = 0; i < 5; i++) {
+            assertThat(exchange(policy, claims)).isEqualTo("exchanged-1");
+        }
+        awaitCondition(() -> exchanges.get() == 2);
+
+        assertThat(exchanges.get()).isEqualTo(2);
+        assertThat(cachedToken(policy, config).refreshStarted()).isTrue();
+
+        heldResponses.forEach(Runnable::run);
+        awaitCondition(() -> "exchanged-2".equals(cachedToken(policy, config).accessToken()));
+        assertThat(exchanges.get()).isEqualTo(2);
+    }
+
+    @Test
+    void testNoRefreshAheadIfIncomingTokenExpiresFirst() throws Exception {
+        var config = configuration();
+        var policy = new TokenExchangePolicy(config);
+        // Der neue Token liefe nicht laenger als der zwischengespeicherte
+        var claims = claims(30);
+
+        exchange(policy, claims);
+        assertThat(exchange(policy, claims)).isEqualTo("exchanged-1");
+
+        assertThat(cachedToken(policy, config).refreshStarted()).isFalse();
+        assertThat(exchanges.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testFailedRefreshAheadIsRetriedByNextRequest() throws Exception {
+        var config = configuration();
+        var policy = new TokenExchangePolicy(config);
+        var claims = claims(TimeUnit.HOURS.toSeconds(1));
+        exchange(policy, claims);
+
+        status = 500;
+        assertThat(exchange(policy, claims)).isEqualTo("exchanged-1");
+        awaitCondition(() -> exchanges.get() == 2 && !cachedToken(policy, config).refreshStarted());
+        assertThat(cachedToken(policy, config).accessToken()).isEqualTo("exchanged-1");
+
+        status = 200;
+        assertThat(exchange(policy, claims)).isEqualTo("exchanged-1");
+        awaitCondition(() -> "exchanged-3".equals(cachedToken(policy, config).accessToken()));
+        assertThat(exchanges.get()).isEqualTo(3);
+    }
+
+    private void respond(HttpServerRequest request, int exchange) {
+        if (status == 200) {
+            TokenEndpointStub.respond(request, 200, "{\"access_token\":\"exchanged-" + exchange + "\",\"expires_in\":60}");
+        } else {
+            TokenEndpointStub.respond(request, status, "{\"error\":\"server_error\"}");
+        }
+    }
+
+    private TokenExchangePolicyConfiguration configuration() {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointUrl("http://localhost:" + server.actualPort() + "/token");
+        config.setConnectionPoolPreConnectSize(0);
+        config.setRefreshAheadEnabled(true);
+        // Jeder Token mit expires_in 60 liegt im Fenster
+        config.setRefreshAheadWindow(3600);
+        return config;
+    }
+
+    private static Map<String, Object> claims(long expiresIn) {
+        return Map.of(
+                "azp", "coffee-app-123",
+                "exp", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + expiresIn);
+    }
+
+    private String exchange(TokenExchangePolicy policy, Map<String, Object> claims) {
+        var headers = mock(HttpHeaders.class);
+        var request = mock(HttpPlainRequest.class);
+        when(request.headers()).thenReturn(headers);
+        var ctx = mock(HttpPlainExecutionContext.class);
+        when(ctx.getAttribute("jwt.token")).thenReturn(INCOMING_TOKEN);
+        when(ctx.getAttribute("jwt.claims")).thenReturn(claims);
+        when(ctx.request()).thenReturn(request);
+        when(ctx.getComponent(io.vertx.rxjava3.core.Vertx.class)).thenReturn(io.vertx.rxjava3.core.Vertx.newInstance(vertx));
+
+        policy.onRequest(ctx).blockingAwait();
+
+        var authorization = ArgumentCaptor.forClass(String.class);
+        verify(headers).set(eq("Authorization"), authorization.capture());
+        return authorization.getValue().substring("Bearer ".length());
+    }
+
+    private static ExchangedToken cachedToken(TokenExchangePolicy policy, TokenExchangePolicyConfiguration config) {
+        var cacheKey = TokenCacheKey.of(INCOMING_TOKEN, TokenExchangeTarget.of(config).id(), null);
+        return TokenCacheRegistry.acquire(policy, config).tokenCache().getStale(cacheKey);
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+
+}
@@ -1,8 +1,16 @@
 package de.udocirkel.example.kcgravitee.gravitee.policy;
 
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.await;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.listen;
+import static de.udocirkel.example.kcgravitee.gravitee.policy.TokenEndpointStub.respond;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import ch.qos.logback.classic.Level;
@@ -12,22 +20,46 @@ import ch.qos.logback.classic.LoggerContext;
 import io.gravitee.gateway.api.ExecutionContext;
 import io.gravitee.gateway.api.Request;
 import io.gravitee.gateway.api.Response;
+import io.gravitee.gateway.api.http.HttpHeaders;
+import io.gravitee.gateway.reactive.api.ExecutionFailure;
+import io.gravitee.gateway.reactive.api.context.http.HttpPlainExecutionContext;
+import io.gravitee.gateway.reactive.api.context.http.HttpPlainRequest;
+import io.gravitee.gateway.reactive.api.context.http.HttpPlainResponse;
 import io.gravitee.policy.api.PolicyChain;
 
+import io.reactivex.rxjava3.core.Completable;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+
+import java.lang.ref.Reference;
+
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import org.mockito.ArgumentCaptor;
+
 import org.slf4j.LoggerFactory;
 
 class TokenExchangePolicyTest {
 
     private MemoryAppender memoryAppender;
 
+    private Vertx vertx;
+
+    private HttpServer tokenEndpoint;
+
+    private final AtomicInteger exchanges = new AtomicInteger();
+
+    private volatile int tokenEndpointStatus = 200;
+
     @BeforeEach
-    void setup() {
+    void setup() throws Exception {
         LoggerContext lc = (LoggerContext) LoggerFactory.getILoggerFactory();
 
         memoryAppender = new MemoryAppender();
@@ -38,6 +70,22 @@ class TokenExchangePolicyTest {
         logger.addAppender(memoryAppender);
 
         memoryAppender.start();
+
+        vertx = Vertx.vertx();
+        tokenEndpoint = listen(vertx.createHttpServer(), request -> request.body().onSuccess(body -> {
+            exchanges.incrementAndGet();
+            if (tokenEndpointStatus == 200) {
+                respond(request, 200, "{\"access_token\":\"exchanged-token\",\"expires_in\":300}");
+            } else {
+                respond(request, tokenEndpointStatus, "{\"error\":\"temporarily_unavailable\"}");
+            }
+        }));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        TokenCacheRegistry.clear();
+        await(vertx.close());
     }
 
     private boolean logContainsMessage(String message) {
@@ -59,7 +107,6 @@ class TokenExchangePolicyTest {
         assertThat(logContainsMessage("Request has no Authorization header with Bearer token")).isTrue();
     }
 
-
     @Test
     void testOnRequestWithNotMatchingAuthorizedPartyPrefix() throws Exception {
         var config = new TokenExchangePolicyConfiguration();
@@ -151,4 +198,152 @@ class TokenExchangePolicyTest {
         assertThat(logContainsMessage("Incoming Bearer token does already contain the scope 'coffee-order'")).isTrue();
     }
 
-}
\ No newline at end of file
+    @Test
+    void testReactiveOnRequestWithInvalidToken() {
+        var policy = new TokenExchangePolicy(new TokenExchangePolicyConfiguration());
+
+        var ctx = mock(HttpPlainExecutionContext.class);
+
+        policy.onRequest(ctx).blockingAwait();
+
+        assertThat(logContainsMessage("Request has no Authorization header with Bearer token")).isTrue();
+        verify(ctx, never()).interruptWith(any());
+    }
+
+    @Test
+    void testReactiveOnRequestWithNotMatchingAuthorizedPartyPrefix() {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setAuthorizedPartyPrefix("tea-");
+        var policy = new TokenExchangePolicy(config);
+
+        var ctx = mock(HttpPlainExecutionContext.class);
+        when(ctx.getAttribute("jwt.token"))
+                .thenReturn("token");
+        when(ctx.getAttribute("jwt.claims"))
+                .thenReturn(Map.of("azp", "coffee-app-123"));
+
+        policy.onRequest(ctx).blockingAwait();
+
+        assertThat(logContainsMessage("Incoming Bearer token has an authorized party (claim 'azp') not matching the configured prefix 'tea-'")).isTrue();
+        verify(ctx, never()).interruptWith(any());
+    }
+
+    @Test
+    void testReactiveOnRequestSetsExchangedToken() {
+        var policy = new TokenExchangePolicy(tokenEndpointConfiguration());
+        var headers = mock(HttpHeaders.class);
+        var ctx = reactiveContext(headers);
+
+        policy.onRequest(ctx).blockingAwait();
+
+        verify(headers).set("Authorization", "Bearer exchanged-token");
+        verify(ctx, never()).interruptWith(any());
+        assertThat(exchanges.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testReactiveOnRequestWithCachedToken() {
+        var policy = new TokenExchangePolicy(tokenEndpointConfiguration());
+        policy.onRequest(reactiveContext(mock(HttpHeaders.class))).blockingAwait();
+
+        var headers = mock(HttpHeaders.class);
+        var ctx = reactiveContext(headers);
+        policy.onRequest(ctx).blockingAwait();
+
+        verify(headers).set("Authorization", "Bearer exchanged-token");
+        verify(ctx, never()).interruptWith(any());
+        assertThat(exchanges.get()).isEqualTo(1);
+        assertThat(logContainsMessage("Cached token found for incoming Bearer token and target scope 'coffee-order'")).isTrue();
+    }
+
+    @Test
+    void testReactiveOnRequestWithTokenOfPolicyRequestingMoreScopes() {
+        var chainConfig = tokenEndpointConfiguration();
+        chainConfig.setAdditionalTargetScopes(List.of("coffee-menu", "coffee-ingredient"));
+        var chainPolicy = new TokenExchangePolicy(chainConfig);
+        chainPolicy.onRequest(reactiveContext(mock(HttpHeaders.class))).blockingAwait();
+
+        var menuConfig = tokenEndpointConfiguration();
+        menuConfig.setTargetScope("coffee-menu");
+        var headers = mock(HttpHeaders.class);
+        new TokenExchangePolicy(menuConfig).onRequest(reactiveContext(headers)).blockingAwait();
+
+        verify(headers).set("Authorization", "Bearer exchanged-token");
+        assertThat(exchanges.get()).isEqualTo(1);
+        assertThat(logContainsMessage("Cached token with further scopes found for incoming Bearer token and target scope 'coffee-menu'")).isTrue();
+        // Der Token Cache ist nur registriert, solange die Policy erreichbar ist
+        Reference.reachabilityFence(chainPolicy);
+    }
+
+    @Test
+    void testReactiveOnRequestWithoutTokenOfClosedPolicyRequestingMoreScopes() {
+        var chainConfig = tokenEndpointConfiguration();
+        chainConfig.setAdditionalTargetScopes(List.of("coffee-menu", "coffee-ingredient"));
+        var chainPolicy = new TokenExchangePolicy(chainConfig);
+        chainPolicy.onRequest(reactiveContext(mock(HttpHeaders.class))).blockingAwait();
+        chainPolicy.close();
+
+        var menuConfig = tokenEndpointConfiguration();
+        menuConfig.setTargetScope("coffee-menu");
+        new TokenExchangePolicy(menuConfig).onRequest(reactiveContext(mock(HttpHeaders.class))).blockingAwait();
+
+        assertThat(exchanges.get()).isEqualTo(2);
+    }
+
+    @Test
+    void testReactiveOnRequestWithTokenEndpointFailure() {
+        tokenEndpointStatus = 503;
+        var policy = new TokenExchangePolicy(tokenEndpointConfiguration());
+        var headers = mock(HttpHeaders.class);
+        var ctx = reactiveContext(headers);
+        when(ctx.interruptWith(any())).thenReturn(Completable.complete());
+
+        policy.onRequest(ctx).blockingAwait();
+
+        var failure = ArgumentCaptor.forClass(ExecutionFailure.class);
+        verify(ctx).interruptWith(failure.capture());
+        assertThat(failure.getValue().statusCode()).isEqualTo(500);
+        assertThat(failure.getValue().key()).isEqualTo(TokenExchangePolicy.TOKEN_EXCHANGE_EXIT_ON_ERROR);
+        assertThat(failure.getValue().message()).isEqualTo("Request is terminated.");
+        verify(headers, never()).set(eq("Authorization"), any());
+    }
+
+    @Test
+    void testReactiveOnResponseWithServerError() {
+        var policy = new TokenExchangePolicy(new TokenExchangePolicyConfiguration());
+
+        var ctx = mock(HttpPlainExecutionContext.class);
+        var response = mock(HttpPlainResponse.class);
+        when(ctx.response()).thenReturn(response);
+        when(response.status()).thenReturn(500);
+        when(ctx.interruptWith(any())).thenReturn(Completable.complete());
+
+        policy.onResponse(ctx).blockingAwait();
+
+        verify(ctx).interruptWith(any());
+    }
+
+    private TokenExchangePolicyConfiguration tokenEndpointConfiguration() {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTokenEndpointUrl("http://localhost:" + tokenEndpoint.actualPort() + "/token");
+        config.setConnectionPoolPreConnectSize(0);
+        config.setAuthorizedPartyPrefix("coffee-");
+        config.setTargetScope("coffee-order");
+        return config;
+    }
+
+    private HttpPlainExecutionContext reactiveContext(HttpHeaders headers) {
+        var request = mock(HttpPlainRequest.class);
+        when(request.headers()).thenReturn(headers);
+        var ctx = mock(HttpPlainExecutionContext.class);
+        when(ctx.getAttribute("jwt.token"))
+                .thenReturn("token");
+        when(ctx.getAttribute("jwt.claims"))
+                .thenReturn(Map.of("azp", "coffee-app-123"));
+        when(ctx.request()).thenReturn(request);
+        when(ctx.getComponent(io.vertx.rxjava3.core.Vertx.class))
+                .thenReturn(io.vertx.rxjava3.core.Vertx.newInstance(vertx));
+        return ctx;
+    }
+
+}
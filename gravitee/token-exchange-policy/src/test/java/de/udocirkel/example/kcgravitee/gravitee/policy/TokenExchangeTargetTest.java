@@ -0,0 +1,65 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class TokenExchangeTargetTest {
+
+    @Test
+    void testSingleTargetScope() {
+        var target = TokenExchangeTarget.of(configuration("coffee-order", null, null));
+
+        assertThat(target.scope()).isEqualTo("coffee-order");
+        assertThat(target.audiences()).isEmpty();
+        assertThat(target.id()).isEqualTo("coffee-order");
+    }
+
+    @Test
+    void testScopesAndAudiencesAreSortedAndDeduplicated() {
+        var target = TokenExchangeTarget.of(configuration("coffee-order",
+                List.of("coffee-menu coffee-ingredient", "coffee-order"), List.of("coffee-menu-api", "coffee-ingredient-api")));
+        var reordered = TokenExchangeTarget.of(configuration("coffee-menu",
+                List.of("coffee-ingredient", "coffee-order"), List.of("coffee-ingredient-api", "coffee-menu-api")));
+
+        assertThat(target.scope()).isEqualTo("coffee-ingredient coffee-menu coffee-order");
+        assertThat(target.audiences()).containsExactly("coffee-ingredient-api", "coffee-menu-api");
+        assertThat(reordered.id()).isEqualTo(target.id());
+    }
+
+    @Test
+    void testTargetCoversSubsetOfScopesAndAudiences() {
+        var chain = TokenExchangeTarget.of(configuration("coffee-order",
+                List.of("coffee-menu", "coffee-ingredient"), List.of("coffee-menu-api", "coffee-order-api")));
+
+        assertThat(chain.covers(TokenExchangeTarget.of(configuration("coffee-menu", null, List.of("coffee-menu-api"))))).isTrue();
+        assertThat(chain.covers(chain)).isTrue();
+        assertThat(chain.covers(TokenExchangeTarget.of(configuration("coffee-pay", null, List.of("coffee-menu-api"))))).isFalse();
+        assertThat(chain.covers(TokenExchangeTarget.of(configuration("coffee-menu", null, List.of("coffee-pay-api"))))).isFalse();
+        // Ohne angeforderte Audiences gelten die Standard-Audiences des Clients
+        assertThat(chain.covers(TokenExchangeTarget.of(configuration("coffee-menu", null, null)))).isFalse();
+    }
+
+    @Test
+    void testFormRequestsAllScopesAndAudiences() {
+        var config = configuration("coffee-order", List.of("coffee-menu"), List.of("coffee-menu-api", "coffee-order-api"));
+        config.setTokenExchangeClientId("token-exchange-client");
+        config.setTokenExchangeClientSecret("secret");
+
+        var form = new TokenExchangeForm(config).build("incoming-token");
+
+        assertThat(form).contains("&scope=coffee-menu+coffee-order&audience=coffee-menu-api&audience=coffee-order-api");
+    }
+
+    private static TokenExchangePolicyConfiguration configuration(String targetScope, List<String> additionalTargetScopes,
+                                                                  List<String> targetAudiences) {
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTargetScope(targetScope);
+        config.setAdditionalTargetScopes(additionalTargetScopes);
+        config.setTargetAudiences(targetAudiences);
+        return config;
+    }
+
+}
@@ -0,0 +1,82 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.gravitee.gateway.api.http.HttpHeaders;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.OpenTelemetrySdk;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TokenExchangeTracingTest {
+
+    private static final String TRACE_ID = "0af7651916cd43dd8448eb211c80319c";
+    private static final String PARENT_SPAN_ID = "b7ad6b7169203331";
+
+    private final InMemorySpanExporter spanExporter = InMemorySpanExporter.create();
+
+    private TokenExchangeTracing tracing;
+
+    @BeforeEach
+    void setUp() {
+        GlobalOpenTelemetry.resetForTest();
+        OpenTelemetrySdk.builder()
+                .setTracerProvider(SdkTracerProvider.builder()
+                        .addSpanProcessor(SimpleSpanProcessor.create(spanExporter))
+                        .build())
+                .setPropagators(ContextPropagators.create(W3CTraceContextPropagator.getInstance()))
+                .buildAndRegisterGlobal();
+
+        var config = new TokenExchangePolicyConfiguration();
+        config.setTargetScope("coffee-order");
+        tracing = new TokenExchangeTracing(config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        GlobalOpenTelemetry.resetForTest();
+    }
+
+    @Test
+    void testSpanContinuesTraceOfIncomingRequest() {
+        var headers = mock(HttpHeaders.class);
+        when(headers.get("traceparent")).thenReturn("00-" + TRACE_ID + "-" + PARENT_SPAN_ID + "-01");
+
+        var span = tracing.startSpan(() -> headers);
+        span.setAttribute(TokenExchangeTracing.LOCAL_CACHE, TokenExchangeTracing.MISS);
+        var traceHeaders = TokenExchangeTracing.traceHeaders(span);
+        TokenExchangeTracing.endSpan(span, null);
+
+        var spanData = spanExporter.getFinishedSpanItems().get(0);
+        assertThat(spanData.getTraceId()).isEqualTo(TRACE_ID);
+        assertThat(spanData.getParentSpanId()).isEqualTo(PARENT_SPAN_ID);
+        assertThat(spanData.getAttributes().get(TokenExchangeTracing.TARGET_SCOPE)).isEqualTo("coffee-order");
+        assertThat(spanData.getAttributes().get(TokenExchangeTracing.LOCAL_CACHE)).isEqualTo("miss");
+        // Token Endpoint wird Kind des Spans der Policy
+        assertThat(traceHeaders.get("traceparent")).isEqualTo("00-" + TRACE_ID + "-" + spanData.getSpanId() + "-01");
+    }
+
+    @Test
+    void testSpanOfFailedTokenExchange() {
+        var span = tracing.startSpan(() -> null);
+        TokenExchangeTracing.endSpan(span, new TokenExchangeException(TokenExchangePolicy.TOKEN_EXCHANGE_ERROR,
+                TokenExchangeMetrics.CAUSE_TIMEOUT, "Token endpoint did not respond within 5000 ms"));
+
+        var spanData = spanExporter.getFinishedSpanItems().get(0);
+        assertThat(spanData.getParentSpanId()).isEqualTo("0000000000000000");
+        assertThat(spanData.getStatus().getStatusCode()).isEqualTo(StatusCode.ERROR);
+        assertThat(spanData.getAttributes().get(TokenExchangeTracing.FAILURE_CAUSE)).isEqualTo("timeout");
+    }
+
+}
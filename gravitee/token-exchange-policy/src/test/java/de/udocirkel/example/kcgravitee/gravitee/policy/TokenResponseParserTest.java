@@ -0,0 +1,77 @@
+package de.udocirkel.example.kcgravitee.gravitee.policy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.vertx.core.buffer.Buffer;
+
+import org.junit.jupiter.api.Test;
+
+class TokenResponseParserTest {
+
+    @Test
+    void testParseExtractsTokenFields() {
+        var parser = parse(1024, """
+                {"access_token":"eyJhbGciOi.eyJzdWIiOi.c2lnbmF0dXJl","expires_in":300,"refresh_expires_in":0,
+                 "token_type":"Bearer","not-before-policy":0,"scope":"coffee-order profile",
+                 "issued_token_type":"urn:ietf:params:oauth:token-type:access_token","nested":{"a":[1,"}]",{"b":null}]},"flag":true}
+                """);
+
+        assertThat(parser.accessToken()).isEqualTo("eyJhbGciOi.eyJzdWIiOi.c2lnbmF0dXJl");
+        assertThat(parser.expiresIn()).isEqualTo(300);
+        assertThat(parser.tokenType()).isEqualTo("Bearer");
+    }
+
+    @Test
+    void testParseAcrossChunks() {
+        var json = "{\"token_type\":\"Bearer\",\"expires_in\":60,\"access_token\":\"a\\/b\\u00e9\\ud83d\\ude00\"}";
+        var parser = new TokenResponseParser(1024);
+        for (int i = 0; i < json.length(); i++) {
+            parser.feed(Buffer.buffer(json.substring(i, i + 1)));
+        }
+        parser.finish();
+
+        assertThat(parser.accessToken()).isEqualTo("a/b\u00e9\ud83d\ude00");
+        assertThat(parser.expiresIn()).isEqualTo(60);
+    }
+
+    @Test
+    void testParseWithoutAccessToken() {
+        var parser = parse(1024, "{\"error\":\"invalid_grant\",\"error_description\":\"Invalid token\"}");
+
+        assertThat(parser.accessToken()).isNull();
+        assertThat(parser.expiresIn()).isNull();
+        assertThat(parser.error()).isEqualTo("invalid_grant");
+    }
+
+    @Test
+    void testParseRejectsOversizedResponse() {
+        var parser = new TokenResponseParser(16);
+
+        assertThatThrownBy(() -> parser.feed(Buffer.buffer("{\"access_token\":\"0123456789\"}")))
+                .isInstanceOf(TokenResponseParser.InvalidTokenResponseException.class)
+                .hasMessageContaining("exceeds 16 bytes");
+    }
+
+    @Test
+    void testParseRejectsMalformedResponse() {
+        assertThatThrownBy(() -> parse(1024, "<html>Bad Gateway</html>"))
+                .isInstanceOf(TokenResponseParser.InvalidTokenResponseException.class);
+        assertThatThrownBy(() -> parse(1024, "{\"access_token\":\"a\" \"expires_in\":1}"))
+                .isInstanceOf(TokenResponseParser.InvalidTokenResponseException.class);
+        assertThatThrownBy(() -> parse(1024, "{\"access_token\":trueish}"))
+                .isInstanceOf(TokenResponseParser.InvalidTokenResponseException.class);
+        assertThatThrownBy(() -> parse(1024, "{\"access_token\":\"a\""))
+                .isInstanceOf(TokenResponseParser.InvalidTokenResponseException.class);
+        assertThatThrownBy(() -> parse(1024, "{} {}"))
+                .isInstanceOf(TokenResponseParser.InvalidTokenResponseException.class);
+    }
+
+    private static TokenResponseParser parse(int maxSize, String json) {
+        var parser = new TokenResponseParser(maxSize);
+        parser.feed(Buffer.buffer(json));
+        parser.finish();
+        return parser;
+    }
+
+}